@@ -10,8 +10,15 @@
 */
 package com.beatofthedrum.alacdecoder;
 
+import java.nio.ByteBuffer;
+
 public class AlacDecodeUtils
 {
+	/* flags selecting the format of the 16-bit PCM written by decode_frame_pcm.
+	 * Without PCM_SIGNED samples are unsigned, without PCM_BIG_ENDIAN little endian */
+	public static final int PCM_SIGNED = 1;
+	public static final int PCM_BIG_ENDIAN = 2;
+
 	public static void alac_set_info(AlacFile alac, int[] inputbuffer)
 	{
 	  int ptrIndex  = 0;
@@ -50,204 +57,34 @@ public class AlacDecodeUtils
 
 	/* stream reading */
 
-	/* supports reading 1 to 16 bits, in big endian format */
-	static int readbits_16(AlacFile alac, int bits ) 
-	{
-		int result  = 0;
-		int new_accumulator = 0;
-		int part1 = 0;
-		int part2 = 0;
-		int part3 =0;
-		
-		part1 = (alac.input_buffer[alac.ibIdx] & 0xff);
-		part2 = (alac.input_buffer[alac.ibIdx + 1] & 0xff);
-		part3 = (alac.input_buffer[alac.ibIdx + 2] & 0xff);		
-		
-		result = ((part1 << 16) | (part2 << 8) | part3);
-
-		/* shift left by the number of bits we've already read,
-		 * so that the top 'n' bits of the 24 bits we read will
-		 * be the return bits */
-		result = result << alac.input_buffer_bitaccumulator;
-
-		result = result & 0x00ffffff;
-
-		/* and then only want the top 'n' bits from that, where
-		 * n is 'bits' */
-		result = result >> (24 - bits);
-
-		new_accumulator = (alac.input_buffer_bitaccumulator + bits);
-
-		/* increase the buffer pointer if we've read over n bytes. */
-		alac.ibIdx += (new_accumulator >> 3);
-
-		/* and the remainder goes back into the bit accumulator */
-		alac.input_buffer_bitaccumulator = (new_accumulator & 7);
-	
-		return result;
-	}
-
-	/* supports reading 1 to 32 bits, in big endian format */
+	/* supports reading 0 to 32 bits, in big endian format */
 	static int readbits(AlacFile alac, int bits ) 
 	{
-		int result  = 0;
-
-		if (bits > 16)
-		{
-			bits -= 16;
-
-			result = readbits_16(alac, 16) << bits;		
-		}
-
-		result |= readbits_16(alac, bits);
-
-		return result;
+		return alac.reader.readbits(bits);
 	}
 
-	/* reads a single bit */
-	static int readbit(AlacFile alac) 
+	/*
+	 * Decodes a single value from the cached bits of the bit reader. The value
+	 * is returned in the low 32 bits of the result, the number of bits it used
+	 * in the high 32 bits. The cache must hold at least RICE_THRESHOLD + 1 + max(k, readSampleSize)
+	 * valid bits, which a refill guarantees.
+	 */
+	static long entropy_decode_cached(long cache, int readSampleSize, int k, int rice_kmodifier_mask)
 	{
-		int result = 0;
-		int new_accumulator = 0;
-		int part1 = 0;
-		
-		part1 = (alac.input_buffer[alac.ibIdx] & 0xff);
+		final int rice_threshold = Defines.RICE_THRESHOLD;
 
-		result = part1;
-
-		result = result << alac.input_buffer_bitaccumulator;
-
-		result = result >> 7 & 1;
-
-		new_accumulator = (alac.input_buffer_bitaccumulator + 1);
-
-		alac.ibIdx += new_accumulator / 8;	
-
-		alac.input_buffer_bitaccumulator = (new_accumulator % 8);
-
-		return result;
-	}
+		// x is the number of 1s before the first 0, which represent the rice value.
+		// the unused part of the cache is zero, so ~cache contains no spurious 1s
+		int x = Long.numberOfLeadingZeros(~cache);
+		int used;
 
-	static void unreadbits(AlacFile alac, int bits )
-	{
-		int new_accumulator  = (alac.input_buffer_bitaccumulator - bits);
-
-		alac.ibIdx += (new_accumulator >> 3);
-
-		alac.input_buffer_bitaccumulator = (new_accumulator & 7);
-		if (alac.input_buffer_bitaccumulator < 0)
-			alac.input_buffer_bitaccumulator *= -1;
-	}
-
-	static LeadingZeros count_leading_zeros_extra(int curbyte, int output, LeadingZeros lz)
-	{
-
-        if ((curbyte & 0xf0)==0)
-		{
-			output += 4;
-		}
-		else
-			curbyte = curbyte >> 4;
-
-		if ((curbyte & 0x8) != 0)
-		{
-			lz.output = output;
-			lz.curbyte = curbyte;
-			return lz;
-		}
-		if ((curbyte & 0x4) != 0)
-		{
-			lz.output = output + 1;
-			lz.curbyte = curbyte;
-			return lz;
-		}
-		if ((curbyte & 0x2) != 0)
-		{
-			lz.output = output + 2;
-			lz.curbyte = curbyte;
-			return lz;
-		}
-		if ((curbyte & 0x1) != 0)
-		{
-			lz.output = output + 3;
-			lz.curbyte = curbyte;
-			return lz;
-		}
-
-		/* shouldn't get here: */
-
-		lz.output = output + 4;
-		lz.curbyte = curbyte;
-		return lz;
-
-	}
-	static int count_leading_zeros(int input, LeadingZeros lz)
-	{
-		int output  = 0;
-		int curbyte  = 0;
-
-        curbyte = input >> 24;
-		if (curbyte != 0)
-		{
-			count_leading_zeros_extra(curbyte, output, lz);
-			output = lz.output;
-			curbyte = lz.curbyte;
-			return output;
-		}
-		output += 8;
-
-		curbyte = input >> 16;
-		if ((curbyte & 0xFF) != 0)
-		{
-			count_leading_zeros_extra(curbyte, output, lz);
-			output = lz.output;
-			curbyte = lz.curbyte;
-
-			return output;
-		}
-		output += 8;
-
-		curbyte = input >> 8;
-		if ((curbyte & 0xFF) != 0)
-		{
-			count_leading_zeros_extra(curbyte, output, lz);
-			output = lz.output;
-			curbyte = lz.curbyte;
-
-			return output;
-		}
-		output += 8;
-
-		curbyte = input;
-		if ((curbyte & 0xFF) != 0)
-		{
-			count_leading_zeros_extra(curbyte, output, lz);
-			output = lz.output;
-			curbyte = lz.curbyte;
-
-			return output;
-		}
-		output += 8;
-
-		return output;
-	}
-
-	public static int entropy_decode_value(AlacFile alac, int readSampleSize , int k , int rice_kmodifier_mask ) 
-	{
-		int x  = 0; // decoded value
-
-		// read x, number of 1s before 0 represent the rice value.
-		while (x <= Defines.RICE_THRESHOLD && readbit(alac) != 0)
-		{
-			x++;
-		}
-
-		if (x > Defines.RICE_THRESHOLD)
+		if (x > rice_threshold)
 		{
 			// read the number from the bit stream (raw value)
-			int value  = 0;
+			used = rice_threshold + 1;
 
-			value = readbits(alac, readSampleSize);
+			int value = (readSampleSize == 0) ? 0 : (int)((cache << used) >>> (64 - readSampleSize));
+			used += readSampleSize;
 
 			// mask value
 			value &= ((0xffffffff) >> (32 - readSampleSize));
@@ -256,24 +93,50 @@ public class AlacDecodeUtils
 		}
 		else
 		{
+			// skip the 1s and the terminating 0
+			used = x + 1;
+
 			if (k != 1)
-			{		
-				int extraBits  = readbits(alac, k);
+			{
+				final int extraBits = (k == 0) ? 0 : (int)((cache << used) >>> (64 - k));
 
 				x *= (((1 << k) - 1) & rice_kmodifier_mask);
 
+				// the last of the k bits is only used if the remainder is non-zero
 				if (extraBits > 1)
+				{
 					x += extraBits - 1;
+					used += k;
+				}
 				else
-					unreadbits(alac, 1);
+					used += k - 1;
 			}
 		}
 
-		return x;
+		return (((long)used) << 32) | (x & 0xffffffffL);
+	}
+
+	public static int entropy_decode_value(AlacFile alac, int readSampleSize , int k , int rice_kmodifier_mask ) 
+	{
+		final BitReader reader = alac.reader;
+		reader.refill();
+
+		final long decoded = entropy_decode_cached(reader.cache, readSampleSize, k, rice_kmodifier_mask);
+		final int used = (int)(decoded >>> 32);
+		reader.cache <<= used;
+		reader.cache_bits -= used;
+
+		return (int)decoded;
 	}
 
 	public static void entropy_rice_decode(AlacFile alac, int[] outputBuffer, int outputSize , int readSampleSize , int rice_initialhistory , int rice_kmodifier , int rice_historymult , int rice_kmodifier_mask )
 	{
+		/* The bit reader's state is kept in locals while decoding */
+		final BitReader reader = alac.reader;
+		int position = reader.position;
+		long cache = reader.cache;
+		int cacheBits = reader.cache_bits;
+
 		int history  = rice_initialhistory;
 		int outputCount  = 0;
 		int signModifier  = 0;
@@ -284,7 +147,17 @@ public class AlacDecodeUtils
 			int finalValue  = 0;
 			int k   = 0;
 
-			k = 31 - rice_kmodifier - count_leading_zeros((history >> 9) + 3, alac.lz);
+			/* refill, like BitReader.refill() */
+			if (cacheBits <= 56)
+			{
+				final int fill = (64 - cacheBits) & ~7;
+				final long word = reader.load_word(position);
+				cache |= (word >>> (64 - fill)) << (64 - cacheBits - fill);
+				cacheBits += fill;
+				position += fill >> 3;
+			}
+
+			k = 31 - rice_kmodifier - Integer.numberOfLeadingZeros((history >> 9) + 3);
 
 			if (k < 0)
 				k += rice_kmodifier;
@@ -292,7 +165,11 @@ public class AlacDecodeUtils
 				k = rice_kmodifier;
 
 			// note: don't use rice_kmodifier_mask here (set mask to 0xFFFFFFFF)
-			decodedValue = entropy_decode_value(alac, readSampleSize, k, 0xFFFFFFFF);
+			long decoded = entropy_decode_cached(cache, readSampleSize, k, 0xFFFFFFFF);
+			int used = (int)(decoded >>> 32);
+			cache <<= used;
+			cacheBits -= used;
+			decodedValue = (int)decoded;
 
 			decodedValue += signModifier;
 			finalValue = ((decodedValue + 1) / 2); // inc by 1 and shift out sign bit
@@ -316,10 +193,26 @@ public class AlacDecodeUtils
 
 				signModifier = 1;
 
-				k = count_leading_zeros(history, alac.lz) + ((history + 16) / 64) - 24;
+				k = Integer.numberOfLeadingZeros(history) + ((history + 16) / 64) - 24;
+
+				// blocks are rare, so refill through the reader if necessary
+				if (cacheBits < Defines.RICE_THRESHOLD + 1 + Math.max(k, 16))
+				{
+					reader.position = position;
+					reader.cache = cache;
+					reader.cache_bits = cacheBits;
+					reader.refill();
+					position = reader.position;
+					cache = reader.cache;
+					cacheBits = reader.cache_bits;
+				}
 
 				// note: blockSize is always 16bit
-				blockSize = entropy_decode_value(alac, 16, k, rice_kmodifier_mask);
+				decoded = entropy_decode_cached(cache, 16, k, rice_kmodifier_mask);
+				used = (int)(decoded >>> 32);
+				cache <<= used;
+				cacheBits -= used;
+				blockSize = (int)decoded;
 
 				// got blockSize 0s
 				if (blockSize > 0)
@@ -341,6 +234,10 @@ public class AlacDecodeUtils
 			
 			outputCount++;
 		}
+
+		reader.position = position;
+		reader.cache = cache;
+		reader.cache_bits = cacheBits;
 	}
 
 	static int[] predictor_decompress_fir_adapt(int[] error_buffer, int output_size , int readsamplesize , int[] predictor_coef_table, int predictor_coef_num , int predictor_quantitization )
@@ -364,23 +261,7 @@ public class AlacDecodeUtils
 
 		if (predictor_coef_num == 0x1f) // 11111 - max value of predictor_coef_num
 		{
-		/* second-best case scenario for fir decompression,
-		   * error describes a small difference from the previous sample only
-		   */
-			if (output_size <= 1)
-				return(buffer_out);
-
-			for (int i = 0; i < (output_size - 1); i++)
-			{
-				int prev_value  = 0;
-				int error_value  = 0;
-
-				prev_value = buffer_out[i];
-				error_value = error_buffer[i+1];
-
-				bitsmove = 32 - readsamplesize;
-				buffer_out[i+1] = (((prev_value + error_value) << bitsmove) >> bitsmove);
-			}
+			predictor_decompress_delta(buffer_out, output_size, readsamplesize);
 			return(buffer_out);
 		}
 
@@ -401,6 +282,335 @@ public class AlacDecodeUtils
 			}
 		}
 
+		/* the coefficient counts common encoders use have specialised kernels,
+		 * chosen once per frame */
+		switch (predictor_coef_num)
+		{
+		case 4:
+			predictor_decompress_fir_adapt_4(buffer_out, output_size, readsamplesize, predictor_coef_table, predictor_quantitization);
+			return(buffer_out);
+		case 8:
+			predictor_decompress_fir_adapt_8(buffer_out, output_size, readsamplesize, predictor_coef_table, predictor_quantitization);
+			return(buffer_out);
+		default:
+			predictor_decompress_fir_adapt_generic(buffer_out, output_size, readsamplesize, predictor_coef_table, predictor_coef_num, predictor_quantitization);
+			return(buffer_out);
+		}
+	}
+
+	/* second-best case scenario for fir decompression,
+	 * error describes a small difference from the previous sample only */
+	static void predictor_decompress_delta(int[] buffer_out, int output_size , int readsamplesize )
+	{
+		if (output_size <= 1)
+			return;
+
+		final int bitsmove = 32 - readsamplesize;
+		int prev_value = buffer_out[0];
+		for (int i = 1; i < output_size; i++)
+		{
+			prev_value = (((prev_value + buffer_out[i]) << bitsmove) >> bitsmove);
+			buffer_out[i] = prev_value;
+		}
+	}
+
+	/* adaptive fir with 4 coefficients. Expects the warm-up samples to be in place,
+	 * and keeps the coefficients and the last 5 samples in locals */
+	static void predictor_decompress_fir_adapt_4(int[] buffer_out, int output_size , int readsamplesize , int[] predictor_coef_table, int predictor_quantitization )
+	{
+		final int bitsmove = 32 - readsamplesize;
+		final int round = 1 << (predictor_quantitization-1);
+
+		int c0 = predictor_coef_table[0];
+		int c1 = predictor_coef_table[1];
+		int c2 = predictor_coef_table[2];
+		int c3 = predictor_coef_table[3];
+
+		/* s0 is the oldest sample of the window, s4 the newest */
+		int s0 = buffer_out[0];
+		int s1 = buffer_out[1];
+		int s2 = buffer_out[2];
+		int s3 = buffer_out[3];
+		int s4 = buffer_out[4];
+
+		for (int i = 5; i < output_size; i++)
+		{
+			int error_val = buffer_out[i];
+
+			final int sum =
+				(s4 - s0) * c0 +
+				(s3 - s0) * c1 +
+				(s2 - s0) * c2 +
+				(s1 - s0) * c3;
+
+			int outval = ((round + sum) >> predictor_quantitization) + s0 + error_val;
+			outval = ((outval << bitsmove) >> bitsmove);
+			buffer_out[i] = outval;
+
+			if (error_val > 0)
+			{
+				adapt_pos:
+				{
+					final int val0 = s0 - s1;
+					final int sign0 = Integer.signum(val0);
+					c3 -= sign0;
+					error_val -= ((val0 * sign0) >> predictor_quantitization);
+					if (error_val <= 0)
+						break adapt_pos;
+
+					final int val1 = s0 - s2;
+					final int sign1 = Integer.signum(val1);
+					c2 -= sign1;
+					error_val -= ((val1 * sign1) >> predictor_quantitization) * 2;
+					if (error_val <= 0)
+						break adapt_pos;
+
+					final int val2 = s0 - s3;
+					final int sign2 = Integer.signum(val2);
+					c1 -= sign2;
+					error_val -= ((val2 * sign2) >> predictor_quantitization) * 3;
+					if (error_val <= 0)
+						break adapt_pos;
+
+					final int val3 = s0 - s4;
+					final int sign3 = Integer.signum(val3);
+					c0 -= sign3;
+				}
+			}
+			else if (error_val < 0)
+			{
+				adapt_neg:
+				{
+					final int val0 = s0 - s1;
+					final int sign0 = -Integer.signum(val0);
+					c3 -= sign0;
+					error_val -= ((val0 * sign0) >> predictor_quantitization);
+					if (error_val >= 0)
+						break adapt_neg;
+
+					final int val1 = s0 - s2;
+					final int sign1 = -Integer.signum(val1);
+					c2 -= sign1;
+					error_val -= ((val1 * sign1) >> predictor_quantitization) * 2;
+					if (error_val >= 0)
+						break adapt_neg;
+
+					final int val2 = s0 - s3;
+					final int sign2 = -Integer.signum(val2);
+					c1 -= sign2;
+					error_val -= ((val2 * sign2) >> predictor_quantitization) * 3;
+					if (error_val >= 0)
+						break adapt_neg;
+
+					final int val3 = s0 - s4;
+					final int sign3 = -Integer.signum(val3);
+					c0 -= sign3;
+				}
+			}
+
+			s0 = s1;
+			s1 = s2;
+			s2 = s3;
+			s3 = s4;
+			s4 = outval;
+		}
+
+		predictor_coef_table[0] = c0;
+		predictor_coef_table[1] = c1;
+		predictor_coef_table[2] = c2;
+		predictor_coef_table[3] = c3;
+	}
+
+	/* adaptive fir with 8 coefficients. Expects the warm-up samples to be in place,
+	 * and keeps the coefficients and the last 9 samples in locals */
+	static void predictor_decompress_fir_adapt_8(int[] buffer_out, int output_size , int readsamplesize , int[] predictor_coef_table, int predictor_quantitization )
+	{
+		final int bitsmove = 32 - readsamplesize;
+		final int round = 1 << (predictor_quantitization-1);
+
+		int c0 = predictor_coef_table[0];
+		int c1 = predictor_coef_table[1];
+		int c2 = predictor_coef_table[2];
+		int c3 = predictor_coef_table[3];
+		int c4 = predictor_coef_table[4];
+		int c5 = predictor_coef_table[5];
+		int c6 = predictor_coef_table[6];
+		int c7 = predictor_coef_table[7];
+
+		/* s0 is the oldest sample of the window, s8 the newest */
+		int s0 = buffer_out[0];
+		int s1 = buffer_out[1];
+		int s2 = buffer_out[2];
+		int s3 = buffer_out[3];
+		int s4 = buffer_out[4];
+		int s5 = buffer_out[5];
+		int s6 = buffer_out[6];
+		int s7 = buffer_out[7];
+		int s8 = buffer_out[8];
+
+		for (int i = 9; i < output_size; i++)
+		{
+			int error_val = buffer_out[i];
+
+			final int sum =
+				(s8 - s0) * c0 +
+				(s7 - s0) * c1 +
+				(s6 - s0) * c2 +
+				(s5 - s0) * c3 +
+				(s4 - s0) * c4 +
+				(s3 - s0) * c5 +
+				(s2 - s0) * c6 +
+				(s1 - s0) * c7;
+
+			int outval = ((round + sum) >> predictor_quantitization) + s0 + error_val;
+			outval = ((outval << bitsmove) >> bitsmove);
+			buffer_out[i] = outval;
+
+			if (error_val > 0)
+			{
+				adapt_pos:
+				{
+					final int val0 = s0 - s1;
+					final int sign0 = Integer.signum(val0);
+					c7 -= sign0;
+					error_val -= ((val0 * sign0) >> predictor_quantitization);
+					if (error_val <= 0)
+						break adapt_pos;
+
+					final int val1 = s0 - s2;
+					final int sign1 = Integer.signum(val1);
+					c6 -= sign1;
+					error_val -= ((val1 * sign1) >> predictor_quantitization) * 2;
+					if (error_val <= 0)
+						break adapt_pos;
+
+					final int val2 = s0 - s3;
+					final int sign2 = Integer.signum(val2);
+					c5 -= sign2;
+					error_val -= ((val2 * sign2) >> predictor_quantitization) * 3;
+					if (error_val <= 0)
+						break adapt_pos;
+
+					final int val3 = s0 - s4;
+					final int sign3 = Integer.signum(val3);
+					c4 -= sign3;
+					error_val -= ((val3 * sign3) >> predictor_quantitization) * 4;
+					if (error_val <= 0)
+						break adapt_pos;
+
+					final int val4 = s0 - s5;
+					final int sign4 = Integer.signum(val4);
+					c3 -= sign4;
+					error_val -= ((val4 * sign4) >> predictor_quantitization) * 5;
+					if (error_val <= 0)
+						break adapt_pos;
+
+					final int val5 = s0 - s6;
+					final int sign5 = Integer.signum(val5);
+					c2 -= sign5;
+					error_val -= ((val5 * sign5) >> predictor_quantitization) * 6;
+					if (error_val <= 0)
+						break adapt_pos;
+
+					final int val6 = s0 - s7;
+					final int sign6 = Integer.signum(val6);
+					c1 -= sign6;
+					error_val -= ((val6 * sign6) >> predictor_quantitization) * 7;
+					if (error_val <= 0)
+						break adapt_pos;
+
+					final int val7 = s0 - s8;
+					final int sign7 = Integer.signum(val7);
+					c0 -= sign7;
+				}
+			}
+			else if (error_val < 0)
+			{
+				adapt_neg:
+				{
+					final int val0 = s0 - s1;
+					final int sign0 = -Integer.signum(val0);
+					c7 -= sign0;
+					error_val -= ((val0 * sign0) >> predictor_quantitization);
+					if (error_val >= 0)
+						break adapt_neg;
+
+					final int val1 = s0 - s2;
+					final int sign1 = -Integer.signum(val1);
+					c6 -= sign1;
+					error_val -= ((val1 * sign1) >> predictor_quantitization) * 2;
+					if (error_val >= 0)
+						break adapt_neg;
+
+					final int val2 = s0 - s3;
+					final int sign2 = -Integer.signum(val2);
+					c5 -= sign2;
+					error_val -= ((val2 * sign2) >> predictor_quantitization) * 3;
+					if (error_val >= 0)
+						break adapt_neg;
+
+					final int val3 = s0 - s4;
+					final int sign3 = -Integer.signum(val3);
+					c4 -= sign3;
+					error_val -= ((val3 * sign3) >> predictor_quantitization) * 4;
+					if (error_val >= 0)
+						break adapt_neg;
+
+					final int val4 = s0 - s5;
+					final int sign4 = -Integer.signum(val4);
+					c3 -= sign4;
+					error_val -= ((val4 * sign4) >> predictor_quantitization) * 5;
+					if (error_val >= 0)
+						break adapt_neg;
+
+					final int val5 = s0 - s6;
+					final int sign5 = -Integer.signum(val5);
+					c2 -= sign5;
+					error_val -= ((val5 * sign5) >> predictor_quantitization) * 6;
+					if (error_val >= 0)
+						break adapt_neg;
+
+					final int val6 = s0 - s7;
+					final int sign6 = -Integer.signum(val6);
+					c1 -= sign6;
+					error_val -= ((val6 * sign6) >> predictor_quantitization) * 7;
+					if (error_val >= 0)
+						break adapt_neg;
+
+					final int val7 = s0 - s8;
+					final int sign7 = -Integer.signum(val7);
+					c0 -= sign7;
+				}
+			}
+
+			s0 = s1;
+			s1 = s2;
+			s2 = s3;
+			s3 = s4;
+			s4 = s5;
+			s5 = s6;
+			s6 = s7;
+			s7 = s8;
+			s8 = outval;
+		}
+
+		predictor_coef_table[0] = c0;
+		predictor_coef_table[1] = c1;
+		predictor_coef_table[2] = c2;
+		predictor_coef_table[3] = c3;
+		predictor_coef_table[4] = c4;
+		predictor_coef_table[5] = c5;
+		predictor_coef_table[6] = c6;
+		predictor_coef_table[7] = c7;
+	}
+
+	/* adaptive fir with any number of coefficients. Expects the warm-up samples to be in place */
+	static void predictor_decompress_fir_adapt_generic(int[] buffer_out, int output_size , int readsamplesize , int[] predictor_coef_table, int predictor_coef_num , int predictor_quantitization )
+	{
+		int buffer_out_idx  = 0;
+		int[] error_buffer = buffer_out; /* decompression happens in place */
+		int bitsmove  = 0;
+
 		/* general case */
 		if (predictor_coef_num > 0)
 		{
@@ -466,7 +676,6 @@ public class AlacDecodeUtils
 				buffer_out_idx++;
 			}
 		}
-		return(buffer_out);
 	}
 
 	
@@ -592,16 +801,128 @@ public class AlacDecodeUtils
 
 	}
 
+	/* fused stereo decorrelation and PCM packing. Writes the interleaved 16-bit
+	 * samples in the pcmformat given by the PCM_* flags straight into outbuffer,
+	 * 4 bytes per sample pair */
+	public static void deinterlace_16_pcm(int[] buffer_a, int[] buffer_b, byte[] outbuffer, int outoffset, int numsamples , int interlacing_shift , int interlacing_leftweight , int pcmformat )
+	{
+		if (numsamples <= 0)
+			return;
+
+		/* unsigned samples differ from signed ones only in their top bit */
+		final int signflip = ((pcmformat & PCM_SIGNED) != 0) ? 0 : 0x8000;
+
+		/* offsets of a sample's high and low byte */
+		final int hi = ((pcmformat & PCM_BIG_ENDIAN) != 0) ? 0 : 1;
+		final int lo = 1 - hi;
+
+		int o = outoffset;
+
+		/* weighted interlacing */
+		if (0 != interlacing_leftweight)
+		{
+			for (int i = 0; i < numsamples; i++, o += 4)
+			{
+				final int midright = buffer_a[i];
+				final int difference = buffer_b[i];
+
+				final int right = (midright - ((difference * interlacing_leftweight) >> interlacing_shift));
+				final int left = (right + difference) ^ signflip;
+				final int rightout = right ^ signflip;
+
+				outbuffer[o + hi] = (byte)(left >> 8);
+				outbuffer[o + lo] = (byte)left;
+				outbuffer[o + 2 + hi] = (byte)(rightout >> 8);
+				outbuffer[o + 2 + lo] = (byte)rightout;
+			}
+
+			return;
+		}
+
+		/* otherwise basic interlacing took place */
+		for (int i = 0; i < numsamples; i++, o += 4)
+		{
+			final int left = buffer_a[i] ^ signflip;
+			final int right = buffer_b[i] ^ signflip;
+
+			outbuffer[o + hi] = (byte)(left >> 8);
+			outbuffer[o + lo] = (byte)left;
+			outbuffer[o + 2 + hi] = (byte)(right >> 8);
+			outbuffer[o + 2 + lo] = (byte)right;
+		}
+	}
+
+	/* packs mono 16-bit samples as PCM in the given pcmformat, with a silent right channel */
+	public static void mono_16_pcm(int[] buffer_a, byte[] outbuffer, int outoffset, int numsamples , int pcmformat )
+	{
+		final int signflip = ((pcmformat & PCM_SIGNED) != 0) ? 0 : 0x8000;
+		final int hi = ((pcmformat & PCM_BIG_ENDIAN) != 0) ? 0 : 1;
+		final int lo = 1 - hi;
+
+		int o = outoffset;
+		for (int i = 0; i < numsamples; i++, o += 4)
+		{
+			final int left = buffer_a[i] ^ signflip;
+
+			outbuffer[o + hi] = (byte)(left >> 8);
+			outbuffer[o + lo] = (byte)left;
+			outbuffer[o + 2 + hi] = (byte)(signflip >> 8);
+			outbuffer[o + 2 + lo] = 0;
+		}
+	}
 
 	public static int decode_frame(AlacFile alac, byte[] inbuffer, int[] outbuffer, int outputsize )
 	{
-		int channels ;
-		int outputsamples  = alac.setinfo_max_samples_per_frame;
+		return decode_frame(alac, inbuffer, 0, inbuffer.length, outbuffer, outputsize);
+	}
+
+	/* decodes the frame in [inoffset, inoffset + inlength) of inbuffer. Reads beyond its end return zeros */
+	public static int decode_frame(AlacFile alac, byte[] inbuffer, int inoffset, int inlength, int[] outbuffer, int outputsize )
+	{
+		/* setup the stream */
+		alac.reader.init(inbuffer, inoffset, inlength);
+
+		return decode_frame(alac, outbuffer, null, 0, 0);
+	}
+
+	/* decodes the frame in [position, limit) of inbuffer, which may be a direct buffer.
+	 * The buffer's position is not modified. Reads beyond its end return zeros */
+	public static int decode_frame(AlacFile alac, ByteBuffer inbuffer, int[] outbuffer, int outputsize )
+	{
+		/* setup the stream */
+		alac.reader.init(inbuffer);
+
+		return decode_frame(alac, outbuffer, null, 0, 0);
+	}
+
+	/* decodes the frame in [inoffset, inoffset + inlength) of inbuffer to 16-bit stereo PCM
+	 * in the pcmformat given by the PCM_* flags, stored in outbuffer at outoffset */
+	public static int decode_frame_pcm(AlacFile alac, byte[] inbuffer, int inoffset, int inlength, byte[] outbuffer, int outoffset, int pcmformat )
+	{
+		/* setup the stream */
+		alac.reader.init(inbuffer, inoffset, inlength);
+
+		return decode_frame(alac, null, outbuffer, outoffset, pcmformat);
+	}
 
+	/* decodes the frame in [position, limit) of inbuffer, which may be a direct buffer, to 16-bit
+	 * stereo PCM in the pcmformat given by the PCM_* flags, stored in outbuffer at outoffset.
+	 * The buffer's position is not modified */
+	public static int decode_frame_pcm(AlacFile alac, ByteBuffer inbuffer, byte[] outbuffer, int outoffset, int pcmformat )
+	{
 		/* setup the stream */
-		alac.input_buffer = inbuffer;
-		alac.input_buffer_bitaccumulator = 0;
-		alac.ibIdx = 0;
+		alac.reader.init(inbuffer);
+
+		return decode_frame(alac, null, outbuffer, outoffset, pcmformat);
+	}
+
+	/* decodes the frame the bit reader was set up for. The samples are stored either
+	 * in outbuffer as integers, or if pcmbuffer is non-null in pcmbuffer as PCM */
+	private static int decode_frame(AlacFile alac, int[] outbuffer, byte[] pcmbuffer, int pcmoffset, int pcmformat )
+	{
+		int channels ;
+		int outputsamples  = alac.setinfo_max_samples_per_frame;
+		int outputsize ;
 
 
 		channels = readbits(alac, 3);
@@ -744,6 +1065,11 @@ public class AlacDecodeUtils
 			{
 			case 16:
 			{
+				if (pcmbuffer != null)
+				{
+					mono_16_pcm(alac.outputsamples_buffer_a, pcmbuffer, pcmoffset, outputsamples, pcmformat);
+					break;
+				}
 
 				for (int i = 0; i < outputsamples; i++)
 				{
@@ -762,6 +1088,12 @@ public class AlacDecodeUtils
 			}
 			case 24:
 			{
+				if (pcmbuffer != null)
+				{
+					System.err.println("FIXME: unimplemented PCM output for sample size " + alac.setinfo_sample_size);
+					break;
+				}
+
 				for (int i = 0; i < outputsamples; i++)
 				{
 					int sample  = alac.outputsamples_buffer_a[i];
@@ -986,11 +1318,20 @@ public class AlacDecodeUtils
 			{
 			case 16:
 			{
-				deinterlace_16(alac.outputsamples_buffer_a, alac.outputsamples_buffer_b, outbuffer, alac.numchannels, outputsamples, interlacing_shift, interlacing_leftweight);
+				if (pcmbuffer != null)
+					deinterlace_16_pcm(alac.outputsamples_buffer_a, alac.outputsamples_buffer_b, pcmbuffer, pcmoffset, outputsamples, interlacing_shift, interlacing_leftweight, pcmformat);
+				else
+					deinterlace_16(alac.outputsamples_buffer_a, alac.outputsamples_buffer_b, outbuffer, alac.numchannels, outputsamples, interlacing_shift, interlacing_leftweight);
 				break;
 			}
 			case 24:
 			{
+				if (pcmbuffer != null)
+				{
+					System.err.println("FIXME: unimplemented PCM output for sample size " + alac.setinfo_sample_size);
+					break;
+				}
+
 				deinterlace_24(alac.outputsamples_buffer_a, alac.outputsamples_buffer_b, uncompressed_bytes, alac.uncompressed_bytes_buffer_a, alac.uncompressed_bytes_buffer_b, outbuffer, alac.numchannels, outputsamples, interlacing_shift, interlacing_leftweight);
 				break;
 			}
@@ -13,17 +13,12 @@ package com.beatofthedrum.alacdecoder;
 public class AlacFile
 {
 
-	byte input_buffer[];
-	int ibIdx = 0;
-	int input_buffer_bitaccumulator = 0; /* used so we can do arbitary
-						bit reads */
+	BitReader reader = new BitReader();
 
 	int samplesize = 0;
 	int numchannels = 0;
 	int bytespersample = 0;
 
-    LeadingZeros lz = new LeadingZeros();
-
 
     private int buffer_size = 16384;
     /* buffers */
@@ -0,0 +1,144 @@
+/*
+** BitReader.java
+**
+** Distributed under the BSD Software License (see license.txt)
+**
+*/
+
+package com.beatofthedrum.alacdecoder;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/*
+ * Big endian bit reader with a 64-bit cache register.
+ *
+ * The cache holds the next bits of the input left-aligned, i.e. the next
+ * bit to be read is the cache's most significant bit, and the bits below
+ * the valid ones are zero. Refills load a whole 64-bit word from the input
+ * and keep as many of its bytes as fit, so that after a refill at least 57
+ * bits are available and most reads don't touch the input at all. Reads
+ * beyond the end of the input return zeros.
+ *
+ * The input is either a byte array or a ByteBuffer, which allows frames
+ * to be decoded from direct buffers without copying them first.
+ *
+ * The fields are accessed directly by the entropy decoder, which keeps
+ * them in locals while decoding (see AlacDecodeUtils.entropy_rice_decode).
+ */
+final class BitReader
+{
+	/* minimum number of valid bits after a refill */
+	static final int MIN_BITS_AFTER_REFILL = 57;
+
+	byte[] buffer; /* input array, or null if the input is a ByteBuffer */
+	ByteBuffer byte_buffer; /* input ByteBuffer, or null if the input is an array */
+	boolean byte_buffer_swap = false; /* true if byte_buffer is little endian */
+	int position = 0; /* index of the next byte to load into the cache */
+	int limit = 0; /* index of the first byte after the input */
+
+	long cache = 0;
+	int cache_bits = 0; /* number of valid bits in the cache */
+
+	void init(byte[] inbuffer, int offset, int length)
+	{
+		buffer = inbuffer;
+		byte_buffer = null;
+		position = offset;
+		limit = offset + length;
+		cache = 0;
+		cache_bits = 0;
+	}
+
+	/* reads the bytes in [position, limit) of inbuffer, without modifying its position */
+	void init(ByteBuffer inbuffer)
+	{
+		if (inbuffer.hasArray())
+		{
+			init(inbuffer.array(), inbuffer.arrayOffset() + inbuffer.position(), inbuffer.remaining());
+			return;
+		}
+
+		buffer = null;
+		byte_buffer = inbuffer;
+		byte_buffer_swap = (inbuffer.order() != ByteOrder.BIG_ENDIAN);
+		position = inbuffer.position();
+		limit = inbuffer.limit();
+		cache = 0;
+		cache_bits = 0;
+	}
+
+	/* loads a big endian 64-bit word at position, or as much of it as the input contains */
+	long load_word(int position)
+	{
+		if (buffer != null)
+			return load_word(buffer, position, limit);
+
+		if (position + 8 <= limit)
+		{
+			final long word = byte_buffer.getLong(position);
+			return byte_buffer_swap ? Long.reverseBytes(word) : word;
+		}
+
+		long word = 0;
+		for (int i = 0; i < 8; i++)
+		{
+			if (position + i < limit)
+				word |= ((long)(byte_buffer.get(position + i) & 0xff)) << (56 - 8 * i);
+		}
+		return word;
+	}
+
+	/* loads a big endian 64-bit word from an array, or as much of it as the input contains */
+	static long load_word(byte[] buffer, int position, int limit)
+	{
+		if (position + 8 <= limit)
+		{
+			return
+				((long)buffer[position] << 56) |
+				((long)(buffer[position + 1] & 0xff) << 48) |
+				((long)(buffer[position + 2] & 0xff) << 40) |
+				((long)(buffer[position + 3] & 0xff) << 32) |
+				((long)(buffer[position + 4] & 0xff) << 24) |
+				((long)(buffer[position + 5] & 0xff) << 16) |
+				((long)(buffer[position + 6] & 0xff) << 8) |
+				((long)(buffer[position + 7] & 0xff));
+		}
+
+		long word = 0;
+		for (int i = 0; i < 8; i++)
+		{
+			if (position + i < limit)
+				word |= ((long)(buffer[position + i] & 0xff)) << (56 - 8 * i);
+		}
+		return word;
+	}
+
+	/* tops the cache up with as many whole bytes as fit */
+	void refill()
+	{
+		if (cache_bits > 56)
+			return;
+
+		final int fill = (64 - cache_bits) & ~7;
+		final long word = load_word(position);
+		cache |= (word >>> (64 - fill)) << (64 - cache_bits - fill);
+		cache_bits += fill;
+		position += fill >> 3;
+	}
+
+	/* reads 0 to 32 bits */
+	int readbits(int bits)
+	{
+		if (bits == 0)
+			return 0;
+
+		if (cache_bits < bits)
+			refill();
+
+		final int result = (int)(cache >>> (64 - bits));
+		cache <<= bits;
+		cache_bits -= bits;
+		return result;
+	}
+}
@@ -0,0 +1,245 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.phlo.AirReceiver;
+
+import java.util.*;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Bounded, time-limited cache of AES session keys, indexed by their RSA-wrapped form.
+ * <p>
+ * Senders re-use the wrapped key from the {@code rsaaeskey} SDP attribute when they
+ * reconnect or re-announce a stream, and unwrapping it requires an expensive RSA
+ * private key operation. The cache keeps the unwrapped key material for a limited
+ * time, and overwrites it with zeros once an entry expires or is evicted because
+ * the cache is full. Entries are evicted least-recently-used first.
+ */
+public class AesKeyCache {
+	/**
+	 * Wrapped key, compared by content
+	 */
+	private static final class WrappedKey {
+		private final byte[] m_bytes;
+		private final int m_hashCode;
+
+		public WrappedKey(final byte[] bytes) {
+			m_bytes = bytes.clone();
+			m_hashCode = Arrays.hashCode(m_bytes);
+		}
+
+		@Override
+		public int hashCode() {
+			return m_hashCode;
+		}
+
+		@Override
+		public boolean equals(final Object other) {
+			return (other instanceof WrappedKey) && Arrays.equals(m_bytes, ((WrappedKey)other).m_bytes);
+		}
+	}
+
+	/**
+	 * Unwrapped key material and its expiry time
+	 */
+	private static final class CachedKey {
+		public final byte[] keyMaterial;
+		public final long expiresNanos;
+
+		public CachedKey(final byte[] _keyMaterial, final long _expiresNanos) {
+			keyMaterial = _keyMaterial;
+			expiresNanos = _expiresNanos;
+		}
+
+		/**
+		 * Overwrites the key material with zeros
+		 */
+		public void destroy() {
+			Arrays.fill(keyMaterial, (byte)0);
+		}
+	}
+
+	/**
+	 * Maximum number of entries
+	 */
+	private final int m_capacity;
+
+	/**
+	 * Time in nanoseconds after which entries expire
+	 */
+	private final long m_timeToLiveNanos;
+
+	/**
+	 * Entries in access order, i.e. least-recently-used first
+	 */
+	private final LinkedHashMap<WrappedKey, CachedKey> m_entries;
+
+	private long m_hitCount = 0;
+	private long m_missCount = 0;
+	private long m_expiredCount = 0;
+	private long m_evictedCount = 0;
+
+	/**
+	 * Creates an empty cache
+	 * 
+	 * @param capacity maximum number of keys
+	 * @param timeToLiveSeconds time after which keys expire
+	 */
+	public AesKeyCache(final int capacity, final double timeToLiveSeconds) {
+		m_capacity = capacity;
+		m_timeToLiveNanos = Math.round(timeToLiveSeconds * 1e9);
+		m_entries = new LinkedHashMap<WrappedKey, CachedKey>(capacity * 2, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(final Map.Entry<WrappedKey, CachedKey> eldest) {
+				if (size() <= m_capacity)
+					return false;
+
+				eldest.getValue().destroy();
+				++m_evictedCount;
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * Returns the unwrapped key for a wrapped key
+	 * 
+	 * @param wrappedKey wrapped key as sent by the client
+	 * @return the AES key, or null if the wrapped key isn't cached
+	 */
+	public synchronized SecretKey get(final byte[] wrappedKey) {
+		final WrappedKey key = new WrappedKey(wrappedKey);
+		final CachedKey entry = m_entries.get(key);
+
+		if ((entry != null) && (entry.expiresNanos - System.nanoTime() <= 0)) {
+			m_entries.remove(key);
+			entry.destroy();
+			++m_expiredCount;
+		}
+		else if (entry != null) {
+			++m_hitCount;
+			return new SecretKeySpec(entry.keyMaterial, "AES");
+		}
+
+		++m_missCount;
+		return null;
+	}
+
+	/**
+	 * Adds the unwrapped key for a wrapped key. The cache keeps a copy
+	 * of the key material, so the caller may overwrite its own copy.
+	 * 
+	 * @param wrappedKey wrapped key as sent by the client
+	 * @param keyMaterial unwrapped key
+	 */
+	public synchronized void put(final byte[] wrappedKey, final byte[] keyMaterial) {
+		removeExpired();
+
+		final CachedKey previous = m_entries.put(
+			new WrappedKey(wrappedKey),
+			new CachedKey(keyMaterial.clone(), System.nanoTime() + m_timeToLiveNanos)
+		);
+		if (previous != null)
+			previous.destroy();
+	}
+
+	/**
+	 * Removes all keys, overwriting their key material
+	 */
+	public synchronized void clear() {
+		for(final CachedKey entry: m_entries.values())
+			entry.destroy();
+		m_entries.clear();
+	}
+
+	/**
+	 * Removes expired keys, overwriting their key material
+	 */
+	private void removeExpired() {
+		final long nowNanos = System.nanoTime();
+		final Iterator<CachedKey> i = m_entries.values().iterator();
+		while (i.hasNext()) {
+			final CachedKey entry = i.next();
+			if (entry.expiresNanos - nowNanos <= 0) {
+				entry.destroy();
+				i.remove();
+				++m_expiredCount;
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of lookups which found a key
+	 * 
+	 * @return number of cache hits
+	 */
+	public synchronized long getHitCount() {
+		return m_hitCount;
+	}
+
+	/**
+	 * Returns the number of lookups which didn't find a key
+	 * 
+	 * @return number of cache misses
+	 */
+	public synchronized long getMissCount() {
+		return m_missCount;
+	}
+
+	/**
+	 * Returns the number of keys removed because they expired
+	 * 
+	 * @return number of expired keys
+	 */
+	public synchronized long getExpiredCount() {
+		return m_expiredCount;
+	}
+
+	/**
+	 * Returns the number of keys removed because the cache was full
+	 * 
+	 * @return number of evicted keys
+	 */
+	public synchronized long getEvictedCount() {
+		return m_evictedCount;
+	}
+
+	/**
+	 * Returns the number of keys currently cached
+	 * 
+	 * @return number of keys
+	 */
+	public synchronized int size() {
+		return m_entries.size();
+	}
+
+	@Override
+	public synchronized String toString() {
+		final StringBuilder s = new StringBuilder();
+		s.append("AES key cache");
+		s.append(": "); s.append("keys="); s.append(m_entries.size());
+		s.append(" "); s.append("hits="); s.append(m_hitCount);
+		s.append(" "); s.append("misses="); s.append(m_missCount);
+		s.append(" "); s.append("expired="); s.append(m_expiredCount);
+		s.append(" "); s.append("evicted="); s.append(m_evictedCount);
+		return s.toString();
+	}
+}
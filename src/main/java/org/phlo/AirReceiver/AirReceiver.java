@@ -34,6 +34,7 @@ import javax.swing.*;
 
 import javax.jmdns.*;
 
+import org.jboss.netty.bootstrap.ConnectionlessBootstrap;
 import org.jboss.netty.bootstrap.ServerBootstrap;
 import org.jboss.netty.channel.*;
 import org.jboss.netty.channel.group.*;
@@ -56,6 +57,11 @@ public class AirReceiver {
 	private static final Logger s_logger = Logger.getLogger(AirReceiver.class.getName());
 
 	public static final String Version = getVersion();
+
+	/**
+	 * Prefix of the system properties which can be used to tune AirReceiver
+	 */
+	static final String PropertyPrefix = "org.phlo.AirReceiver.";
 	
 	/**
 	 * The hardware (MAC) address of the emulated Airport Express
@@ -83,7 +89,9 @@ public class AirReceiver {
 	public static final short AirtunesServiceRTSPPort = 5000;
 
 	/**
-	 * The AirTunes/RAOP M-DNS service properties (TXT record)
+	 * The AirTunes/RAOP M-DNS service properties (TXT record). The supported
+	 * codecs ({@code cn}) are uncompressed PCM (0, see {@link RaopRtpAudioL16DecodeHandler})
+	 * and Apple Lossless (1, see {@link RaopRtpAudioAlacDecodeHandler})
 	 */
 	public static final Map<String, String> AirtunesServiceProperties = map(
 		"txtvers", "1",
@@ -112,6 +120,109 @@ public class AirReceiver {
 		new OrderedMemoryAwareThreadPoolExecutor(4, 0, 0)
 	);
 
+	/**
+	 * Execution policies for RTSP channels and the three types of RTP channels
+	 */
+	public static final ExecutionPolicy RtspExecutionPolicy = getExecutionPolicyProperty("rtspExecution", ExecutionPolicy.Shared);
+	public static final ExecutionPolicy RtpAudioExecutionPolicy = getExecutionPolicyProperty("rtpAudioExecution", ExecutionPolicy.Shared);
+	public static final ExecutionPolicy RtpControlExecutionPolicy = getExecutionPolicyProperty("rtpControlExecution", ExecutionPolicy.Shared);
+	public static final ExecutionPolicy RtpTimingExecutionPolicy = getExecutionPolicyProperty("rtpTimingExecution", ExecutionPolicy.Shared);
+
+	/**
+	 * Execution handlers for RTSP channels and the three types of RTP channels.
+	 * Null if the corresponding policy is {@link ExecutionPolicy#Inline}.
+	 */
+	public static final ExecutionHandler RtspExecutionHandler = createExecutionHandler(RtspExecutionPolicy);
+	public static final ExecutionHandler RtpAudioExecutionHandler = createExecutionHandler(RtpAudioExecutionPolicy);
+	public static final ExecutionHandler RtpControlExecutionHandler = createExecutionHandler(RtpControlExecutionPolicy);
+	public static final ExecutionHandler RtpTimingExecutionHandler = createExecutionHandler(RtpTimingExecutionPolicy);
+
+	/**
+	 * Number of I/O worker threads (NIO selector loops) shared by all RTP channels.
+	 * Defaults to the number of available processors.
+	 */
+	public static final int RtpWorkerCount = Integer.getInteger(PropertyPrefix + "rtpWorkers", Runtime.getRuntime().availableProcessors());
+
+	/**
+	 * Process-wide datagram channel factory used for all RTP channels. Netty assigns
+	 * new channels to the factory's {@link #RtpWorkerCount} workers round-robin, so
+	 * the number of threads stays constant no matter how many sessions are active.
+	 */
+	public static final NioDatagramChannelFactory RtpChannelFactory = new NioDatagramChannelFactory(ExecutorService, RtpWorkerCount);
+
+	/**
+	 * Re-use RTP packet instances instead of allocating new ones for every
+	 * datagram. See {@link RaopRtpDecodeHandler}
+	 */
+	public static final boolean RtpReusePackets = getBooleanProperty("rtpReusePackets", true);
+
+	/**
+	 * Handle audio packets with a single fused handler instead of a
+	 * chain of handlers. See {@link RaopRtpAudioFusedHandler}
+	 */
+	public static final boolean RtpFusedAudio = getBooleanProperty("rtpFusedAudio", false);
+
+	/**
+	 * Number of pre-bound RTP channels to keep around. Zero disables the pool
+	 * and RTP channels are bound during SETUP.
+	 */
+	public static final int RtpChannelPoolSize = Integer.getInteger(PropertyPrefix + "rtpChannelPoolSize", 0);
+
+	/**
+	 * First UDP port used for RTP channels, or zero to use ephemeral ports
+	 */
+	public static final int RtpPortFirst = Integer.getInteger(PropertyPrefix + "rtpPortFirst", 0);
+
+	/**
+	 * Last UDP port used for RTP channels. Defaults to a range with three ports
+	 * per pooled channel, but at least six, so that a new session's SETUP doesn't
+	 * fail while the previous session still holds its ports. Ranges with fewer
+	 * than three ports are rejected, since every session needs three channels.
+	 */
+	public static final int RtpPortLast = Integer.getInteger(PropertyPrefix + "rtpPortLast",
+		RtpPortFirst + 3 * Math.max(RtpChannelPoolSize, 2) - 1
+	);
+
+	/**
+	 * Ports RTP channels are bound to, or null if {@link #RtpPortFirst} is zero
+	 */
+	public static final RtpPortRange RtpPortRange =
+		(RtpPortFirst > 0) ? new RtpPortRange(RtpPortFirst, RtpPortLast) : null;
+
+	/**
+	 * Pool of pre-bound RTP channels, or null if {@link #RtpChannelPoolSize} is zero
+	 */
+	public static final RtpChannelPool RtpChannelPool = createRtpChannelPool();
+
+	/**
+	 * Number of unwrapped AES session keys to cache. Zero disables the cache
+	 */
+	public static final int AesKeyCacheSize = Integer.getInteger(PropertyPrefix + "aesKeyCacheSize", 32);
+
+	/**
+	 * Seconds after which cached AES session keys expire
+	 */
+	public static final int AesKeyCacheSeconds = Integer.getInteger(PropertyPrefix + "aesKeyCacheSeconds", 600);
+
+	/**
+	 * Cache of unwrapped AES session keys, or null if {@link #AesKeyCacheSize} is zero
+	 */
+	public static final AesKeyCache AesKeyCache =
+		(AesKeyCacheSize > 0) ? new AesKeyCache(AesKeyCacheSize, AesKeyCacheSeconds) : null;
+
+	/**
+	 * Number of threads audio packets are decrypted and decoded on in parallel.
+	 * Zero disables the parallel stage, and packets are decoded on the audio
+	 * channel's execution handler. See {@link RaopRtpAudioParallelDecodeHandler}
+	 */
+	public static final int RtpDecodeWorkerCount = Integer.getInteger(PropertyPrefix + "rtpDecodeWorkers", 0);
+
+	/**
+	 * Executor of the parallel decode stage, or null if {@link #RtpDecodeWorkerCount} is zero
+	 */
+	public static final ExecutorService RtpDecodeExecutor =
+		(RtpDecodeWorkerCount > 0) ? Executors.newFixedThreadPool(RtpDecodeWorkerCount) : null;
+
 	/**
 	 * Message dispayed in the "About" dialog
 	 */
@@ -214,6 +325,73 @@ public class AirReceiver {
     	return versionProperties.getProperty("org.phlo.AirReceiver.version");
 	}
 
+	/**
+	 * Creates the RTP channel pool unless it is disabled
+	 * 
+	 * @return the pool, or null
+	 */
+	private static RtpChannelPool createRtpChannelPool() {
+		if (RtpChannelPoolSize <= 0)
+			return null;
+
+		final ConnectionlessBootstrap bootstrap = new ConnectionlessBootstrap(RtpChannelFactory);
+		RaopAudioHandler.setRtpChannelOptions(bootstrap);
+		return new RtpChannelPool(bootstrap, RtpPortRange, RtpChannelPoolSize);
+	}
+
+	/**
+	 * Creates the execution handler for an execution policy
+	 * 
+	 * @param policy execution policy
+	 * @return execution handler, or null for {@link ExecutionPolicy#Inline}
+	 */
+	private static ExecutionHandler createExecutionHandler(final ExecutionPolicy policy) {
+		switch (policy) {
+			case Inline:
+				return null;
+			case Dedicated:
+				return new ExecutionHandler(new OrderedMemoryAwareThreadPoolExecutor(4, 0, 0));
+			default:
+				return ChannelExecutionHandler;
+		}
+	}
+
+	/**
+	 * Reads an execution policy from the system property
+	 * {@code org.phlo.AirReceiver.<name>}. Valid values are
+	 * {@code inline}, {@code dedicated} and {@code shared}.
+	 * 
+	 * @param name setting name
+	 * @param defaultValue value used if the property is not set or invalid
+	 * @return the setting's value
+	 */
+	private static ExecutionPolicy getExecutionPolicyProperty(final String name, final ExecutionPolicy defaultValue) {
+		final String value = System.getProperty(PropertyPrefix + name);
+		if (value == null)
+			return defaultValue;
+
+		for(final ExecutionPolicy policy: ExecutionPolicy.values()) {
+			if (policy.name().equalsIgnoreCase(value))
+				return policy;
+		}
+
+		s_logger.warning("Invalid execution policy " + value + " for " + PropertyPrefix + name + ", using " + defaultValue);
+		return defaultValue;
+	}
+
+	/**
+	 * Reads a boolean setting from the system property
+	 * {@code org.phlo.AirReceiver.<name>}
+	 * 
+	 * @param name setting name
+	 * @param defaultValue value used if the property is not set
+	 * @return the setting's value
+	 */
+	private static boolean getBooleanProperty(final String name, final boolean defaultValue) {
+		final String value = System.getProperty(PropertyPrefix + name);
+		return (value != null) ? Boolean.parseBoolean(value) : defaultValue;
+	}
+
 	/**
 	 * Returns a suitable hardware address.
 	 * 
@@ -311,10 +489,33 @@ public class AirReceiver {
 		/* Wait for all channels to finish closing */
 		allChannelsClosed.awaitUninterruptibly();
 		
+		/* Close the idle RTP channels */
+		if (RtpChannelPool != null) {
+			s_logger.info(RtpChannelPool.toString());
+			RtpChannelPool.close();
+		}
+
+		/* Report how well the AES key cache did, and destroy the keys */
+		if (AesKeyCache != null) {
+			s_logger.info(AesKeyCache.toString());
+			AesKeyCache.clear();
+		}
+
+		/* Stop the RTP I/O workers */
+		RtpChannelFactory.releaseExternalResources();
+
+		/* Stop the parallel decode workers */
+		if (RtpDecodeExecutor != null)
+			RtpDecodeExecutor.shutdown();
+
 		/* Stop the ExecutorService */
 		ExecutorService.shutdown();
 
-		/* Release the OrderedMemoryAwareThreadPoolExecutor */
+		/* Release the OrderedMemoryAwareThreadPoolExecutors */
+		for(final ExecutionHandler executionHandler: Arrays.asList(RtspExecutionHandler, RtpAudioExecutionHandler, RtpControlExecutionHandler, RtpTimingExecutionHandler)) {
+			if ((executionHandler != null) && (executionHandler != ChannelExecutionHandler))
+				executionHandler.releaseExternalResources();
+		}
 		ChannelExecutionHandler.releaseExternalResources();
 	}
 
@@ -395,6 +596,9 @@ public class AirReceiver {
 		trayIcon.setPopupMenu(popupMenu);
 		SystemTray.getSystemTray().add(trayIcon);
 
+		/* Pick the fastest cipher providers and warm them up before the first client connects */
+		AirTunesCrytography.warmUp();
+
         /* Create AirTunes RTSP server */
 		final ServerBootstrap airTunesRtspBootstrap = new ServerBootstrap(new NioServerSocketChannelFactory(ExecutorService, ExecutorService));
 		airTunesRtspBootstrap.setPipelineFactory(new RaopRtspPipelineFactory());
@@ -23,12 +23,17 @@ import java.lang.reflect.Method;
 import java.security.*;
 import java.security.interfaces.*;
 import java.security.spec.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import javax.crypto.Cipher;
 import javax.crypto.CipherSpi;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
 
 public final class AirTunesCrytography {
 	/**
@@ -83,20 +88,138 @@ public final class AirTunesCrytography {
 	 */
 	public static final RSAPrivateKey PrivateKey = rsaPrivateKeyDecode(PrivateKeyData);
 
+	/**
+	 * The public key matching {@link #PrivateKey}. Used to test RSA ciphers
+	 */
+	private static final RSAPublicKey PublicKey = rsaPublicKeyDerive(PrivateKey);
+
 	static final Pattern s_transformation_pattern = Pattern.compile("^([A-Za-z0-9_.-]+)(/([A-Za-z0-9_.-]+)/([A-Za-z0-9_.-]+))?");
+
 	/**
-	 * Replacement for JCA/JCE's {@link javax.crypto.Cipher#getInstance}.
-	 * The original method only accepts JCE providers from signed jars,
-	 * which prevents us from bundling our cryptography provider Bouncy Caster
-	 * with the application.
-	 *
-	 * @param transformation the transformation to find an implementation for
+	 * Sources of cipher implementations
 	 */
-	public static Cipher getCipher(final String transformation) {
-		try {
+	public static enum CipherProvider {
+		/**
+		 * Whatever {@link javax.crypto.Cipher#getInstance(String)} returns. Usually SunJCE,
+		 * whose AES implementation uses the CPU's AES instructions where available
+		 */
+		JDK,
+
+		/**
+		 * Our bundled Bouncy Castle provider
+		 */
+		BouncyCastle
+	}
+
+	/**
+	 * Transformations used by AirReceiver. Their providers are selected by {@link #selectProviders()}
+	 */
+	public static final List<String> Transformations = Collections.unmodifiableList(Arrays.asList(
+		"AES/CBC/NoPadding",
+		"RSA/None/OAEPWithSHA1AndMGF1Padding",
+		"RSA/None/PKCS1Padding"
+	));
+
+	/**
+	 * Provider to use for all transformations, or null to benchmark the available
+	 * providers. Set with the system property {@code org.phlo.AirReceiver.cipherProvider}
+	 */
+	private static final CipherProvider ProviderOverride = getProviderOverride();
+
+	/**
+	 * Minimum time spent warming up and time spent measuring each provider
+	 */
+	private static final double BenchmarkSeconds = 0.1;
+
+	/**
+	 * Minimum number of operations per warm up and measurement
+	 */
+	private static final int BenchmarkOperationsMin = 3;
+
+	/**
+	 * Creates {@link javax.crypto.Cipher} instances for a transformation.
+	 * Does all the lookups up-front, so that creating instances is cheap.
+	 */
+	private static abstract class CipherFactory {
+		public final CipherProvider provider;
+		public final String transformation;
+
+		public CipherFactory(final CipherProvider _provider, final String _transformation) {
+			provider = _provider;
+			transformation = _transformation;
+		}
+
+		public abstract Cipher create() throws Throwable;
+	}
+
+	/**
+	 * Creates instances using {@link javax.crypto.Cipher#getInstance(String)}
+	 */
+	private static final class JdkCipherFactory extends CipherFactory {
+		/**
+		 * The transformation in the JDK's terms
+		 */
+		private final String m_jdkTransformation;
+
+		/**
+		 * Name of the provider the JDK picked
+		 */
+		private final String m_providerName;
+
+		public JdkCipherFactory(final String transformation) throws Throwable {
+			super(CipherProvider.JDK, transformation);
+
+			/* The JDK calls mode "None" of the RSA ciphers "ECB" */
+			m_jdkTransformation = transformation.replaceFirst("^RSA/NONE/", "RSA/ECB/");
+			m_providerName = Cipher.getInstance(m_jdkTransformation).getProvider().getName();
+		}
+
+		@Override
+		public Cipher create() throws Throwable {
+			return Cipher.getInstance(m_jdkTransformation);
+		}
+
+		@Override
+		public String toString() {
+			return m_providerName + " " + m_jdkTransformation;
+		}
+	}
+
+	/**
+	 * Creates instances from Bouncy Castle's {@link javax.crypto.CipherSpi} implementations
+	 */
+	private static final class BouncyCastleCipherFactory extends CipherFactory {
+		/**
+		 * Class implementing the transformation
+		 */
+		private final Class<? extends CipherSpi> m_cipherSpiClass;
+
+		/**
+		 * Mode to set after instantiation, or null
+		 */
+		private final String m_mode;
+
+		/**
+		 * Padding to set after instantiation, or null
+		 */
+		private final String m_padding;
+
+		/**
+		 * {@link javax.crypto.CipherSpi#engineSetMode}, or null if {@link #m_mode} is null
+		 */
+		private final Method m_engineSetMode;
+
+		/**
+		 * {@link javax.crypto.CipherSpi#engineSetPadding}, or null if {@link #m_padding} is null
+		 */
+		private final Method m_engineSetPadding;
+
+		public BouncyCastleCipherFactory(final String transformation) throws Throwable {
+			super(CipherProvider.BouncyCastle, transformation);
+
 			/* Split the transformation into algorithm, mode and padding */
 
-			final Matcher transformation_matcher = s_transformation_pattern.matcher(transformation.toUpperCase());
+			final Matcher transformation_matcher = s_transformation_pattern.matcher(transformation);
 			if (!transformation_matcher.matches())
 				throw new RuntimeException("Transformation " + transformation + " is invalid");
 
@@ -116,48 +239,88 @@ public final class AirTunesCrytography {
 			 * generals ones which we then must configure for the mode and padding.
 			 */
 
-			final CipherSpi cipherSpi;
-
+			final String cipherSpiClassName;
 			if (!isBareAlgorithm && (resolveProperty(Provider, "Cipher", algorithmModePadding) != null)) {
-				@SuppressWarnings("unchecked")
-				final
-				Class<? extends CipherSpi> cipherSpiClass = (Class<? extends CipherSpi>)Class.forName(resolveProperty(Provider, "Cipher", algorithmModePadding));
-				cipherSpi = cipherSpiClass.newInstance();
+				cipherSpiClassName = resolveProperty(Provider, "Cipher", algorithmModePadding);
+				m_mode = null;
+				m_padding = null;
 			}
 			else if (!isBareAlgorithm && (resolveProperty(Provider, "Cipher", algorithmMode) != null)) {
-				@SuppressWarnings("unchecked")
-				final
-				Class<? extends CipherSpi> cipherSpiClass = (Class<? extends CipherSpi>)Class.forName(resolveProperty(Provider, "Cipher", algorithmMode));
-				cipherSpi = cipherSpiClass.newInstance();
-				if (!isBareAlgorithm)
-					cipherSpiSetPadding(cipherSpi, padding);
+				cipherSpiClassName = resolveProperty(Provider, "Cipher", algorithmMode);
+				m_mode = null;
+				m_padding = padding;
 			}
 			else if (!isBareAlgorithm && (resolveProperty(Provider, "Cipher", algorithmPadding) != null)) {
-				@SuppressWarnings("unchecked")
-				final
-				Class<? extends CipherSpi> cipherSpiClass = (Class<? extends CipherSpi>)Class.forName(resolveProperty(Provider, "Cipher", algorithmPadding));
-				cipherSpi = cipherSpiClass.newInstance();
-				if (!isBareAlgorithm)
-					cipherSpiSetMode(cipherSpi, mode);
+				cipherSpiClassName = resolveProperty(Provider, "Cipher", algorithmPadding);
+				m_mode = mode;
+				m_padding = null;
 			}
 			else if (resolveProperty(Provider, "Cipher", algorithm) != null) {
-				@SuppressWarnings("unchecked")
-				final
-				Class<? extends CipherSpi> cipherSpiClass = (Class<? extends CipherSpi>)Class.forName(resolveProperty(Provider, "Cipher", algorithm));
-				cipherSpi = cipherSpiClass.newInstance();
-				if (!isBareAlgorithm) {
-					cipherSpiSetMode(cipherSpi, mode);
-					cipherSpiSetPadding(cipherSpi, padding);
-				}
+				cipherSpiClassName = resolveProperty(Provider, "Cipher", algorithm);
+				m_mode = mode;
+				m_padding = padding;
 			}
 			else {
 				throw new RuntimeException("Provider " + Provider.getName() + " (" + Provider.getClass() + ") does not implement " + transformation);
 			}
 
+			@SuppressWarnings("unchecked")
+			final
+			Class<? extends CipherSpi> cipherSpiClass = (Class<? extends CipherSpi>)Class.forName(cipherSpiClassName);
+			m_cipherSpiClass = cipherSpiClass;
+
+			/* Setting the mode and padding means accessing a private API, so
+			 * we must work around the access restrictions
+			 */
+			m_engineSetMode = (m_mode != null) ? getMethod(m_cipherSpiClass, "engineSetMode", String.class) : null;
+			if (m_engineSetMode != null)
+				m_engineSetMode.setAccessible(true);
+			m_engineSetPadding = (m_padding != null) ? getMethod(m_cipherSpiClass, "engineSetPadding", String.class) : null;
+			if (m_engineSetPadding != null)
+				m_engineSetPadding.setAccessible(true);
+
+			/* Make sure we can actually create instances */
+			create();
+		}
+
+		@Override
+		public Cipher create() throws Throwable {
+			final CipherSpi cipherSpi = m_cipherSpiClass.newInstance();
+			if (m_engineSetMode != null)
+				invoke(m_engineSetMode, cipherSpi, m_mode);
+			if (m_engineSetPadding != null)
+				invoke(m_engineSetPadding, cipherSpi, m_padding);
+
 			/* Create a {@link javax.crypto.Cipher} instance from the {@link javax.crypto.CipherSpi} the provider gave us */
+			return getCipher(cipherSpi, transformation);
+		}
 
-			s_logger.info("Using SPI " + cipherSpi.getClass() + " for " + transformation);
-			return getCipher(cipherSpi, transformation.toUpperCase());
+		@Override
+		public String toString() {
+			return m_cipherSpiClass.getName();
+		}
+	}
+
+	/**
+	 * Selected factories, by upper-case transformation
+	 */
+	private static final ConcurrentMap<String, CipherFactory> s_cipherFactories = new ConcurrentHashMap<String, CipherFactory>();
+
+	/**
+	 * Replacement for JCA/JCE's {@link javax.crypto.Cipher#getInstance}.
+	 * The original method only accepts JCE providers from signed jars,
+	 * which prevents us from bundling our cryptography provider Bouncy Caster
+	 * with the application.
+	 * <p>
+	 * The provider is selected by {@link #selectProvider(String)} upon the first
+	 * request for a transformation, and then re-used.
+	 *
+	 * @param transformation the transformation to find an implementation for
+	 */
+	public static Cipher getCipher(final String transformation) {
+		final CipherFactory cipherFactory = selectProvider(transformation);
+		try {
+			return cipherFactory.create();
 		}
 		catch (final RuntimeException e) {
 			throw e;
@@ -166,10 +329,307 @@ public final class AirTunesCrytography {
 			throw e;
 		}
 		catch (final Throwable e) {
-			throw new RuntimeException("Provider " + Provider.getName() + " (" + Provider.getClass() + ") failed to instanciate " + transformation, e);
+			throw new RuntimeException("Provider " + cipherFactory.provider + " failed to instanciate " + transformation, e);
 		}
 	}
 
+	/**
+	 * Per-thread cipher instances, by upper-case transformation
+	 */
+	private static final ConcurrentMap<String, ThreadLocal<Cipher>> s_threadCiphers = new ConcurrentHashMap<String, ThreadLocal<Cipher>>();
+
+	/**
+	 * Returns a cipher instance owned by the calling thread, creating it upon
+	 * the first request from that thread. The instance must be initialized
+	 * before every use, and must not be handed to other threads. In return,
+	 * callers needn't synchronize, and needn't create instances of their own.
+	 *
+	 * @param transformation the transformation to find an implementation for
+	 * @return the calling thread's instance
+	 */
+	public static Cipher getThreadCipher(final String transformation) {
+		final String key = transformation.toUpperCase();
+
+		ThreadLocal<Cipher> threadCipher = s_threadCiphers.get(key);
+		if (threadCipher == null) {
+			s_threadCiphers.putIfAbsent(key, new ThreadLocal<Cipher>() {
+				@Override
+				protected Cipher initialValue() {
+					return getCipher(key);
+				}
+			});
+			threadCipher = s_threadCiphers.get(key);
+		}
+
+		return threadCipher.get();
+	}
+
+	/**
+	 * Selects the providers for all {@link #Transformations}. Meant to be
+	 * called during startup, so that the first client doesn't have to wait
+	 * for the benchmarks to finish.
+	 */
+	public static void selectProviders() {
+		for(final String transformation: Transformations)
+			selectProvider(transformation);
+	}
+
+	/**
+	 * Selects the providers, and then signs and unwraps once using the
+	 * calling thread's ciphers. Loads and compiles the code involved,
+	 * so that the first client doesn't have to wait for that either.
+	 */
+	public static void warmUp() {
+		selectProviders();
+
+		try {
+			final Cipher signCipher = getThreadCipher("RSA/None/PKCS1Padding");
+			signCipher.init(Cipher.ENCRYPT_MODE, PrivateKey);
+			signCipher.doFinal(new byte[16 + 16 + 6]);
+
+			final Cipher unwrapCipher = getThreadCipher("RSA/None/OAEPWithSHA1AndMGF1Padding");
+			unwrapCipher.init(Cipher.ENCRYPT_MODE, PublicKey);
+			final byte[] wrapped = unwrapCipher.doFinal(new byte[16]);
+			unwrapCipher.init(Cipher.DECRYPT_MODE, PrivateKey);
+			unwrapCipher.doFinal(wrapped);
+		}
+		catch (final GeneralSecurityException e) {
+			throw new RuntimeException("Cipher warm-up failed", e);
+		}
+	}
+
+	/**
+	 * Returns the provider used for a transformation, selecting one if
+	 * that hasn't happened yet.
+	 * 
+	 * @param transformation transformation
+	 * @return provider
+	 */
+	public static CipherProvider getProvider(final String transformation) {
+		return selectProvider(transformation).provider;
+	}
+
+	/**
+	 * Selects the provider to use for a transformation, unless that already happened.
+	 * <p>
+	 * Unless overridden, every provider that implements the transformation is checked
+	 * against Bouncy Castle's implementation, and the fastest one which agrees is used.
+	 * 
+	 * @param transformation transformation
+	 * @return factory for the selected provider
+	 */
+	private static CipherFactory selectProvider(final String transformation) {
+		final String key = transformation.toUpperCase();
+		final CipherFactory existing = s_cipherFactories.get(key);
+		if (existing != null)
+			return existing;
+
+		synchronized(s_cipherFactories) {
+			if (s_cipherFactories.containsKey(key))
+				return s_cipherFactories.get(key);
+
+			/* Find the providers implementing the transformation */
+			final Map<CipherProvider, CipherFactory> candidates = new EnumMap<CipherProvider, CipherFactory>(CipherProvider.class);
+			for(final CipherProvider provider: CipherProvider.values()) {
+				if ((ProviderOverride != null) && (provider != ProviderOverride))
+					continue;
+
+				try {
+					candidates.put(provider, createCipherFactory(provider, key));
+				}
+				catch (final Throwable e) {
+					s_logger.info("Provider " + provider + " is unable to provide " + transformation + ": " + e);
+				}
+			}
+			if (candidates.isEmpty())
+				throw new RuntimeException("No provider is able to provide " + transformation);
+
+			/* Pick the fastest one which produces the same results as Bouncy Castle */
+			CipherFactory selected = null;
+			double selectedSeconds = Double.POSITIVE_INFINITY;
+			final CipherFactory reference = candidates.get(CipherProvider.BouncyCastle);
+			if (candidates.size() == 1) {
+				selected = candidates.values().iterator().next();
+			}
+			else {
+				for(final CipherFactory candidate: candidates.values()) {
+					try {
+						if ((candidate != reference) && !verify(candidate, reference)) {
+							s_logger.warning("Provider " + candidate.provider + " disagrees with " + reference.provider + " about " + transformation + ", ignoring it");
+							continue;
+						}
+
+						final double seconds = benchmark(candidate);
+						s_logger.info("Provider " + candidate.provider + " takes " + seconds + " seconds per " + transformation + " operation");
+						if (seconds < selectedSeconds) {
+							selected = candidate;
+							selectedSeconds = seconds;
+						}
+					}
+					catch (final Throwable e) {
+						s_logger.warning("Provider " + candidate.provider + " failed while testing " + transformation + ", ignoring it: " + e);
+					}
+				}
+				if (selected == null)
+					selected = reference;
+			}
+
+			s_logger.info("Using provider " + selected.provider + " (" + selected + ") for " + transformation);
+			s_cipherFactories.put(key, selected);
+			return selected;
+		}
+	}
+
+	/**
+	 * Creates a cipher factory for a transformation
+	 * 
+	 * @param provider provider to use
+	 * @param transformation upper-case transformation
+	 * @return cipher factory
+	 * @throws Throwable if the provider doesn't implement the transformation
+	 */
+	private static CipherFactory createCipherFactory(final CipherProvider provider, final String transformation) throws Throwable {
+		switch (provider) {
+			case JDK: return new JdkCipherFactory(transformation);
+			case BouncyCastle: return new BouncyCastleCipherFactory(transformation);
+			default: throw new IllegalArgumentException("Unknown provider " + provider);
+		}
+	}
+
+	/**
+	 * Checks that two ciphers of the same transformation can decrypt each other's output.
+	 * RSA ciphers encrypt with the public key and decrypt with the private key. Since
+	 * AirReceiver also signs with the private key, both ciphers are additionally
+	 * required to produce the same output when encrypting with the private key, unless
+	 * the padding is randomized.
+	 * 
+	 * @param candidate factory of the cipher to check
+	 * @param reference factory of the cipher known to be correct
+	 * @return true if the ciphers agree
+	 * @throws Throwable if either cipher fails
+	 */
+	private static boolean verify(final CipherFactory candidate, final CipherFactory reference) throws Throwable {
+		final Cipher candidateCipher = candidate.create();
+		final Cipher referenceCipher = reference.create();
+		final Random random = new Random(0);
+
+		if (candidate.transformation.startsWith("RSA/")) {
+			final byte[] plain = new byte[16];
+			random.nextBytes(plain);
+
+			candidateCipher.init(Cipher.ENCRYPT_MODE, PublicKey);
+			referenceCipher.init(Cipher.DECRYPT_MODE, PrivateKey);
+			if (!Arrays.equals(plain, referenceCipher.doFinal(candidateCipher.doFinal(plain))))
+				return false;
+
+			referenceCipher.init(Cipher.ENCRYPT_MODE, PublicKey);
+			candidateCipher.init(Cipher.DECRYPT_MODE, PrivateKey);
+			if (!Arrays.equals(plain, candidateCipher.doFinal(referenceCipher.doFinal(plain))))
+				return false;
+
+			if (!candidate.transformation.contains("OAEP")) {
+				candidateCipher.init(Cipher.ENCRYPT_MODE, PrivateKey);
+				referenceCipher.init(Cipher.ENCRYPT_MODE, PrivateKey);
+				if (!Arrays.equals(referenceCipher.doFinal(plain), candidateCipher.doFinal(plain)))
+					return false;
+			}
+		}
+		else {
+			final Key key = createBenchmarkKey(candidate.transformation);
+			final IvParameterSpec iv = new IvParameterSpec(new byte[candidateCipher.getBlockSize()]);
+			final byte[] plain = new byte[1408];
+			random.nextBytes(plain);
+
+			candidateCipher.init(Cipher.ENCRYPT_MODE, key, iv);
+			referenceCipher.init(Cipher.ENCRYPT_MODE, key, iv);
+			final byte[] encrypted = candidateCipher.doFinal(plain);
+			if (!Arrays.equals(referenceCipher.doFinal(plain), encrypted))
+				return false;
+
+			candidateCipher.init(Cipher.DECRYPT_MODE, key, iv);
+			if (!Arrays.equals(plain, candidateCipher.doFinal(encrypted)))
+				return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Measures how long a cipher takes to decrypt. For RSA ciphers, a single
+	 * block is decrypted with the private key. For other ciphers, the size of
+	 * a typical audio packet is decrypted.
+	 * 
+	 * @param cipherFactory factory of the cipher to measure
+	 * @return seconds per operation
+	 * @throws Throwable if the cipher fails
+	 */
+	private static double benchmark(final CipherFactory cipherFactory) throws Throwable {
+		final Cipher cipher = cipherFactory.create();
+
+		final byte[] input;
+		if (cipherFactory.transformation.startsWith("RSA/")) {
+			final Cipher encryptCipher = cipherFactory.create();
+			encryptCipher.init(Cipher.ENCRYPT_MODE, PublicKey);
+			input = encryptCipher.doFinal(new byte[16]);
+			cipher.init(Cipher.DECRYPT_MODE, PrivateKey);
+		}
+		else {
+			cipher.init(Cipher.DECRYPT_MODE, createBenchmarkKey(cipherFactory.transformation), new IvParameterSpec(new byte[cipher.getBlockSize()]));
+			input = new byte[1408];
+		}
+
+		/* Warm up, then measure. Each operation is timed individually, and the
+		 * fastest one counts, which makes slow first operations irrelevant
+		 */
+		long fastestNanos = Long.MAX_VALUE;
+		for(int pass=0; pass < 2; ++pass) {
+			final long endNanos = System.nanoTime() + Math.round(BenchmarkSeconds * 1e9);
+			fastestNanos = Long.MAX_VALUE;
+			long operations = 0;
+			long nowNanos = System.nanoTime();
+			do {
+				final long startNanos = nowNanos;
+				cipher.doFinal(input);
+				nowNanos = System.nanoTime();
+				fastestNanos = Math.min(fastestNanos, nowNanos - startNanos);
+				++operations;
+			} while ((nowNanos < endNanos) || (operations < BenchmarkOperationsMin));
+		}
+		final double secondsPerOperation = 1e-9 * (double)fastestNanos;
+		return secondsPerOperation;
+	}
+
+	/**
+	 * Creates a fixed key for verifying and benchmarking symmetric ciphers
+	 * 
+	 * @param transformation transformation
+	 * @return 128-bit key
+	 */
+	private static Key createBenchmarkKey(final String transformation) {
+		final byte[] key = new byte[16];
+		new Random(1).nextBytes(key);
+		return new SecretKeySpec(key, transformation.split("/")[0]);
+	}
+
+	/**
+	 * Reads the provider override from the system property
+	 * {@code org.phlo.AirReceiver.cipherProvider}
+	 * 
+	 * @return provider, or null if unset
+	 */
+	private static CipherProvider getProviderOverride() {
+		final String value = System.getProperty(AirReceiver.PropertyPrefix + "cipherProvider");
+		if (value == null)
+			return null;
+
+		for(final CipherProvider provider: CipherProvider.values()) {
+			if (provider.name().equalsIgnoreCase(value))
+				return provider;
+		}
+		s_logger.warning("Unknown cipher provider " + value + ", selecting one automatically");
+		return null;
+	}
+
 	/**
 	 * Converts a PEM-encoded PKCS#8 private key into an RSAPrivateKey instance
 	 * useable with JCE
@@ -188,6 +648,29 @@ public final class AirTunesCrytography {
 		}
 	}
 
+	/**
+	 * Derives the public key from an RSA private key in CRT form
+	 *
+	 * @param privateKey private key
+	 * @return RSAPublicKey instance containing the public key
+	 */
+	private static RSAPublicKey rsaPublicKeyDerive(final RSAPrivateKey privateKey) {
+		try {
+			final KeyFactory keyFactory = KeyFactory.getInstance("RSA");
+			final KeySpec ks = new RSAPublicKeySpec(privateKey.getModulus(), ((RSAPrivateCrtKey)privateKey).getPublicExponent());
+			return (RSAPublicKey)keyFactory.generatePublic(ks);
+		}
+		catch (final Exception e) {
+			throw new RuntimeException("Failed to derive built-in public key", e);
+		}
+	}
+
+	/**
+	 * The private constructor of {@link javax.crypto.Cipher} used by
+	 * {@link #getCipher(CipherSpi, String)}, made accessible. Looked up upon first use
+	 */
+	private static volatile Constructor<Cipher> s_cipherConstructor;
+
 	/**
 	 * Creates a {@link javax.crypto.Cipher} instance from a {@link javax.crypto.CipherSpi}.
 	 *
@@ -201,9 +684,12 @@ public final class AirTunesCrytography {
 		 * Due to the signed-jar restriction for JCE providers that is not an option, so we
 		 * use one of the private constructors of Cipher.
 		 */
-		final Class<Cipher> cipherClass = Cipher.class;
-		final Constructor<Cipher> cipherConstructor = cipherClass.getDeclaredConstructor(CipherSpi.class, String.class);
-		cipherConstructor.setAccessible(true);
+		Constructor<Cipher> cipherConstructor = s_cipherConstructor;
+		if (cipherConstructor == null) {
+			cipherConstructor = Cipher.class.getDeclaredConstructor(CipherSpi.class, String.class);
+			cipherConstructor.setAccessible(true);
+			s_cipherConstructor = cipherConstructor;
+		}
 		try {
 			return cipherConstructor.newInstance(cipherSpi, transformation);
 		}
@@ -265,41 +751,18 @@ public final class AirTunesCrytography {
 	}
 
 	/**
-	 * Sets the padding of a {@link javax.crypto.CipherSpi} instance.
-	 *
-	 * Like {@link #getCipher(String)}, we're accessing a private API
-	 * here, so me must work around the access restrictions
-	 *
-	 * @param cipherSpi the {@link javax.crypto.CipherSpi} instance
-	 * @param padding the padding to set
-	 * @throws Throwable if {@link javax.crypto.CipherSpi#engineSetPadding} throws
-	 */
-	private static void cipherSpiSetPadding(final CipherSpi cipherSpi, final String padding) throws Throwable {
-		final Method engineSetPadding = getMethod(cipherSpi.getClass(), "engineSetPadding", String.class);
-		engineSetPadding.setAccessible(true);
-		try {
-			engineSetPadding.invoke(cipherSpi, padding);
-		}
-		catch (final InvocationTargetException e) {
-			throw e.getCause();
-		}
-	}
-
-	/**
-	 * Sets the mode of a {@link javax.crypto.CipherSpi} instance.
-	 *
-	 * Like {@link #getCipher(String)}, we're accessing a private API
-	 * here, so me must work around the access restrictions
+	 * Invokes a method, and re-throws exceptions thrown by the method itself
+	 * instead of wrapping them in {@link InvocationTargetException}.
 	 *
-	 * @param cipherSpi the {@link javax.crypto.CipherSpi} instance
-	 * @param mode the mode to set
-	 * @throws Throwable if {@link javax.crypto.CipherSpi#engineSetPadding} throws
+	 * @param method the method
+	 * @param object object to invoke the method on
+	 * @param args arguments
+	 * @return the method's result
+	 * @throws Throwable if the method throws
 	 */
-	private static void cipherSpiSetMode(final CipherSpi cipherSpi, final String mode) throws Throwable {
-		final Method engineSetMode = getMethod(cipherSpi.getClass(), "engineSetMode", String.class);
-		engineSetMode.setAccessible(true);
+	private static Object invoke(final Method method, final Object object, final Object... args) throws Throwable {
 		try {
-			engineSetMode.invoke(cipherSpi, mode);
+			return method.invoke(object, args);
 		}
 		catch (final InvocationTargetException e) {
 			throw e.getCause();
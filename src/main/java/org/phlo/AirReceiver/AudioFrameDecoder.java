@@ -0,0 +1,51 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.phlo.AirReceiver;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+
+/**
+ * Decodes the payload of single audio packets to PCM samples in the
+ * format announced by {@link #getAudioFormat()}. Implemented by the
+ * decode handlers of the different stream encodings, and used by
+ * {@link RaopRtpAudioFusedHandler} to decode directly into the
+ * buffers queued for playback.
+ */
+public interface AudioFrameDecoder extends AudioStreamInformationProvider {
+	/**
+	 * Returns the number of bytes a payload of the given length decodes to
+	 *
+	 * @param payloadLength length of the encoded payload
+	 * @return length of the decoded samples in bytes
+	 */
+	public int getDecodedLength(int payloadLength);
+
+	/**
+	 * Decodes a packet's payload, and stores the PCM samples in the provided array
+	 *
+	 * @param buffer buffer containing the payload
+	 * @param offset offset of the payload
+	 * @param length length of the payload
+	 * @param pcmBytes array to store the PCM sample data in
+	 * @param pcmOffset offset to store the PCM sample data at
+	 * @return number of bytes stored
+	 * @throws ProtocolException if the payload is invalid
+	 */
+	public int decodeFrame(ChannelBuffer buffer, int offset, int length, byte[] pcmBytes, int pcmOffset)
+		throws ProtocolException;
+}
@@ -0,0 +1,351 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.phlo.AirReceiver;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-capacity ring of queued sample buffers, indexed by frame time.
+ * <p>
+ * The ring is divided into slots of one packet's worth of frames. The entry
+ * for frame time {@code t} lives in the slot {@code floor(t / packetFrames)}
+ * modulo the capacity, so inserting and removing entries is O(1) and
+ * allocates nothing. Each slot can hold a single entry. Entries which
+ * fall into an occupied slot are rejected, unless the slot holds an entry
+ * from an earlier pass around the ring which the reader hasn't dropped yet.
+ * <p>
+ * Entries are added by a single writer at a time ({@link #put(long, byte[])}
+ * and {@link #clear()} are synchronized), and removed by a single reader
+ * ({@link #peek(long, long)} and {@link #take()}) which never blocks. Every
+ * entry is published with a unique sequence number, and ownership of an
+ * entry's sample buffer passes to whoever atomically replaces that number,
+ * so the reader can't take an entry which was concurrently replaced or
+ * cleared.
+ */
+public class AudioJitterBuffer {
+	/**
+	 * Returned by {@link #peek(long, long)} if there's no entry in the requested range
+	 */
+	public static final long None = Long.MIN_VALUE;
+
+	/**
+	 * Slot state of an empty slot. Occupied slots contain the entry's positive
+	 * sequence number
+	 */
+	private static final long Empty = 0;
+
+	/**
+	 * Slot state of a slot whose entry is being replaced or cleared by the writer
+	 */
+	private static final long Claimed = -1;
+
+	/**
+	 * Frames per slot
+	 */
+	private final int m_packetFrames;
+
+	/**
+	 * Number of slots minus one. The number of slots is a power of two
+	 */
+	private final int m_mask;
+
+	/**
+	 * Slot states, i.e. {@link #Empty}, {@link #Claimed} or an entry's sequence number
+	 */
+	private final AtomicLongArray m_states;
+
+	/**
+	 * Frame times of the entries. Written by the writer before the entry is published
+	 */
+	private final long[] m_frameTimes;
+
+	/**
+	 * Sample buffers of the entries. Written by the writer before the entry is published
+	 */
+	private final byte[][] m_samples;
+
+	/**
+	 * Pool that sample buffers of dropped entries are returned to
+	 */
+	private final SampleBufferPool m_sampleBufferPool;
+
+	/**
+	 * Number of queued entries
+	 */
+	private final AtomicInteger m_count = new AtomicInteger();
+
+	/**
+	 * Sequence number of the last published entry. Writer only
+	 */
+	private long m_sequence = 0;
+
+	/**
+	 * Slot number the reader is at. Reader only
+	 */
+	private long m_readSlot = Long.MIN_VALUE;
+
+	/**
+	 * Slot index and sequence number of the entry returned by the last
+	 * {@link #peek(long, long)}, or -1. Reader only
+	 */
+	private int m_peekedIndex = -1;
+	private long m_peekedSequence = Empty;
+
+	/**
+	 * Number of entries the reader dropped because they were too late. Reader only
+	 */
+	private long m_droppedCount = 0;
+
+	/**
+	 * Creates an empty ring
+	 *
+	 * @param packetFrames frames per slot, i.e. the usual number of frames per packet
+	 * @param minimumSlots minimum number of slots. Rounded up to the next power of two
+	 * @param sampleBufferPool pool to return the sample buffers of dropped entries to
+	 */
+	public AudioJitterBuffer(final int packetFrames, final int minimumSlots, final SampleBufferPool sampleBufferPool) {
+		if (packetFrames <= 0)
+			throw new IllegalArgumentException("Packet size must be positive, but was " + packetFrames);
+		if ((minimumSlots <= 0) || (minimumSlots > (1 << 30)))
+			throw new IllegalArgumentException("Invalid number of slots " + minimumSlots);
+
+		final int slots = Integer.highestOneBit(minimumSlots - 1) << 1;
+		m_packetFrames = packetFrames;
+		m_mask = Math.max(slots, 1) - 1;
+		m_states = new AtomicLongArray(m_mask + 1);
+		m_frameTimes = new long[m_mask + 1];
+		m_samples = new byte[m_mask + 1][];
+		m_sampleBufferPool = sampleBufferPool;
+	}
+
+	/**
+	 * Returns the slot number of a frame time
+	 *
+	 * @param frameTime frame time
+	 * @return slot number, i.e. {@code floor(frameTime / packetFrames)}
+	 */
+	private long slotOf(final long frameTime) {
+		return (frameTime >= 0) ? frameTime / m_packetFrames : -((-frameTime - 1) / m_packetFrames) - 1;
+	}
+
+	/**
+	 * Returns the number of slots
+	 *
+	 * @return capacity in packets
+	 */
+	public int getCapacity() {
+		return m_mask + 1;
+	}
+
+	/**
+	 * Returns the number of queued entries
+	 *
+	 * @return number of entries
+	 */
+	public int size() {
+		return m_count.get();
+	}
+
+	/**
+	 * Returns true if no entries are queued
+	 *
+	 * @return true if empty
+	 */
+	public boolean isEmpty() {
+		return m_count.get() == 0;
+	}
+
+	/**
+	 * Adds an entry. The ring takes ownership of the sample buffer, and
+	 * recycles it if the entry is rejected.
+	 *
+	 * @param frameTime frame time of the entry's first frame
+	 * @param samples sample data
+	 * @return true if the entry was added, false if its slot is occupied
+	 */
+	public synchronized boolean put(final long frameTime, final byte[] samples) {
+		final long slot = slotOf(frameTime);
+		final int index = (int)(slot & m_mask);
+
+		final long state = m_states.get(index);
+		if (state > 0) {
+			/* Slot occupied. Only the writer modifies the entry's fields, so reading them is safe */
+			if (slotOf(m_frameTimes[index]) >= slot) {
+				m_sampleBufferPool.recycle(samples);
+				return false;
+			}
+
+			/* The entry is from an earlier pass around the ring, and thus too late
+			 * for playback. Replace it, unless the reader takes it first
+			 */
+			if (m_states.compareAndSet(index, state, Claimed)) {
+				m_sampleBufferPool.recycle(m_samples[index]);
+				m_count.decrementAndGet();
+			}
+		}
+
+		m_frameTimes[index] = frameTime;
+		m_samples[index] = samples;
+		m_states.set(index, ++m_sequence);
+		m_count.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Removes all entries
+	 */
+	public synchronized void clear() {
+		for(int index=0; index <= m_mask; ++index) {
+			final long state = m_states.get(index);
+			if ((state > 0) && m_states.compareAndSet(index, state, Claimed)) {
+				m_sampleBufferPool.recycle(m_samples[index]);
+				m_samples[index] = null;
+				m_states.set(index, Empty);
+				m_count.decrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Removes the entry in the given slot if it's still the one with the given
+	 * sequence number, and returns its sample buffer. Reader only
+	 *
+	 * @param index slot index
+	 * @param state sequence number of the entry
+	 * @return the entry's sample buffer, or null if the entry is gone
+	 */
+	private byte[] remove(final int index, final long state) {
+		/* The fields must be read before the slot is released to the writer */
+		final byte[] samples = m_samples[index];
+		if (!m_states.compareAndSet(index, state, Empty))
+			return null;
+
+		m_count.decrementAndGet();
+		return samples;
+	}
+
+	/**
+	 * Drops the entry in the given slot if it's still the one with the given
+	 * sequence number. Reader only
+	 *
+	 * @param index slot index
+	 * @param state sequence number of the entry
+	 */
+	private void drop(final int index, final long state) {
+		final byte[] samples = remove(index, state);
+		if (samples != null) {
+			m_sampleBufferPool.recycle(samples);
+			++m_droppedCount;
+		}
+	}
+
+	/**
+	 * Moves the reader to the given slot, dropping all entries in the slots in between
+	 *
+	 * @param slot slot number
+	 */
+	private void advanceTo(final long slot) {
+		if ((m_readSlot != Long.MIN_VALUE) && (slot <= m_readSlot)) {
+			m_readSlot = slot;
+			return;
+		}
+
+		if ((m_readSlot == Long.MIN_VALUE) || (slot - m_readSlot > m_mask)) {
+			/* First read, or passed a whole round, so check every slot */
+			for(int index=0; index <= m_mask; ++index) {
+				final long state = m_states.get(index);
+				if ((state > 0) && (slotOf(m_frameTimes[index]) < slot))
+					drop(index, state);
+			}
+		}
+		else {
+			for(long s = m_readSlot; s < slot; ++s) {
+				final int index = (int)(s & m_mask);
+				final long state = m_states.get(index);
+				if ((state > 0) && (slotOf(m_frameTimes[index]) < slot))
+					drop(index, state);
+			}
+		}
+
+		m_readSlot = slot;
+	}
+
+	/**
+	 * Finds the earliest entry with a frame time in {@code [fromFrameTime, toFrameTime)}.
+	 * Entries with earlier frame times in the slots passed over are dropped. Reader only.
+	 *
+	 * @param fromFrameTime start of the range
+	 * @param toFrameTime end of the range
+	 * @return the entry's frame time, or {@link #None}
+	 */
+	public long peek(final long fromFrameTime, final long toFrameTime) {
+		m_peekedIndex = -1;
+		advanceTo(slotOf(fromFrameTime));
+
+		final long lastSlot = slotOf(toFrameTime - 1);
+		for(long s = m_readSlot; s <= lastSlot; ++s) {
+			final int index = (int)(s & m_mask);
+			final long state = m_states.get(index);
+			if (state <= 0)
+				continue;
+
+			/* Validated by the atomic state update in remove() */
+			final long frameTime = m_frameTimes[index];
+			if (frameTime < fromFrameTime) {
+				drop(index, state);
+			}
+			else if (frameTime < toFrameTime) {
+				m_peekedIndex = index;
+				m_peekedSequence = state;
+				return frameTime;
+			}
+		}
+
+		return None;
+	}
+
+	/**
+	 * Removes the entry returned by the last {@link #peek(long, long)} and
+	 * passes ownership of its sample buffer to the caller. Reader only
+	 *
+	 * @return sample data, or null if the entry was removed in the meantime
+	 */
+	public byte[] take() {
+		if (m_peekedIndex < 0)
+			return null;
+
+		final byte[] samples = remove(m_peekedIndex, m_peekedSequence);
+		m_peekedIndex = -1;
+		return samples;
+	}
+
+	/**
+	 * Returns the number of entries dropped by the reader because they were too late
+	 *
+	 * @return number of dropped entries
+	 */
+	public long getDroppedCount() {
+		return m_droppedCount;
+	}
+
+	@Override
+	public String toString() {
+		return "Jitter buffer with " + size() + " of " + getCapacity() + " slots of " + m_packetFrames + " frames occupied";
+	}
+}
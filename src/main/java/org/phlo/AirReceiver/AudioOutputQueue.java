@@ -18,7 +18,8 @@
 package org.phlo.AirReceiver;
 
 import java.util.Arrays;
-import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.locks.LockSupport;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -29,6 +30,11 @@ import javax.sound.sampled.*;
  * 
  * Serves an an {@link AudioClock} and allows samples to be queued
  * for playback at a specific time.
+ * 
+ * The clock state is kept in volatile fields which each have a single
+ * writer - the enqueuer thread advances the line time, the timing handler
+ * adjusts the frame time offset. Reading the clock thus never blocks,
+ * and the enqueuer thread never waits for the network threads.
  */
 public class AudioOutputQueue implements AudioClock {
 	private static Logger s_logger = Logger.getLogger(AudioOutputQueue.class.getName());
@@ -36,6 +42,7 @@ public class AudioOutputQueue implements AudioClock {
 	private static final double QueueLengthMaxSeconds = 10;
 	private static final double BufferSizeSeconds = 0.05;
 	private static final double TimingPrecision = 0.001;
+	private static final int QueueSlackPackets = 16;
 
 	/**
 	 * Signals that the queue is being closed.
@@ -77,6 +84,23 @@ public class AudioOutputQueue implements AudioClock {
 	 */
 	private final SourceDataLine m_line;
 
+	/**
+	 * Size of the line's buffer in frames
+	 */
+	private final int m_lineBufferFrames;
+
+	/**
+	 * Number of buffered frames below which the enqueuer stops waiting
+	 * for missing audio data and writes silence instead
+	 */
+	private final int m_lineLowWaterFrames;
+
+	/**
+	 * Released by the enqueuer thread once the line is running, or
+	 * the thread died
+	 */
+	private final CountDownLatch m_lineStarted = new CountDownLatch(1);
+
 	/**
 	 * The last frame written to the line.
 	 * Used to generate filler data
@@ -84,9 +108,39 @@ public class AudioOutputQueue implements AudioClock {
 	private final byte[] m_lineLastFrame;
 
 	/**
-	 * Packet queue, indexed by playback time
+	 * Packet queue, indexed by playback time. Filled by {@link #enqueue(long, byte[])},
+	 * drained by the enqueuer thread
+	 */
+	private final AudioJitterBuffer m_queue;
+
+	/**
+	 * Recycled sample buffers of one packet's size. Buffers are returned
+	 * once they have been written to the line or were dropped
+	 */
+	private final SampleBufferPool m_sampleBufferPool;
+
+	/**
+	 * Buffer used to convert samples before they're written to the line,
+	 * if the stream's format isn't the line's format. Only used by the
+	 * enqueuer thread, grown as necessary
+	 */
+	private byte[] m_lineBuffer = new byte[0];
+
+	/**
+	 * Silence in the line's format, i.e. {@link #m_lineLastFrame} repeated to
+	 * fill the line's buffer. Only used by the enqueuer thread
 	 */
-	private final ConcurrentSkipListMap<Long, byte[]> m_queue = new ConcurrentSkipListMap<Long, byte[]>();
+	private final byte[] m_lineSilence;
+
+	/**
+	 * The frame {@link #m_lineSilence} was rendered from. Only used by the enqueuer thread
+	 */
+	private final byte[] m_lineSilenceFrame;
+
+	/**
+	 * True once {@link #m_lineSilence} has been rendered. Only used by the enqueuer thread
+	 */
+	private boolean m_lineSilenceValid = false;
 
 	/**
 	 * Enqueuer thread
@@ -94,19 +148,20 @@ public class AudioOutputQueue implements AudioClock {
 	private final Thread m_queueThread = new Thread(new EnQueuer());
 
 	/**
-	 * Number of frames appended to the line
+	 * Number of frames appended to the line. Written only by the enqueuer thread
 	 */
-	private long m_lineFramesWritten = 0;
+	private volatile long m_lineFramesWritten = 0;
 
 	/**
-	 * Largest frame time seen so far
+	 * Largest frame time seen so far. Only used for logging, so
+	 * concurrent updates may lose each other
 	 */
-	private long m_latestSeenFrameTime = 0;
+	private volatile long m_latestSeenFrameTime = 0;
 
 	/**
-	 * The frame time corresponding to line time zero
+	 * The frame time corresponding to line time zero. Written only by {@link #setFrameTime(long, double)}
 	 */
-	private long m_frameTimeOffset = 0;
+	private volatile long m_frameTimeOffset = 0;
 
 	/**
 	 * The seconds time corresponding to line time zero
@@ -116,7 +171,7 @@ public class AudioOutputQueue implements AudioClock {
 	/**
 	 * Requested line gain
 	 */
-	private float m_requestedGain = 0.0f;
+	private volatile float m_requestedGain = 0.0f;
 
 	/**
 	 * Enqueuer thread
@@ -136,61 +191,74 @@ public class AudioOutputQueue implements AudioClock {
 
 				boolean lineMuted = true;
 				boolean didWarnGap = false;
+				long droppedCount = 0;
 				while (!m_closing) {
-					if (!m_queue.isEmpty()) {
-						/* Queue filled */
-
-						/* If the gap between the next packet and the end of line is
-						 * negligible (less than one packet), we write it to the line.
-						 * Otherwise, we fill the line buffer with silence and hope for
-						 * further packets to appear in the queue
-						 */
-						final long entryFrameTime = m_queue.firstKey();
-						final long entryLineTime = convertFrameToLineTime(entryFrameTime);
-						final long gapFrames = entryLineTime - getNextLineTime();
-						if (gapFrames < -m_packetSizeFrames) {
-							/* Too late for playback */
-							s_logger.warning("Audio data was scheduled for playback " + (-gapFrames) + " frames ago, skipping");
-
-							m_queue.remove(entryFrameTime);
+					/* The line becomes active once it has data to play */
+					if ((m_lineStarted.getCount() > 0) && m_line.isActive())
+						m_lineStarted.countDown();
+
+					/* If the gap between the next packet and the end of line is
+					 * negligible (less than one packet), we write it to the line.
+					 * Packets scheduled earlier than that are too late for playback
+					 * and are dropped by the queue.
+					 */
+					final long nextFrameTime = getNextFrameTime();
+					final long entryFrameTime = m_queue.peek(nextFrameTime - m_packetSizeFrames, nextFrameTime + m_packetSizeFrames);
+					if (m_queue.getDroppedCount() != droppedCount) {
+						s_logger.warning("Audio data of " + (m_queue.getDroppedCount() - droppedCount) + " packets was scheduled for playback before frame time " + (nextFrameTime - m_packetSizeFrames) + ", skipping");
+						droppedCount = m_queue.getDroppedCount();
+					}
+
+					if (entryFrameTime != AudioJitterBuffer.None) {
+						/* Get sample data. Null if the queue was flushed in the meantime */
+						final byte[] nextPlaybackSamples = m_queue.take();
+						if (nextPlaybackSamples == null)
 							continue;
+
+						/* Negligible gap between packet and line end. Prepare packet for playback */
+						didWarnGap = false;
+
+						/* Unmute line in case it was muted previously */
+						if (lineMuted) {
+							s_logger.info("Audio data available, un-muting line");
+
+							lineMuted = false;
+							applyGain();
 						}
-						else if (gapFrames < m_packetSizeFrames) {
-							/* Negligible gap between packet and line end. Prepare packet for playback */
-							didWarnGap = false;
-
-							/* Unmute line in case it was muted previously */
-							if (lineMuted) {
-								s_logger.info("Audio data available, un-muting line");
-
-								lineMuted = false;
-								applyGain();
-							}
-							else if (getLineGain() != m_requestedGain) {
-								applyGain();
-							}
-
-							/* Get sample data and do sanity checks */
-							final byte[] nextPlaybackSamples = m_queue.remove(entryFrameTime);
-							int nextPlaybackSamplesLength = nextPlaybackSamples.length;
-							if (nextPlaybackSamplesLength % m_bytesPerFrame != 0) {
-								s_logger.severe("Audio data contains non-integral number of frames, ignore last " + (nextPlaybackSamplesLength % m_bytesPerFrame) + " bytes");
-
-								nextPlaybackSamplesLength -= nextPlaybackSamplesLength % m_bytesPerFrame;
-							}
-
-							/* Append packet to line */
-							s_logger.finest("Audio data containing " + nextPlaybackSamplesLength / m_bytesPerFrame + " frames for playback time " + entryFrameTime + " found in queue, appending to the output line");
-							appendFrames(nextPlaybackSamples, 0, nextPlaybackSamplesLength, entryLineTime);
-							continue;
+						else if (getLineGain() != m_requestedGain) {
+							applyGain();
+						}
+
+						/* Do sanity checks */
+						int nextPlaybackSamplesLength = nextPlaybackSamples.length;
+						if (nextPlaybackSamplesLength % m_bytesPerFrame != 0) {
+							s_logger.severe("Audio data contains non-integral number of frames, ignore last " + (nextPlaybackSamplesLength % m_bytesPerFrame) + " bytes");
+
+							nextPlaybackSamplesLength -= nextPlaybackSamplesLength % m_bytesPerFrame;
 						}
-						else {
-							/* Gap between packet and line end. Warn */
 
-							if (!didWarnGap) {
-								didWarnGap = true;
-								s_logger.warning("Audio data missing for frame time " + getNextLineTime() + " (currently " + gapFrames + " frames), writing " + m_packetSizeFrames + " frames of silence");
-							}
+						/* Append packet to line */
+						s_logger.finest("Audio data containing " + nextPlaybackSamplesLength / m_bytesPerFrame + " frames for playback time " + entryFrameTime + " found in queue, appending to the output line");
+						appendFrames(nextPlaybackSamples, 0, nextPlaybackSamplesLength, convertFrameToLineTime(entryFrameTime));
+						m_sampleBufferPool.recycle(nextPlaybackSamples);
+						continue;
+					}
+
+					/* No audio data for the line end yet. Unless the line is about to run dry, we
+					 * wait for it to drain. enqueue() wakes us early if the missing packet arrives
+					 */
+					final long lineFillFrames = getLineFillFrames();
+					if (lineFillFrames > m_lineLowWaterFrames) {
+						LockSupport.parkNanos(convertFramesToNanos(lineFillFrames - m_lineLowWaterFrames));
+						continue;
+					}
+
+					if (!m_queue.isEmpty()) {
+						/* Queue filled, but gap between the next packet and line end. Warn */
+
+						if (!didWarnGap) {
+							didWarnGap = true;
+							s_logger.warning("Audio data missing for frame time " + nextFrameTime + ", writing " + m_packetSizeFrames + " frames of silence");
 						}
 					}
 					else {
@@ -199,8 +267,12 @@ public class AudioOutputQueue implements AudioClock {
 						if (!lineMuted) {
 							lineMuted = true;
 							setLineGain(Float.NEGATIVE_INFINITY);
-							s_logger.fine("Audio data ended at frame time " + getNextLineTime() + ", writing " + m_packetSizeFrames + " frames of silence and muted line");
+							s_logger.fine("Audio data ended at frame time " + nextFrameTime + ", writing silence and muted line");
 						}
+
+						/* Nothing to wait for, so fill the whole line buffer to sleep longer */
+						appendSilence((int)Math.max(m_lineBufferFrames - lineFillFrames, m_packetSizeFrames));
+						continue;
 					}
 
 					appendSilence(m_packetSizeFrames);
@@ -215,6 +287,7 @@ public class AudioOutputQueue implements AudioClock {
 				s_logger.log(Level.SEVERE, "Audio output thread died unexpectedly", e);
 			}
 			finally {
+				m_lineStarted.countDown();
 				setLineGain(Float.NEGATIVE_INFINITY);
 				m_line.stop();
 				m_line.close();
@@ -272,11 +345,42 @@ public class AudioOutputQueue implements AudioClock {
 			}
 		}
 
-		private void appendSilence(final int frames) {
-			final byte[] silenceFrames = new byte[frames * m_bytesPerFrame];
-			for(int i = 0; i < silenceFrames.length; ++i)
-				silenceFrames[i] = m_lineLastFrame[i % m_bytesPerFrame];
-			appendFrames(silenceFrames, 0, silenceFrames.length);
+		/**
+		 * Append the given number of silent frames to the line, i.e. repeat the
+		 * last frame written. The silence is written from a pre-rendered block,
+		 * which is rebuilt only if the last frame changed.
+		 *
+		 * @param frames number of frames
+		 */
+		private void appendSilence(int frames) {
+			if (!m_lineSilenceValid || !Arrays.equals(m_lineSilenceFrame, m_lineLastFrame))
+				renderSilence();
+
+			while (frames > 0) {
+				final int len = Math.min(frames * m_bytesPerFrame, m_lineSilence.length);
+				writeLine(m_lineSilence, 0, len);
+				frames -= len / m_bytesPerFrame;
+			}
+		}
+
+		/**
+		 * Fills {@link #m_lineSilence} with copies of the last frame written,
+		 * converted to the line's format
+		 */
+		private void renderSilence() {
+			System.arraycopy(m_lineLastFrame, 0, m_lineSilenceFrame, 0, m_bytesPerFrame);
+
+			System.arraycopy(m_lineLastFrame, 0, m_lineSilence, 0, m_bytesPerFrame);
+			if (m_convertUnsignedToSigned) {
+				for(int i=(m_format.isBigEndian() ? 0 : 1); i < m_bytesPerFrame; i += 2)
+					m_lineSilence[i] = (byte)((m_lineSilence[i] & 0xff) - 0x80);
+			}
+
+			/* Double the rendered prefix until the block is full */
+			for(int len = m_bytesPerFrame; len < m_lineSilence.length; len *= 2)
+				System.arraycopy(m_lineSilence, 0, m_lineSilence, len, Math.min(len, m_lineSilence.length - len));
+
+			m_lineSilenceValid = true;
 		}
 
 		/**
@@ -296,64 +400,223 @@ public class AudioOutputQueue implements AudioClock {
 			if (len <= 0)
 				return;
 
-			/* Convert samples if necessary */
-			final byte[] samplesConverted = Arrays.copyOfRange(samples, off, off+len);
 			if (m_convertUnsignedToSigned) {
 				/* The line expects signed PCM samples, so we must
 				 * convert the unsigned PCM samples to signed.
 				 * Note that this only affects the high bytes!
 				 */
-				for(int i=0; i < samplesConverted.length; i += 2)
+				if (m_lineBuffer.length < len)
+					m_lineBuffer = new byte[len];
+				final byte[] samplesConverted = m_lineBuffer;
+				System.arraycopy(samples, off, samplesConverted, 0, len);
+				for(int i=(m_format.isBigEndian() ? 0 : 1); i < len; i += 2)
 					samplesConverted[i] = (byte)((samplesConverted[i] & 0xff) - 0x80);
+
+				writeLine(samplesConverted, 0, len);
+			}
+			else {
+				/* Samples are in the line's format already, write them as they are */
+				writeLine(samples, off, len);
 			}
 
-			/* Write samples to line */
-			final int bytesWritten = m_line.write(samplesConverted, 0, samplesConverted.length);
+			/* Remember the last frame, silence repeats it */
+			for(int b=0; b < m_bytesPerFrame; ++b)
+				m_lineLastFrame[b] = samples[off + len - (m_bytesPerFrame - b)];
+		}
+
+		/**
+		 * Writes the range [off,off+len) of the provided sample data, which must
+		 * already be in the line's format, to the line.
+		 *
+		 * @param lineSamples sample data in the line's format
+		 * @param off sample data offset
+		 * @param len sample data length
+		 */
+		private void writeLine(final byte[] lineSamples, final int off, final int len) {
+			/* Write samples to line, once there's room for them */
+			awaitLineRoom(len / m_bytesPerFrame);
+			final int bytesWritten = m_line.write(lineSamples, off, len);
 			if (bytesWritten != len)
-				s_logger.warning("Audio output line accepted only " + bytesWritten + " bytes of sample data while trying to write " + samples.length + " bytes");
+				s_logger.warning("Audio output line accepted only " + bytesWritten + " bytes of sample data while trying to write " + len + " bytes");
+
+			/* Update state. We're the only writer, so the increment is safe */
+			final long lineFramesWritten = m_lineFramesWritten + bytesWritten / m_bytesPerFrame;
+			m_lineFramesWritten = lineFramesWritten;
+
+			if (s_logger.isLoggable(Level.FINEST))
+				s_logger.finest("Audio output line end is now at " + lineFramesWritten + " after writing " + bytesWritten / m_bytesPerFrame + " frames");
+		}
+
+		/**
+		 * Waits until the line's buffer has room for the given number of frames,
+		 * or all of it, whichever is less. Returns early if the queue is being closed.
+		 *
+		 * @param frames number of frames
+		 */
+		private void awaitLineRoom(final int frames) {
+			final int roomFrames = Math.min(frames, m_lineBufferFrames);
+			while (!m_closing) {
+				final long missingFrames = roomFrames - (m_lineBufferFrames - getLineFillFrames());
+				if (missingFrames <= 0)
+					break;
+
+				LockSupport.parkNanos(convertFramesToNanos(missingFrames));
+			}
+		}
+
+		/**
+		 * Returns the number of frames written to the line but not yet played.
+		 * Only called by the enqueuer thread, which is the only one updating
+		 * {@link #m_lineFramesWritten}
+		 *
+		 * @return number of buffered frames
+		 */
+		private long getLineFillFrames() {
+			return Math.max(m_lineFramesWritten - m_line.getLongFramePosition(), 0);
+		}
+
+		/**
+		 * Returns the playback duration of the given number of frames
+		 *
+		 * @param frames number of frames
+		 * @return duration in nanoseconds
+		 */
+		private long convertFramesToNanos(final long frames) {
+			return (long)(frames * 1e9 / m_sampleRate);
+		}
+	}
+
+	/**
+	 * Returns the format of lines opened for the given stream format. If the
+	 * stream format is unsigned, it is converted while being written to the line
+	 * (slower).
+	 *
+	 * @param streamFormat format of the queued samples
+	 * @return format of the line
+	 */
+	private static AudioFormat getLineFormat(final AudioFormat streamFormat) {
+		if (AudioFormat.Encoding.PCM_UNSIGNED.equals(streamFormat.getEncoding()))
+			return createSignedFormat(streamFormat, streamFormat.isBigEndian());
+		else
+			return streamFormat;
+	}
+
+	/**
+	 * Returns a signed PCM format with the given byte order, which
+	 * otherwise matches the given format
+	 *
+	 * @param format format
+	 * @param bigEndian byte order
+	 * @return signed PCM format
+	 */
+	private static AudioFormat createSignedFormat(final AudioFormat format, final boolean bigEndian) {
+		return new AudioFormat(
+			format.getSampleRate(),
+			format.getSampleSizeInBits(),
+			format.getChannels(),
+			true,
+			bigEndian
+		);
+	}
 
-			/* Update state */
-			synchronized(AudioOutputQueue.this) {
-				m_lineFramesWritten += bytesWritten / m_bytesPerFrame;
-				for(int b=0; b < m_bytesPerFrame; ++b)
-					m_lineLastFrame[b] = samples[off + len - (m_bytesPerFrame - b)];
+	/**
+	 * Stream format passed to the last {@link #negotiateLineFormat(AudioFormat)} call
+	 */
+	private static AudioFormat s_negotiatedStreamFormat = null;
 
-				s_logger.finest("Audio output line end is now at " + getNextLineTime() + " after writing " + len / m_bytesPerFrame + " frames");
+	/**
+	 * Result of the last {@link #negotiateLineFormat(AudioFormat)} call
+	 */
+	private static AudioFormat s_negotiatedLineFormat = null;
+
+	/**
+	 * Picks the PCM format that audio output lines support natively for streams of
+	 * the given sample rate, sample size and number of channels. Decoders which
+	 * produce that format allow samples to be written to the line without any conversion.
+	 * <p>
+	 * Lines are always signed (OSX doesn't support unsigned lines). The byte order of
+	 * the given format is preferred, but the other byte order is used if that's what the
+	 * installed mixers support. The result is cached, so JavaSound is asked only once.
+	 *
+	 * @param streamFormat format of the stream
+	 * @return native line format
+	 */
+	public static synchronized AudioFormat negotiateLineFormat(final AudioFormat streamFormat) {
+		if ((s_negotiatedStreamFormat != null) && s_negotiatedStreamFormat.matches(streamFormat))
+			return s_negotiatedLineFormat;
+
+		final AudioFormat[] candidates = new AudioFormat[] {
+			createSignedFormat(streamFormat, streamFormat.isBigEndian()),
+			createSignedFormat(streamFormat, !streamFormat.isBigEndian())
+		};
+
+		/* If no mixer supports any candidate, opening the line fails later on with a proper error */
+		AudioFormat lineFormat = candidates[0];
+		for(final AudioFormat candidate: candidates) {
+			if (AudioSystem.isLineSupported(new DataLine.Info(SourceDataLine.class, candidate))) {
+				lineFormat = candidate;
+				break;
 			}
 		}
+		s_logger.info("Audio output line format for " + streamFormat + " is " + lineFormat);
+
+		s_negotiatedStreamFormat = streamFormat;
+		s_negotiatedLineFormat = lineFormat;
+		return lineFormat;
 	}
 
 	AudioOutputQueue(final AudioStreamInformationProvider streamInfoProvider) throws LineUnavailableException {
+		this(streamInfoProvider, null);
+	}
+
+	/**
+	 * Creates an output queue which plays the queued samples on the given line
+	 *
+	 * @param streamInfoProvider format of the queued samples
+	 * @param line line to open, or null to obtain one from JavaSound
+	 * @throws LineUnavailableException if the line cannot be opened
+	 */
+	AudioOutputQueue(final AudioStreamInformationProvider streamInfoProvider, final SourceDataLine line) throws LineUnavailableException {
 		final AudioFormat audioFormat = streamInfoProvider.getAudioFormat();
 
 		/* OSX does not support unsigned PCM lines. We thust always request
 		 * a signed line, and convert from unsigned to signed if necessary
 		 */
-		if (AudioFormat.Encoding.PCM_SIGNED.equals(audioFormat.getEncoding())) {
-			m_format = audioFormat;
-			m_convertUnsignedToSigned = false;
-		}
-		else if (AudioFormat.Encoding.PCM_UNSIGNED.equals(audioFormat.getEncoding())) {
-			m_format = new AudioFormat(
-				audioFormat.getSampleRate(),
-				audioFormat.getSampleSizeInBits(),
-				audioFormat.getChannels(),
-				true,
-				audioFormat.isBigEndian()
-			);
-			m_convertUnsignedToSigned = true;
-		}
-		else {
+		if (
+			!AudioFormat.Encoding.PCM_SIGNED.equals(audioFormat.getEncoding()) &&
+			!AudioFormat.Encoding.PCM_UNSIGNED.equals(audioFormat.getEncoding())
+		)
 			throw new LineUnavailableException("Audio encoding " + audioFormat.getEncoding() + " is not supported");
-		}
+		m_format = getLineFormat(audioFormat);
+		m_convertUnsignedToSigned = (m_format != audioFormat);
+		if (m_convertUnsignedToSigned)
+			s_logger.info("Audio format " + audioFormat + " differs from the line's format " + m_format + ", samples will be converted");
 
 		/* Audio format-dependent stuff */
 		m_packetSizeFrames = streamInfoProvider.getFramesPerPacket();
 		m_bytesPerFrame = m_format.getChannels() * m_format.getSampleSizeInBits() / 8;
 		m_sampleRate = m_format.getSampleRate();
 		m_lineLastFrame = new byte[m_bytesPerFrame];
-		for(int b=0; b < m_lineLastFrame.length; ++b)
-			m_lineLastFrame[b] = (b % 2 == 0) ? (byte)-128 : (byte)0;
+		if (m_convertUnsignedToSigned) {
+			/* Unsigned silence has only the high bytes' top bits set */
+			for(int b=(m_format.isBigEndian() ? 0 : 1); b < m_lineLastFrame.length; b += 2)
+				m_lineLastFrame[b] = (byte)-128;
+		}
+
+		/* Keep enough sample buffers around for a full queue */
+		m_sampleBufferPool = new SampleBufferPool(
+			m_packetSizeFrames * m_bytesPerFrame,
+			(int)Math.ceil(QueueLengthMaxSeconds * m_sampleRate / m_packetSizeFrames) + 1
+		);
+
+		/* One slot per packet of a full queue, plus some slack for packets the
+		 * enqueuer thread hasn't dropped yet
+		 */
+		m_queue = new AudioJitterBuffer(
+			m_packetSizeFrames,
+			(int)Math.ceil(QueueLengthMaxSeconds * m_sampleRate / m_packetSizeFrames) + QueueSlackPackets,
+			m_sampleBufferPool
+		);
 
 		/* Compute desired line buffer size and obtain a line */
 		final int desiredBufferSize = (int)Math.pow(2, Math.ceil(Math.log(BufferSizeSeconds * m_sampleRate * m_bytesPerFrame) / Math.log(2.0)));
@@ -362,10 +625,18 @@ public class AudioOutputQueue implements AudioClock {
 			m_format,
 			desiredBufferSize
 		);
-		m_line = (SourceDataLine)AudioSystem.getLine(lineInfo);
+		m_line = (line != null) ? line : (SourceDataLine)AudioSystem.getLine(lineInfo);
 		m_line.open(m_format, desiredBufferSize);
 		s_logger.info("Audio output line created and openend. Requested buffer of " + desiredBufferSize / m_bytesPerFrame  + " frames, got " + m_line.getBufferSize() / m_bytesPerFrame + " frames");
 
+		/* Wait for missing audio data until no more than two packets are left to play */
+		m_lineBufferFrames = m_line.getBufferSize() / m_bytesPerFrame;
+		m_lineLowWaterFrames = Math.min(2 * m_packetSizeFrames, m_lineBufferFrames / 2);
+
+		/* Silence is written in chunks of up to a full line buffer */
+		m_lineSilence = new byte[Math.max(m_lineBufferFrames, m_packetSizeFrames) * m_bytesPerFrame];
+		m_lineSilenceFrame = new byte[m_bytesPerFrame];
+
 		/* Start enqueuer thread and wait for the line to start.
 		 * The wait guarantees that the AudioClock functions return
 		 * sensible values right after construction
@@ -374,8 +645,17 @@ public class AudioOutputQueue implements AudioClock {
 		m_queueThread.setName("Audio Enqueuer");
 		m_queueThread.setPriority(Thread.MAX_PRIORITY);
 		m_queueThread.start();
-		while (m_queueThread.isAlive() && !m_line.isActive())
-			Thread.yield();
+		boolean interrupted = false;
+		while (m_lineStarted.getCount() > 0) {
+			try {
+				m_lineStarted.await();
+			}
+			catch (final InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
 
 		/* Initialize the seconds time offset now that the line is running. */
 		m_secondsTimeOffset = 2208988800.0 +  System.currentTimeMillis() * 1e-3;
@@ -417,7 +697,7 @@ public class AudioOutputQueue implements AudioClock {
 		}
 	}
 
-	private synchronized void applyGain() {
+	private void applyGain() {
 		setLineGain(m_requestedGain);
 	}
 
@@ -426,7 +706,7 @@ public class AudioOutputQueue implements AudioClock {
 	 *
 	 * @param gain desired gain
 	 */
-	public synchronized void setGain(final float gain) {
+	public void setGain(final float gain) {
 		m_requestedGain = gain;
 	}
 
@@ -435,7 +715,7 @@ public class AudioOutputQueue implements AudioClock {
 	 *
 	 * @param gain desired gain
 	 */
-	public synchronized float getGain() {
+	public float getGain() {
 		return m_requestedGain;
 	}
 
@@ -448,13 +728,37 @@ public class AudioOutputQueue implements AudioClock {
 	}
 
 	/**
-	 * Adds sample data to the queue
+	 * Returns a buffer for sample data which is to be passed to {@link #enqueue(long, byte[])}.
+	 * Buffers of one packet's size are recycled once they have been played, so
+	 * decoders can write their output directly into the buffer which is queued.
+	 *
+	 * @param length buffer length in bytes
+	 * @return buffer with undefined content
+	 */
+	public byte[] obtainSampleBuffer(final int length) {
+		return m_sampleBufferPool.obtain(length);
+	}
+
+	/**
+	 * Returns the pool of sample buffers used by {@link #obtainSampleBuffer(int)}
+	 *
+	 * @return sample buffer pool
+	 */
+	public SampleBufferPool getSampleBufferPool() {
+		return m_sampleBufferPool;
+	}
+
+	/**
+	 * Adds sample data to the queue. The queue takes ownership of
+	 * the sample data, which must not be modified afterwards.
+	 * May be called by multiple threads, insertions into the jitter
+	 * buffer are serialized.
 	 *
 	 * @param playbackRemoteStartFrameTime start time of sample data
 	 * @param playbackSamples sample data
 	 * @return true if the sample data was added to the queue
 	 */
-	public synchronized boolean enqueue(final long frameTime, final byte[] frames) {
+	public boolean enqueue(final long frameTime, final byte[] frames) {
 		/* Playback time of packet */
 		final double packetSeconds = (double)frames.length / (double)(m_bytesPerFrame * m_sampleRate);
 		
@@ -465,11 +769,13 @@ public class AudioOutputQueue implements AudioClock {
 			(convertFrameToLineTime(frameTime) + frames.length / m_bytesPerFrame - getNextLineTime()) /
 			m_sampleRate;
 
-		m_latestSeenFrameTime = Math.max(m_latestSeenFrameTime, frameTime);
+		if (frameTime > m_latestSeenFrameTime)
+			m_latestSeenFrameTime = frameTime;
 
 		if (delay < -packetSeconds) {
 			/* The whole packet is scheduled to be played in the past */
 			s_logger.warning("Audio data arrived " + -(delay) + " seconds too late, dropping");
+			m_sampleBufferPool.recycle(frames);
 			return false;
 		}
 		else if (delay > QueueLengthMaxSeconds) {
@@ -477,10 +783,20 @@ public class AudioOutputQueue implements AudioClock {
 			 * We reject it, since this is probably the result of some timing discrepancies
 			 */
 			s_logger.warning("Audio data arrived " + delay + " seconds too early, dropping");
+			m_sampleBufferPool.recycle(frames);
 			return false;
 		}
 
-		m_queue.put(frameTime, frames);
+		/* The queue recycles the sample data if the packet's slot is taken */
+		if (!m_queue.put(frameTime, frames)) {
+			s_logger.fine("Audio data for frame time " + frameTime + " overlaps queued audio data, dropping");
+			return false;
+		}
+
+		/* Wake the enqueuer thread if it's waiting for this packet */
+		if (frameTime - getNextFrameTime() < m_packetSizeFrames)
+			LockSupport.unpark(m_queueThread);
+
 		return true;
 	}
 
@@ -492,14 +808,16 @@ public class AudioOutputQueue implements AudioClock {
 	}
 
 	@Override
-	public synchronized void setFrameTime(final long frameTime, final double secondsTime) {
+	public void setFrameTime(final long frameTime, final double secondsTime) {
 		final double ageSeconds = getNowSecondsTime() - secondsTime;
 		final long lineTime = Math.round((secondsTime - m_secondsTimeOffset) * m_sampleRate);
 
 		final long frameTimeOffsetPrevious = m_frameTimeOffset;
-		m_frameTimeOffset = frameTime - lineTime;
+		final long frameTimeOffset = frameTime - lineTime;
+		m_frameTimeOffset = frameTimeOffset;
 
-		s_logger.fine("Frame time adjusted by " + (m_frameTimeOffset - frameTimeOffsetPrevious) + " based on timing information " + ageSeconds + " seconds old and " + (m_latestSeenFrameTime - frameTime) + " frames before latest seen frame time");
+		if (s_logger.isLoggable(Level.FINE))
+			s_logger.fine("Frame time adjusted by " + (frameTimeOffset - frameTimeOffsetPrevious) + " based on timing information " + ageSeconds + " seconds old and " + (m_latestSeenFrameTime - frameTime) + " frames before latest seen frame time");
 	}
 
 	@Override
@@ -527,7 +845,7 @@ public class AudioOutputQueue implements AudioClock {
 		return m_secondsTimeOffset + (frameTime - m_frameTimeOffset) / m_sampleRate;
 	}
 
-	private synchronized long getNextLineTime() {
+	private long getNextLineTime() {
 		return m_lineFramesWritten;
 	}
 
@@ -535,7 +853,7 @@ public class AudioOutputQueue implements AudioClock {
 		return m_line.getLongFramePosition();
 	}
 
-	private synchronized long convertFrameToLineTime(final long entryFrameTime) {
+	private long convertFrameToLineTime(final long entryFrameTime) {
 		return entryFrameTime - m_frameTimeOffset;
 	}
 }
@@ -0,0 +1,42 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.phlo.AirReceiver;
+
+/**
+ * Determines which threads handle the messages of a channel
+ */
+public enum ExecutionPolicy {
+	/**
+	 * Messages are handled directly by the channel's I/O thread. Avoids
+	 * the hand-off to another thread, but blocks the I/O thread (and all
+	 * other channels it serves) while a message is handled.
+	 */
+	Inline,
+
+	/**
+	 * Messages are handled by an executor reserved for channels of that type
+	 */
+	Dedicated,
+
+	/**
+	 * Messages are handled by the executor shared by all channels
+	 * using this policy, see {@link AirReceiver#ChannelExecutionHandler}
+	 */
+	Shared
+}
@@ -20,21 +20,22 @@ package org.phlo.AirReceiver;
 import java.net.*;
 import java.nio.charset.*;
 import java.util.*;
-import java.util.concurrent.ExecutorService;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.*;
 
 import javax.crypto.*;
 import javax.crypto.spec.*;
+import javax.sound.sampled.AudioFormat;
 
 import org.jboss.netty.bootstrap.ConnectionlessBootstrap;
 import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.*;
 import org.jboss.netty.channel.group.*;
-import org.jboss.netty.channel.socket.nio.NioDatagramChannelFactory;
+import org.jboss.netty.channel.socket.DatagramChannelFactory;
 import org.jboss.netty.handler.codec.http.*;
 import org.jboss.netty.handler.codec.rtsp.*;
+import org.jboss.netty.handler.execution.ExecutionHandler;
 
 /**
  * Handles the configuration, creation and destruction of RTP channels.
@@ -50,6 +51,40 @@ public class RaopAudioHandler extends SimpleChannelUpstreamHandler {
 	private static final String HeaderTransport = "Transport";
 	private static final String HeaderSession = "Session";
 
+	/**
+	 * Immutable snapshot of the session state required to route packets.
+	 * <p>
+	 * The RTSP request handlers publish a new snapshot through {@link RaopAudioHandler#m_routing}
+	 * whenever they change one of the fields it mirrors. Packet handlers only ever read
+	 * that volatile reference, and thus never wait for RTSP requests to be processed.
+	 */
+	private static final class Routing {
+		public static final Routing Empty = new Routing(null, null, null, null, null, null);
+
+		public final Channel audioChannel;
+		public final Channel controlChannel;
+		public final Channel timingChannel;
+		public final AudioOutputQueue audioOutputQueue;
+		public final RaopRtpLatencyHandler latencyHandler;
+		public final RaopRtpStatistics statistics;
+
+		public Routing(
+			final Channel _audioChannel,
+			final Channel _controlChannel,
+			final Channel _timingChannel,
+			final AudioOutputQueue _audioOutputQueue,
+			final RaopRtpLatencyHandler _latencyHandler,
+			final RaopRtpStatistics _statistics
+		) {
+			audioChannel = _audioChannel;
+			controlChannel = _controlChannel;
+			timingChannel = _timingChannel;
+			audioOutputQueue = _audioOutputQueue;
+			latencyHandler = _latencyHandler;
+			statistics = _statistics;
+		}
+	}
+
 	/**
 	 * Routes incoming packets from the control and timing channel to
 	 * the audio channel
@@ -60,15 +95,20 @@ public class RaopAudioHandler extends SimpleChannelUpstreamHandler {
 			throws Exception
 		{
 			/* Get audio channel from the enclosing RaopAudioHandler */
-			Channel audioChannel = null;
-			synchronized(RaopAudioHandler.this) {
-				audioChannel = m_audioChannel;
-			}
+			final Channel audioChannel = m_routing.audioChannel;
+
+			if ((audioChannel != null) && audioChannel.isOpen() && audioChannel.isReadable()) {
+				/* Re-used packet instances are only valid until the next packet arrives
+				 * on this channel, but the audio channel may process the packet later
+				 * on a different thread. We thus hand it a packet instance of its own.
+				 */
+				Object message = evt.getMessage();
+				if (AirReceiver.RtpReusePackets && (message instanceof RaopRtpPacket))
+					message = RaopRtpPacket.decode(((RaopRtpPacket)message).getBuffer());
 
-			if ((m_audioChannel != null) && m_audioChannel.isOpen() && m_audioChannel.isReadable()) {
 				audioChannel.getPipeline().sendUpstream(new UpstreamMessageEvent(
 					audioChannel,
-					evt.getMessage(),
+					message,
 					evt.getRemoteAddress())
 				);
 			}
@@ -87,12 +127,9 @@ public class RaopAudioHandler extends SimpleChannelUpstreamHandler {
 			final RaopRtpPacket packet = (RaopRtpPacket)evt.getMessage();
 
 			/* Get control and timing channel from the enclosing RaopAudioHandler */
-			Channel controlChannel = null;
-			Channel timingChannel = null;
-			synchronized(RaopAudioHandler.this) {
-				controlChannel = m_controlChannel;
-				timingChannel = m_timingChannel;
-			}
+			final Routing routing = m_routing;
+			final Channel controlChannel = routing.controlChannel;
+			final Channel timingChannel = routing.timingChannel;
 
 			if (packet instanceof RaopRtpPacket.RetransmitRequest) {
 				if ((controlChannel != null) && controlChannel.isOpen() && controlChannel.isWritable())
@@ -124,16 +161,23 @@ public class RaopAudioHandler extends SimpleChannelUpstreamHandler {
 
 			final RaopRtpPacket.Audio audioPacket = (RaopRtpPacket.Audio)evt.getMessage();
 
-			/* Get audio output queue from the enclosing RaopAudioHandler */
-			AudioOutputQueue audioOutputQueue;
-			synchronized(RaopAudioHandler.this) {
-				audioOutputQueue = m_audioOutputQueue;
-			}
+			/* Get audio output queue, latency handler and statistics from the enclosing RaopAudioHandler */
+			final Routing routing = m_routing;
+			final AudioOutputQueue audioOutputQueue = routing.audioOutputQueue;
+			final RaopRtpLatencyHandler latencyHandler = routing.latencyHandler;
+			final RaopRtpStatistics statistics = routing.statistics;
 
 			if (audioOutputQueue != null) {
-				final byte[] samples = new byte[audioPacket.getPayload().capacity()];
-				audioPacket.getPayload().getBytes(0, samples);
-				m_audioOutputQueue.enqueue(audioPacket.getTimeStamp(), samples);
+				final byte[] samples = audioOutputQueue.obtainSampleBuffer(audioPacket.getPayloadLength());
+				audioPacket.getBuffer().getBytes(audioPacket.getPayloadOffset(), samples);
+				if (audioOutputQueue.enqueue(audioPacket.getTimeStamp(), samples)) {
+					if (latencyHandler != null)
+						latencyHandler.audioEnqueued(audioPacket);
+				}
+				else if ((statistics != null) && (audioPacket.getTimeStamp() < audioOutputQueue.getNextFrameTime())) {
+					/* Rejected packets which start in the past were late, not early */
+					statistics.lateDropped();
+				}
 				if (s_logger.isLoggable(Level.FINEST))
 					s_logger.finest("Packet with sequence " + audioPacket.getSequence() + " for playback at " + audioPacket.getTimeStamp() + " submitted to audio output queue");
 			}
@@ -146,17 +190,23 @@ public class RaopAudioHandler extends SimpleChannelUpstreamHandler {
 	}
 
 	/**
-	 *  RSA cipher used to decrypt the AES session key
+	 * Channel factory used for the RTP channels
 	 */
-	private final Cipher m_rsaPkCS1OaepCipher = AirTunesCrytography.getCipher("RSA/None/OAEPWithSHA1AndMGF1Padding");
+	private final DatagramChannelFactory m_rtpChannelFactory;
 
 	/**
-	 * Executor service used for the RTP channels
+	 * Pool of pre-bound RTP channels, or null if RTP channels are bound on demand
 	 */
-	private final ExecutorService m_rtpExecutorService;
+	private final RtpChannelPool m_rtpChannelPool;
+
+	/**
+	 * Ports RTP channels are bound to if they aren't leased from the pool,
+	 * or null to use ephemeral ports
+	 */
+	private final RtpPortRange m_rtpPortRange;
 
 	private final ChannelHandler m_exceptionLoggingHandler = new ExceptionLoggingHandler();
-	private final ChannelHandler m_decodeHandler = new RaopRtpDecodeHandler();
+	private final ChannelHandler m_decodeHandler = new RaopRtpDecodeHandler(AirReceiver.RtpReusePackets);
 	private final ChannelHandler m_encodeHandler = new RtpEncodeHandler();
 	private final ChannelHandler m_packetLoggingHandler = new RtpLoggingHandler();
 	private final ChannelHandler m_inputToAudioRouterDownstreamHandler = new RaopRtpInputToAudioRouterUpstreamHandler();
@@ -164,7 +214,12 @@ public class RaopAudioHandler extends SimpleChannelUpstreamHandler {
 	private ChannelHandler m_decryptionHandler;
 	private ChannelHandler m_audioDecodeHandler;
 	private ChannelHandler m_resendRequestHandler;
+	private RaopRtpAudioAdmissionHandler m_admissionHandler;
 	private ChannelHandler m_timingHandler;
+	private ChannelHandler m_audioFusedHandler;
+	private RaopRtpAudioParallelDecodeHandler m_audioParallelDecodeHandler;
+	private RaopRtpLatencyHandler m_latencyHandler;
+	private RaopRtpStatistics m_statistics;
 	private final ChannelHandler m_audioEnqueueHandler = new RaopRtpAudioEnqueueHandler();
 
 	private AudioStreamInformationProvider m_audioStreamInformationProvider;
@@ -180,11 +235,46 @@ public class RaopAudioHandler extends SimpleChannelUpstreamHandler {
 	private Channel m_timingChannel;
 
 	/**
-	 * Creates an instance, using the ExecutorService for the RTP channel's datagram socket factory
-	 * @param rtpExecutorService
+	 * Routing snapshot used by the packet handlers. Updated by {@link #publishRouting()}
+	 */
+	private volatile Routing m_routing = Routing.Empty;
+
+	/**
+	 * Creates an instance, using the given factory to create the RTP channels.
+	 * The factory is expected to be shared between all instances, and is
+	 * not released by this handler.
+	 * 
+	 * @param rtpChannelFactory datagram channel factory
 	 */
-	public RaopAudioHandler(final ExecutorService rtpExecutorService) {
-		m_rtpExecutorService = rtpExecutorService;
+	public RaopAudioHandler(final DatagramChannelFactory rtpChannelFactory) {
+		this(rtpChannelFactory, null);
+	}
+
+	/**
+	 * Creates an instance which leases RTP channels from the given pool,
+	 * and uses the given factory only if no pool is provided. Neither
+	 * the pool nor the factory are released by this handler.
+	 * 
+	 * @param rtpChannelFactory datagram channel factory
+	 * @param rtpChannelPool pool of pre-bound channels, or null
+	 */
+	public RaopAudioHandler(final DatagramChannelFactory rtpChannelFactory, final RtpChannelPool rtpChannelPool) {
+		this(rtpChannelFactory, rtpChannelPool, null);
+	}
+
+	/**
+	 * Creates an instance which leases RTP channels from the given pool,
+	 * or binds them to ports from the given range if no pool is provided.
+	 * The pool's channels are bound according to the pool's own settings.
+	 * 
+	 * @param rtpChannelFactory datagram channel factory
+	 * @param rtpChannelPool pool of pre-bound channels, or null
+	 * @param rtpPortRange ports to bind channels to if there's no pool, or null for ephemeral ports
+	 */
+	public RaopAudioHandler(final DatagramChannelFactory rtpChannelFactory, final RtpChannelPool rtpChannelPool, final RtpPortRange rtpPortRange) {
+		m_rtpChannelFactory = rtpChannelFactory;
+		m_rtpChannelPool = rtpChannelPool;
+		m_rtpPortRange = rtpPortRange;
 		reset();
 	}
 
@@ -192,15 +282,31 @@ public class RaopAudioHandler extends SimpleChannelUpstreamHandler {
 	 * Resets stream-related data (i.e. undoes the effect of ANNOUNCE, SETUP and RECORD
 	 */
 	private void reset() {
-		if (m_audioOutputQueue != null)
+		/* Stop routing packets before tearing down the channels and queue */
+		m_routing = Routing.Empty;
+
+		if (m_audioOutputQueue != null) {
 			m_audioOutputQueue.close();
+			s_logger.info(m_audioOutputQueue.getSampleBufferPool().toString());
+		}
 
 		m_rtpChannels.close();
 
 		m_decryptionHandler = null;
 		m_audioDecodeHandler = null;
 		m_resendRequestHandler = null;
+		m_admissionHandler = null;
 		m_timingHandler = null;
+		m_audioFusedHandler = null;
+		m_audioParallelDecodeHandler = null;
+
+		if ((m_latencyHandler != null) && (m_latencyHandler.getPacketCount() > 0))
+			s_logger.info(m_latencyHandler.toString());
+		m_latencyHandler = null;
+
+		if (m_statistics != null)
+			s_logger.info(m_statistics.toString());
+		m_statistics = null;
 
 		m_audioStreamInformationProvider = null;
 		m_audioOutputQueue = null;
@@ -210,6 +316,25 @@ public class RaopAudioHandler extends SimpleChannelUpstreamHandler {
 		m_timingChannel = null;
 	}
 
+	/**
+	 * Publishes a new routing snapshot reflecting the current channels,
+	 * audio output queue, latency handler and statistics. Must be called
+	 * with the handler's monitor held, after any of those change.
+	 */
+	private void publishRouting() {
+		m_routing = new Routing(m_audioChannel, m_controlChannel, m_timingChannel, m_audioOutputQueue, m_latencyHandler, m_statistics);
+	}
+
+	/**
+	 * Returns the receiver statistics of the current stream. Doesn't
+	 * block, and may thus be polled from any thread.
+	 * 
+	 * @return receiver statistics, or null if no stream was announced
+	 */
+	public RaopRtpStatistics getStatistics() {
+		return m_routing.statistics;
+	}
+
 	@Override
 	public void channelClosed(final ChannelHandlerContext ctx, final ChannelStateEvent evt)
 		throws Exception
@@ -306,7 +431,8 @@ public class RaopAudioHandler extends SimpleChannelUpstreamHandler {
 	 * {@code <format> <encoding>}
 	 * for RAOP/AirTunes instead of {@code <format> <encoding>/<clock rate>}.
 	 * <p>
-	 * RAOP/AirTunes always uses encoding {@code AppleLossless}
+	 * RAOP/AirTunes usually uses encoding {@code AppleLossless}, but some
+	 * senders use uncompressed {@code L16/44100/2} instead
 	 */
 	private static Pattern s_pattern_sdp_a_rtpmap = Pattern.compile("^([0-9]+) (.*)$");
 	
@@ -317,7 +443,7 @@ public class RaopAudioHandler extends SimpleChannelUpstreamHandler {
 	 * <li>{@link RaopRtpTimingHandler}
 	 * <li>{@link RaopRtpRetransmitRequestHandler}
 	 * <li>{@link RaopRtpAudioDecryptionHandler}
-	 * <li>{@link RaopRtpAudioAlacDecodeHandler}
+	 * <li>{@link RaopRtpAudioAlacDecodeHandler} or {@link RaopRtpAudioL16DecodeHandler}
 	 * </ul>
 	 */
 	public synchronized void announceReceived(final ChannelHandlerContext ctx, final HttpRequest req)
@@ -337,6 +463,7 @@ public class RaopAudioHandler extends SimpleChannelUpstreamHandler {
 		SecretKey aesKey = null;
 		IvParameterSpec aesIv = null;
 		int alacFormatIndex = -1;
+		int l16FormatIndex = -1;
 		int audioFormatIndex = -1;
 		int descriptionFormatIndex = -1;
 		String[] formatOptions = null;
@@ -377,6 +504,8 @@ public class RaopAudioHandler extends SimpleChannelUpstreamHandler {
 						final String format = a_rtpmap_matcher.group(2);
 						if ("AppleLossless".equals(format))
 							alacFormatIndex = formatIdx;
+						else if (RaopRtpAudioL16DecodeHandler.Encoding.equals(format))
+							l16FormatIndex = formatIdx;
 					}
 					else if ("fmtp".equals(key)) {
 						/* Sets the decoding parameters for a audio format index */
@@ -390,12 +519,24 @@ public class RaopAudioHandler extends SimpleChannelUpstreamHandler {
 						/* Sets the AES key required to decrypt the audio data. The key is
 						 * encrypted wih the AirTunes private key
 						 */
-						byte[] aesKeyRaw;
-
-						m_rsaPkCS1OaepCipher.init(Cipher.DECRYPT_MODE, AirTunesCrytography.PrivateKey);
-						aesKeyRaw = m_rsaPkCS1OaepCipher.doFinal(Base64.decodeUnpadded(value));
-
-						aesKey = new SecretKeySpec(aesKeyRaw, "AES");
+						final byte[] aesKeyWrapped = Base64.decodeUnpadded(value);
+
+						/* Clients tend to re-use the key when they reconnect, so try the cache first */
+						final AesKeyCache aesKeyCache = AirReceiver.AesKeyCache;
+						aesKey = (aesKeyCache != null) ? aesKeyCache.get(aesKeyWrapped) : null;
+						if (aesKey == null) {
+							/* RSA cipher used to decrypt the AES session key. Belongs to this thread */
+							final Cipher rsaPkCS1OaepCipher = AirTunesCrytography.getThreadCipher("RSA/None/OAEPWithSHA1AndMGF1Padding");
+							rsaPkCS1OaepCipher.init(Cipher.DECRYPT_MODE, AirTunesCrytography.PrivateKey);
+							final byte[] aesKeyRaw = rsaPkCS1OaepCipher.doFinal(aesKeyWrapped);
+
+							aesKey = new SecretKeySpec(aesKeyRaw, "AES");
+							if (aesKeyCache != null)
+								aesKeyCache.put(aesKeyWrapped, aesKeyRaw);
+
+							/* The key and the cache keep copies of their own */
+							Arrays.fill(aesKeyRaw, (byte)0);
+						}
 					}
 					else if ("aesiv".equals(key)) {
 						/* Sets the AES initialization vector */
@@ -411,35 +552,88 @@ public class RaopAudioHandler extends SimpleChannelUpstreamHandler {
 		
 		/* Validate SDP information */
 
-		/* The format index of the stream must match the format index from the rtpmap attribute */
-		if (alacFormatIndex != audioFormatIndex)
+		/* The format index of the stream must match the format index from an rtpmap attribute */
+		final boolean l16 = (l16FormatIndex >= 0) && (l16FormatIndex == audioFormatIndex);
+		if (!l16 && (alacFormatIndex != audioFormatIndex))
 			throw new ProtocolException("Audio format " + audioFormatIndex + " not supported");
 
+		/* Uncompressed audio needs no fmtp attribute. If there is one, its first option is the packet size */
+		int l16FramesPerPacket = RaopRtpAudioL16DecodeHandler.DefaultFramesPerPacket;
+		if (l16 && (audioFormatIndex == descriptionFormatIndex) && (formatOptions != null) && (formatOptions.length > 0)) {
+			try {
+				l16FramesPerPacket = Integer.valueOf(formatOptions[0]);
+			}
+			catch (final NumberFormatException e) {
+				throw new ProtocolException("Audio format " + audioFormatIndex + " has invalid packet size " + formatOptions[0]);
+			}
+		}
+
 		/* The format index from the rtpmap attribute must match the format index from the fmtp attribute */
-		if (audioFormatIndex != descriptionFormatIndex)
+		if (!l16 && (audioFormatIndex != descriptionFormatIndex))
 			throw new ProtocolException("Auido format " + audioFormatIndex + " lacks fmtp line");
 
 		/* The fmtp attribute must have contained format options */
-		if (formatOptions == null)
+		if (!l16 && (formatOptions == null))
 			throw new ProtocolException("Auido format " + audioFormatIndex + " incomplete, format options not set");
 
 		/* Create decryption handler if an AES key and IV was specified */
+		RaopRtpAudioDecryptionHandler decryptionHandler = null;
 		if ((aesKey != null) && (aesIv != null))
-			m_decryptionHandler = new RaopRtpAudioDecryptionHandler(aesKey, aesIv);
+			decryptionHandler = new RaopRtpAudioDecryptionHandler(aesKey, aesIv);
+		m_decryptionHandler = decryptionHandler;
 
-		/* Create an ALAC decoder. The ALAC decoder is our stream information provider */
-		final RaopRtpAudioAlacDecodeHandler handler = new RaopRtpAudioAlacDecodeHandler(formatOptions);
-		m_audioStreamInformationProvider = handler;
-		m_audioDecodeHandler = handler;
+		/* Both decoders produce 16-bit stereo PCM at 44100 Hz in any signedness and byte order.
+		 * Let them produce what the audio output line accepts, so that the samples can be
+		 * written to the line as they are
+		 */
+		final AudioFormat lineFormat = AudioOutputQueue.negotiateLineFormat(RaopRtpAudioL16DecodeHandler.PayloadFormat);
+
+		/* Create an ALAC or L16 decoder. The decoder is our stream information provider */
+		final AudioFrameDecoder audioDecoder;
+		if (l16) {
+			final RaopRtpAudioL16DecodeHandler handler = new RaopRtpAudioL16DecodeHandler(l16FramesPerPacket, lineFormat);
+			audioDecoder = handler;
+			m_audioDecodeHandler = handler;
+		}
+		else {
+			final RaopRtpAudioAlacDecodeHandler handler = new RaopRtpAudioAlacDecodeHandler(formatOptions, AirReceiver.RtpReusePackets, lineFormat);
+			audioDecoder = handler;
+			m_audioDecodeHandler = handler;
+		}
+		m_audioStreamInformationProvider = audioDecoder;
 
-		/* Create audio output queue with the format information provided by the ALAC decoder */
+		/* Create audio output queue with the format information provided by the decoder */
 		m_audioOutputQueue = new AudioOutputQueue(m_audioStreamInformationProvider);
 
 		/* Create timing handle, using the AudioOutputQueue as time source */
 		m_timingHandler = new RaopRtpTimingHandler(m_audioOutputQueue);
 
+		/* Create receiver statistics */
+		m_statistics = new RaopRtpStatistics(m_audioStreamInformationProvider.getAudioFormat().getSampleRate());
+
 		/* Create retransmit request handler using the audio output queue as time source */
-		m_resendRequestHandler = new RaopRtpRetransmitRequestHandler(m_audioStreamInformationProvider, m_audioOutputQueue);
+		final RaopRtpRetransmitRequestHandler resendRequestHandler = new RaopRtpRetransmitRequestHandler(m_audioStreamInformationProvider, m_audioOutputQueue, m_statistics);
+		m_resendRequestHandler = resendRequestHandler;
+
+		/* Create admission handler, which drops duplicate and late packets before they're decrypted.
+		 * Shared with the fused handler, so that a FLUSH resets the one instance in use
+		 */
+		m_admissionHandler = new RaopRtpAudioAdmissionHandler(m_audioOutputQueue, m_audioStreamInformationProvider.getFramesPerPacket(), m_statistics);
+
+		/* Create latency handler, which measures the delay between packet arrival and enqueue */
+		m_latencyHandler = new RaopRtpLatencyHandler();
+
+		/* Create the fused audio handler, which replaces the handlers above for audio packets */
+		if (AirReceiver.RtpFusedAudio)
+			m_audioFusedHandler = new RaopRtpAudioFusedHandler(decryptionHandler, audioDecoder, resendRequestHandler, m_admissionHandler, m_audioOutputQueue, m_latencyHandler, m_statistics);
+
+		/* Create the parallel decode stage, which replaces the decryption handler and ALAC decoder.
+		 * Uncompressed audio isn't worth the hand-off to other threads
+		 */
+		if ((AirReceiver.RtpDecodeExecutor != null) && !l16)
+			m_audioParallelDecodeHandler = new RaopRtpAudioParallelDecodeHandler(aesKey, aesIv, formatOptions, lineFormat, AirReceiver.RtpDecodeExecutor, AirReceiver.RtpDecodeWorkerCount);
+
+		publishRouting();
 
 		final HttpResponse response = new DefaultHttpResponse(RtspVersions.RTSP_1_0,  RtspResponseStatuses.OK);
 		ctx.getChannel().write(response);
@@ -507,6 +701,7 @@ public class RaopAudioHandler extends SimpleChannelUpstreamHandler {
 					substitutePort((InetSocketAddress)ctx.getChannel().getRemoteAddress(), clientControlPort),
 					RaopRtpChannelType.Control
 				);
+				publishRouting();
 				s_logger.info("Launched RTP control service on " + m_controlChannel.getLocalAddress());
 				responseOptions.add("control_port=" + ((InetSocketAddress)m_controlChannel.getLocalAddress()).getPort());
 			}
@@ -518,6 +713,7 @@ public class RaopAudioHandler extends SimpleChannelUpstreamHandler {
 					substitutePort((InetSocketAddress)ctx.getChannel().getRemoteAddress(), clientTimingPort),
 					RaopRtpChannelType.Timing
 				);
+				publishRouting();
 				s_logger.info("Launched RTP timing service on " + m_timingChannel.getLocalAddress());
 				responseOptions.add("timing_port=" + ((InetSocketAddress)m_timingChannel.getLocalAddress()).getPort());
 			}
@@ -533,6 +729,7 @@ public class RaopAudioHandler extends SimpleChannelUpstreamHandler {
 			null,
 			RaopRtpChannelType.Audio
 		);
+		publishRouting();
 		s_logger.info("Launched RTP audio service on " + m_audioChannel.getLocalAddress());
 		responseOptions.add("server_port=" + ((InetSocketAddress)m_audioChannel.getLocalAddress()).getPort());
 
@@ -577,6 +774,12 @@ public class RaopAudioHandler extends SimpleChannelUpstreamHandler {
 	 * helpful. But iOS doesn't, so we ignore it all together.
 	 */
 	private synchronized void flushReceived(final ChannelHandlerContext ctx, final HttpRequest req) {
+		/* Packets still being decoded in parallel would otherwise be enqueued after the flush */
+		if (m_audioParallelDecodeHandler != null)
+			m_audioParallelDecodeHandler.discard();
+		/* The client may restart its sequence numbers after a flush */
+		if (m_admissionHandler != null)
+			m_admissionHandler.reset();
 		if (m_audioOutputQueue != null)
 			m_audioOutputQueue.flush();
 
@@ -666,18 +869,11 @@ public class RaopAudioHandler extends SimpleChannelUpstreamHandler {
 	}
 
 	/**
-	 * Creates an UDP socket and handler pipeline for RTP channels
+	 * Sets the socket options used for RTP channels
 	 * 
-	 * @param local local end-point address
-	 * @param remote remote end-point address
-	 * @param channelType channel type. Determines which handlers are put into the pipeline
-	 * @return open data-gram channel
+	 * @param bootstrap bootstrap helper for the RTP channels
 	 */
-	private Channel createRtpChannel(final SocketAddress local, final SocketAddress remote, final RaopRtpChannelType channelType)
-	{
-		/* Create bootstrap helper for a data-gram socket using NIO */
-		final ConnectionlessBootstrap bootstrap = new ConnectionlessBootstrap(new NioDatagramChannelFactory(m_rtpExecutorService));
-		
+	static void setRtpChannelOptions(final ConnectionlessBootstrap bootstrap) {
 		/* Set the buffer size predictor to 1500 bytes to ensure that
 		 * received packets will fit into the buffer. Packets are
 		 * truncated if they are larger than that!
@@ -686,38 +882,33 @@ public class RaopAudioHandler extends SimpleChannelUpstreamHandler {
 		
 		/* Set the socket's receive buffer size. We set it to 1MB */
 		bootstrap.setOption("receiveBufferSize", 1024*1024);
+	}
+
+	/**
+	 * Creates an UDP socket and handler pipeline for RTP channels
+	 * 
+	 * @param local local end-point address
+	 * @param remote remote end-point address
+	 * @param channelType channel type. Determines which handlers are put into the pipeline
+	 * @return open data-gram channel
+	 */
+	private Channel createRtpChannel(final SocketAddress local, final SocketAddress remote, final RaopRtpChannelType channelType)
+	{
+		if (m_rtpChannelPool != null)
+			return leaseRtpChannel(remote, channelType);
+
+		/* Create bootstrap helper for a data-gram socket. The channel factory and
+		 * thus the I/O worker threads are shared between all RTP channels.
+		 */
+		final ConnectionlessBootstrap bootstrap = new ConnectionlessBootstrap(m_rtpChannelFactory);
+		setRtpChannelOptions(bootstrap);
 		
 		/* Set pipeline factory for the RTP channel */
 		bootstrap.setPipelineFactory(new ChannelPipelineFactory() {
 			@Override
 			public ChannelPipeline getPipeline() throws Exception {
 				final ChannelPipeline pipeline = Channels.pipeline();
-
-				pipeline.addLast("executionHandler", AirReceiver.ChannelExecutionHandler);
-				pipeline.addLast("exceptionLogger", m_exceptionLoggingHandler);
-				pipeline.addLast("decoder", m_decodeHandler);
-				pipeline.addLast("encoder", m_encodeHandler);
-				/* We pretend that all communication takes place on the audio channel,
-				 * and simply re-route packets from and to the control and timing channels
-				 */
-				if (!channelType.equals(RaopRtpChannelType.Audio)) {
-					pipeline.addLast("inputToAudioRouter", m_inputToAudioRouterDownstreamHandler);
-					/* Must come *after* the router, otherwise incoming packets are logged twice */
-					pipeline.addLast("packetLogger", m_packetLoggingHandler);
-				}
-				else {
-					/* Must come *before* the router, otherwise outgoing packets are logged twice */
-					pipeline.addLast("packetLogger", m_packetLoggingHandler);
-					pipeline.addLast("audioToOutputRouter", m_audioToOutputRouterUpstreamHandler);
-					pipeline.addLast("timing", m_timingHandler);
-					pipeline.addLast("resendRequester", m_resendRequestHandler);
-					if (m_decryptionHandler != null)
-						pipeline.addLast("decrypt", m_decryptionHandler);
-					if (m_audioDecodeHandler != null)
-						pipeline.addLast("audioDecode", m_audioDecodeHandler);
-					pipeline.addLast("enqueue", m_audioEnqueueHandler);
-				}
-
+				addRtpHandlers(pipeline, channelType);
 				return pipeline;
 			}
 		});
@@ -725,8 +916,11 @@ public class RaopAudioHandler extends SimpleChannelUpstreamHandler {
 		Channel channel = null;
 		boolean didThrow = true;
 		try {
-			/* Bind to local address */
-			channel = bootstrap.bind(local);
+			/* Bind to local address, using a port from the range if one is set */
+			if (m_rtpPortRange != null)
+				channel = m_rtpPortRange.bind(bootstrap, ((InetSocketAddress)local).getAddress());
+			else
+				channel = bootstrap.bind(local);
 			
 			/* Add to group of RTP channels beloging to this RTSP connection */
 			m_rtpChannels.add(channel);
@@ -744,6 +938,119 @@ public class RaopAudioHandler extends SimpleChannelUpstreamHandler {
 		}
 	}
 
+	/**
+	 * Leases a pre-bound UDP socket from the RTP channel pool and replaces
+	 * its placeholder handler with the handlers for the given channel type
+	 * 
+	 * @param remote remote end-point address
+	 * @param channelType channel type. Determines which handlers are put into the pipeline
+	 * @return open data-gram channel
+	 */
+	private Channel leaseRtpChannel(final SocketAddress remote, final RaopRtpChannelType channelType)
+	{
+		final Channel channel = m_rtpChannelPool.lease();
+		boolean didThrow = true;
+		try {
+			/* Add to group of RTP channels beloging to this RTSP connection */
+			m_rtpChannels.add(channel);
+
+			/* Install our handlers, then remove the pool's placeholder */
+			final ChannelPipeline pipeline = channel.getPipeline();
+			addRtpHandlers(pipeline, channelType);
+			pipeline.remove(RtpChannelPool.IdleHandlerName);
+
+			/* The channel was opened before our handlers were installed. Re-fire the
+			 * event since some handlers (e.g. the timing handler) start their work
+			 * once the channel is open
+			 */
+			Channels.fireChannelOpen(channel);
+	
+			/* Connect to remote address if one was provided */
+			if (remote != null)
+				channel.connect(remote);
+
+			didThrow = false;
+			return channel;
+		}
+		finally {
+			if (didThrow)
+				channel.close();
+		}
+	}
+
+	/**
+	 * Returns the execution handler for RTP channels of the given type
+	 * 
+	 * @param channelType channel type
+	 * @return execution handler, or null if packets are to be handled by the I/O thread
+	 */
+	private static ExecutionHandler getRtpExecutionHandler(final RaopRtpChannelType channelType) {
+		switch (channelType) {
+			case Audio: return AirReceiver.RtpAudioExecutionHandler;
+			case Control: return AirReceiver.RtpControlExecutionHandler;
+			case Timing: return AirReceiver.RtpTimingExecutionHandler;
+			default: throw new IllegalArgumentException("Unknown channel type " + channelType);
+		}
+	}
+
+	/**
+	 * Adds the handlers for RTP channels of the given type to a pipeline
+	 * 
+	 * @param pipeline pipeline of the RTP channel
+	 * @param channelType channel type
+	 */
+	private void addRtpHandlers(final ChannelPipeline pipeline, final RaopRtpChannelType channelType) {
+		/* The latency handler and statistics must see packets before they're handed off to another thread */
+		if (channelType.equals(RaopRtpChannelType.Audio) && (m_latencyHandler != null))
+			pipeline.addLast("latency", m_latencyHandler);
+		if (channelType.equals(RaopRtpChannelType.Audio) && (m_statistics != null))
+			pipeline.addLast("statistics", m_statistics);
+
+		/* Hand packets off to the executor selected by the channel type's execution policy */
+		final ExecutionHandler executionHandler = getRtpExecutionHandler(channelType);
+		if (executionHandler != null)
+			pipeline.addLast("executionHandler", executionHandler);
+		pipeline.addLast("exceptionLogger", m_exceptionLoggingHandler);
+		pipeline.addLast("decoder", m_decodeHandler);
+		pipeline.addLast("encoder", m_encodeHandler);
+		/* We pretend that all communication takes place on the audio channel,
+		 * and simply re-route packets from and to the control and timing channels
+		 */
+		if (!channelType.equals(RaopRtpChannelType.Audio)) {
+			pipeline.addLast("inputToAudioRouter", m_inputToAudioRouterDownstreamHandler);
+			/* Must come *after* the router, otherwise incoming packets are logged twice */
+			pipeline.addLast("packetLogger", m_packetLoggingHandler);
+		}
+		else if (m_audioFusedHandler != null) {
+			/* Audio packets are handled completely by the fused handler, which
+			 * thus comes *before* the decoder. Other packets take the usual route
+			 */
+			pipeline.addBefore("decoder", "audioFused", m_audioFusedHandler);
+			pipeline.addLast("packetLogger", m_packetLoggingHandler);
+			pipeline.addLast("audioToOutputRouter", m_audioToOutputRouterUpstreamHandler);
+			pipeline.addLast("timing", m_timingHandler);
+		}
+		else {
+			/* Must come *before* the router, otherwise outgoing packets are logged twice */
+			pipeline.addLast("packetLogger", m_packetLoggingHandler);
+			pipeline.addLast("audioToOutputRouter", m_audioToOutputRouterUpstreamHandler);
+			pipeline.addLast("timing", m_timingHandler);
+			pipeline.addLast("resendRequester", m_resendRequestHandler);
+			if (m_admissionHandler != null)
+				pipeline.addLast("admission", m_admissionHandler);
+			if (m_audioParallelDecodeHandler != null) {
+				pipeline.addLast("parallelDecode", m_audioParallelDecodeHandler);
+			}
+			else {
+				if (m_decryptionHandler != null)
+					pipeline.addLast("decrypt", m_decryptionHandler);
+				if (m_audioDecodeHandler != null)
+					pipeline.addLast("audioDecode", m_audioDecodeHandler);
+			}
+			pipeline.addLast("enqueue", m_audioEnqueueHandler);
+		}
+	}
+
 	/**
 	 * Modifies the port component of an {@link InetSocketAddress} while
 	 * leaving the other parts unmodified.
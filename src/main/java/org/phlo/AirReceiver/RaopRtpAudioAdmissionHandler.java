@@ -0,0 +1,169 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.phlo.AirReceiver;
+
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.jboss.netty.channel.*;
+
+/**
+ * Drops duplicate audio packets and audio packets which arrived too late to be
+ * played, before they're decrypted and decoded.
+ * <p>
+ * Remembers every sequence number accepted during the last cycle of the 16-bit
+ * sequence space in a bitmap, and compares each packet's time stamp to the
+ * audio clock. Retransmitted packets are checked against their original sequence
+ * numbers, so that a packet is accepted only once no matter how often it is
+ * transmitted. If the sequence numbers jump (see {@link RaopRtpStatistics#MaxDropout}
+ * and {@link RaopRtpStatistics#MaxMisorder}), e.g. because the sender restarted
+ * them, the bitmap is cleared and starts over from the packet which jumped.
+ * {@link #reset()} does the same for the next packet, and must be called whenever
+ * the client flushes its stream.
+ * <p>
+ * The handler must be placed <b>after</b> the {@link RaopRtpDecodeHandler} and the
+ * {@link RaopRtpRetransmitRequestHandler}, which needs to see every packet, and
+ * <b>before</b> the decryption handler.
+ */
+public class RaopRtpAudioAdmissionHandler extends SimpleChannelUpstreamHandler {
+	private static final Logger s_logger = Logger.getLogger(RaopRtpAudioAdmissionHandler.class.getName());
+
+	/**
+	 * Time source used to detect late packets
+	 */
+	private final AudioClock m_audioClock;
+
+	/**
+	 * Frames per packet
+	 */
+	private final int m_framesPerPacket;
+
+	/**
+	 * Receiver statistics to report late packets to, or null
+	 */
+	private final RaopRtpStatistics m_statistics;
+
+	/**
+	 * Bit s is set if the packet with sequence s was accepted
+	 */
+	private final long[] m_sequenceBitmap = new long[0x10000 / 64];
+
+	/**
+	 * Highest sequence number accepted so far, or -1
+	 */
+	private int m_highestSequence = -1;
+
+	/**
+	 * Creates an admission handler
+	 * 
+	 * @param audioClock time source used to detect late packets
+	 * @param framesPerPacket frames per packet
+	 * @param statistics receiver statistics to report late packets to, or null
+	 */
+	public RaopRtpAudioAdmissionHandler(final AudioClock audioClock, final int framesPerPacket, final RaopRtpStatistics statistics) {
+		m_audioClock = audioClock;
+		m_framesPerPacket = framesPerPacket;
+		m_statistics = statistics;
+	}
+
+	/**
+	 * Forgets all accepted sequence numbers. The next packet is accepted
+	 * unless it's too late, and starts a new sequence.
+	 */
+	public synchronized void reset() {
+		m_highestSequence = -1;
+	}
+
+	@Override
+	public void messageReceived(final ChannelHandlerContext ctx, final MessageEvent evt)
+		throws Exception
+	{
+		if ((evt.getMessage() instanceof RaopRtpPacket.Audio) && !admit((RaopRtpPacket.Audio)evt.getMessage()))
+			return;
+
+		super.messageReceived(ctx, evt);
+	}
+
+	/**
+	 * Decides whether an audio packet should be played
+	 * 
+	 * @param audioPacket audio packet
+	 * @return false if the packet is a duplicate or too late
+	 */
+	public synchronized boolean admit(final RaopRtpPacket.Audio audioPacket) {
+		/* Drop duplicates */
+		final boolean retransmit = (audioPacket instanceof RaopRtpPacket.AudioRetransmit);
+		final int sequence = retransmit
+			? ((RaopRtpPacket.AudioRetransmit)audioPacket).getOriginalSequence()
+			: audioPacket.getSequence();
+		if (!markSequence(sequence, !retransmit)) {
+			if (s_logger.isLoggable(Level.FINE))
+				s_logger.fine("Packet with sequence " + sequence + " is a duplicate, dropping");
+			return false;
+		}
+
+		/* Drop packets which would be played entirely in the past */
+		if (audioPacket.getTimeStamp() + m_framesPerPacket <= m_audioClock.getNextFrameTime()) {
+			s_logger.warning("Packet with sequence " + sequence + " arrived too late, dropping");
+			if (m_statistics != null)
+				m_statistics.lateDropped();
+			return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Records a sequence as accepted.
+	 * 
+	 * @param sequence sequence number
+	 * @param resync start over from this sequence if the sequence numbers jumped.
+	 *               Retransmitted packets may legitimately be far behind, and never resync
+	 * @return false if the sequence was already accepted before
+	 */
+	private boolean markSequence(final int sequence, final boolean resync) {
+		/* Signed distance to the highest sequence, taking wrap-around into account */
+		int delta = (short)(sequence - m_highestSequence);
+
+		if ((m_highestSequence < 0) || (resync && ((delta >= RaopRtpStatistics.MaxDropout) || (delta <= -RaopRtpStatistics.MaxMisorder)))) {
+			/* First packet, or the sequence numbers jumped. Start over from this packet */
+			if (m_highestSequence >= 0)
+				s_logger.info("Sequence jumped from " + m_highestSequence + " to " + sequence + ", forgetting accepted sequences");
+			Arrays.fill(m_sequenceBitmap, 0);
+			m_highestSequence = sequence;
+			delta = 0;
+		}
+
+		if (delta > 0) {
+			/* The sequences up to the new highest sequence were last seen one cycle
+			 * ago, if at all. Forget about them
+			 */
+			for(int s = m_highestSequence + 1; s != m_highestSequence + 1 + delta; ++s)
+				m_sequenceBitmap[(s & 0xffff) >>> 6] &= ~(1L << s);
+			m_highestSequence = sequence;
+		}
+
+		final int word = sequence >>> 6;
+		final long bit = 1L << sequence;
+		if ((m_sequenceBitmap[word] & bit) != 0)
+			return false;
+		m_sequenceBitmap[word] |= bit;
+		return true;
+	}
+}
@@ -22,19 +22,29 @@ import java.util.logging.*;
 
 import javax.sound.sampled.AudioFormat;
 
+import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.channel.*;
 import org.jboss.netty.handler.codec.oneone.OneToOneDecoder;
 
 import com.beatofthedrum.alacdecoder.*;
 
 /**
- * Decodes the ALAC audio data in incoming audio packets to big endian unsigned PCM.
- * Also serves as an {@link AudioStreamInformationProvider}
+ * Decodes the ALAC audio data in incoming audio packets to 16-bit stereo PCM.
+ * Also serves as an {@link AudioStreamInformationProvider} and {@link AudioFrameDecoder}
+ * 
+ * The PCM format (signedness and byte order) is selected when the decoder is
+ * created, and defaults to {@link #SignedBigEndianFormat}. The decoder produces
+ * it directly while undoing the stereo decorrelation, so samples can be handed
+ * to an audio line of the same format without further conversion.
  * 
  * This class assumes that ALAC requires no inter-packet state - it doesn't make
  * any effort to feed the packets to ALAC in the correct order.
+ * 
+ * All buffers are allocated once per decoder. If packets are re-used, the
+ * decoded packets are too, and handlers further up the pipeline must copy
+ * a packet's samples if they need them after returning.
  */
-public class RaopRtpAudioAlacDecodeHandler extends OneToOneDecoder implements AudioStreamInformationProvider {
+public class RaopRtpAudioAlacDecodeHandler extends OneToOneDecoder implements AudioFrameDecoder {
 	private static Logger s_logger = Logger.getLogger(RaopRtpAudioAlacDecodeHandler.class.getName());
 
 	/* There are the indices into the SDP format options at which
@@ -54,9 +64,20 @@ public class RaopRtpAudioAlacDecodeHandler extends OneToOneDecoder implements Au
 	public static final int FormatOption8a_rate = 10;
 
 	/**
-	 * The {@link AudioFormat} that corresponds to the output produced by the decoder
+	 * Signed big endian PCM output, the decoder's default
 	 */
-	private static final AudioFormat AudioOutputFormat = new AudioFormat(
+	public static final AudioFormat SignedBigEndianFormat = new AudioFormat(
+		44100 /* sample rate */,
+		16 /* bits per sample */,
+		2 /* number of channels */,
+		true /* signed */,
+		true /* big endian */
+	);
+
+	/**
+	 * Unsigned big endian PCM output
+	 */
+	public static final AudioFormat UnsignedBigEndianFormat = new AudioFormat(
 		44100 /* sample rate */,
 		16 /* bits per sample */,
 		2 /* number of channels */,
@@ -64,6 +85,17 @@ public class RaopRtpAudioAlacDecodeHandler extends OneToOneDecoder implements Au
 		true /* big endian */
 	);
 
+	/**
+	 * The {@link AudioFormat} that corresponds to the output produced by the decoder
+	 */
+	private final AudioFormat m_audioFormat;
+
+	/**
+	 * The output format as a combination of {@link AlacDecodeUtils#PCM_SIGNED}
+	 * and {@link AlacDecodeUtils#PCM_BIG_ENDIAN}
+	 */
+	private final int m_pcmFormat;
+
 	/**
 	 * Number of samples per ALAC frame (packet).
 	 * One sample here means *two* amplitues, one
@@ -76,9 +108,21 @@ public class RaopRtpAudioAlacDecodeHandler extends OneToOneDecoder implements Au
 	 */
 	private final AlacFile m_alacFile;
 
+	/**
+	 * Re-use decoded packet instances instead of creating new ones for every packet
+	 */
+	private final boolean m_reusePackets;
+
+	/**
+	 * Re-used decoded transmitted and retransmitted packets. Created on first use
+	 */
+	private RaopRtpPacket.AudioTransmit m_pcmTransmitPacket;
+	private RaopRtpPacket.AudioRetransmit m_pcmRetransmitPacket;
+
 	/**
 	 * Creates an ALAC decoder instance from a list of format options as
-	 * they appear in the SDP session announcement.
+	 * they appear in the SDP session announcement. Every decoded packet
+	 * is a new instance.
 	 * 
 	 * @param formatOptions list of format options
 	 * @throws ProtocolException if the format options are invalid for ALAC
@@ -86,6 +130,55 @@ public class RaopRtpAudioAlacDecodeHandler extends OneToOneDecoder implements Au
 	public RaopRtpAudioAlacDecodeHandler(final String[] formatOptions)
 		throws ProtocolException
 	{
+		this(formatOptions, false);
+	}
+
+	/**
+	 * Creates an ALAC decoder instance from a list of format options as
+	 * they appear in the SDP session announcement, which produces signed
+	 * big endian PCM.
+	 * 
+	 * @param formatOptions list of format options
+	 * @param reusePackets re-use decoded packet instances
+	 * @throws ProtocolException if the format options are invalid for ALAC
+	 */
+	public RaopRtpAudioAlacDecodeHandler(final String[] formatOptions, final boolean reusePackets)
+		throws ProtocolException
+	{
+		this(formatOptions, reusePackets, SignedBigEndianFormat);
+	}
+
+	/**
+	 * Creates an ALAC decoder instance from a list of format options as
+	 * they appear in the SDP session announcement.
+	 * 
+	 * @param formatOptions list of format options
+	 * @param reusePackets re-use decoded packet instances
+	 * @param outputFormat PCM format to produce. Must be 16-bit stereo PCM at
+	 *        44100 Hz, but may be signed or unsigned, and either byte order
+	 * @throws ProtocolException if the format options are invalid for ALAC
+	 * @throws IllegalArgumentException if the output format is not supported
+	 */
+	public RaopRtpAudioAlacDecodeHandler(final String[] formatOptions, final boolean reusePackets, final AudioFormat outputFormat)
+		throws ProtocolException
+	{
+		m_reusePackets = reusePackets;
+
+		/* We produce only 16-bit stereo PCM, but in any signedness and byte order */
+		if (
+			(outputFormat.getSampleSizeInBits() != 16) ||
+			(outputFormat.getChannels() != 2) ||
+			(outputFormat.getSampleRate() != 44100)
+		)
+			throw new IllegalArgumentException("Output format " + outputFormat + " is not supported");
+		if (AudioFormat.Encoding.PCM_SIGNED.equals(outputFormat.getEncoding()))
+			m_pcmFormat = AlacDecodeUtils.PCM_SIGNED | (outputFormat.isBigEndian() ? AlacDecodeUtils.PCM_BIG_ENDIAN : 0);
+		else if (AudioFormat.Encoding.PCM_UNSIGNED.equals(outputFormat.getEncoding()))
+			m_pcmFormat = (outputFormat.isBigEndian() ? AlacDecodeUtils.PCM_BIG_ENDIAN : 0);
+		else
+			throw new IllegalArgumentException("Output encoding " + outputFormat.getEncoding() + " is not supported");
+		m_audioFormat = outputFormat;
+
 		m_samplesPerFrame = Integer.valueOf(formatOptions[FormatOptionSamplesPerFrame]);
 
 		/* We support only 16-bit ALAC */
@@ -111,7 +204,7 @@ public class RaopRtpAudioAlacDecodeHandler extends OneToOneDecoder implements Au
 		m_alacFile.setinfo_86 = Integer.valueOf(formatOptions[FormatOption86]);
 		m_alacFile.setinfo_8a_rate = sampleRate;
 
-		s_logger.info("Created ALAC decode for options " + Arrays.toString(formatOptions));
+		s_logger.info("Created ALAC decode for options " + Arrays.toString(formatOptions) + " producing " + m_audioFormat);
 	}
 
 	@Override
@@ -123,58 +216,135 @@ public class RaopRtpAudioAlacDecodeHandler extends OneToOneDecoder implements Au
 
 		final RaopRtpPacket.Audio alacPacket = (RaopRtpPacket.Audio)msg;
 
-		/* The ALAC decode sometimes reads beyond the input's bounds
-		 * (but later discards the data). To alleviate, we allocate
-		 * 3 spare bytes at input buffer's end.
-		 */
-		final byte[] alacBytes = new byte[alacPacket.getPayload().capacity() + 3];
-		alacPacket.getPayload().getBytes(0, alacBytes, 0, alacPacket.getPayload().capacity());
-
-		/* Decode ALAC to PCM */
-		final int[] pcmSamples = new int[m_samplesPerFrame * 2];
-		final int pcmSamplesBytes = AlacDecodeUtils.decode_frame(m_alacFile, alacBytes, pcmSamples, m_samplesPerFrame);
-
-		/* decode_frame() returns the number of *bytes*, not samples! */
-		final int pcmSamplesLength = pcmSamplesBytes / 4;
-		final Level level = Level.FINEST;
-		if (s_logger.isLoggable(level))
-			s_logger.log(level, "Decoded " + alacBytes.length + " bytes of ALAC audio data to " + pcmSamplesLength + " PCM samples");
-
-		/* Complain if the sender doesn't honour it's commitment */
-		if (pcmSamplesLength != m_samplesPerFrame)
-			throw new ProtocolException("Frame declared to contain " + m_samplesPerFrame + ", but contained " + pcmSamplesLength);
+		final int pcmSamplesLength = m_samplesPerFrame;
 
 		/* Assemble PCM audio packet from original packet header and decoded data.
-		 * The ALAC decode emits signed PCM samples as integers. We store them as
-		 * as unsigned big endian integers in the packet.
+		 * The ALAC decoder stores the samples in the packet in the output format.
 		 */
-		
+
 		RaopRtpPacket.Audio pcmPacket;
 		if (alacPacket instanceof RaopRtpPacket.AudioTransmit) {
-			pcmPacket = new RaopRtpPacket.AudioTransmit(pcmSamplesLength * 4);
+			if (!m_reusePackets || (m_pcmTransmitPacket == null))
+				m_pcmTransmitPacket = new RaopRtpPacket.AudioTransmit(pcmSamplesLength * 4);
+			pcmPacket = m_pcmTransmitPacket;
 			alacPacket.getBuffer().getBytes(0, pcmPacket.getBuffer(), 0, RaopRtpPacket.AudioTransmit.Length);
 		}
 		else if (alacPacket instanceof RaopRtpPacket.AudioRetransmit) {
-			pcmPacket = new RaopRtpPacket.AudioRetransmit(pcmSamplesLength * 4);
+			if (!m_reusePackets || (m_pcmRetransmitPacket == null))
+				m_pcmRetransmitPacket = new RaopRtpPacket.AudioRetransmit(pcmSamplesLength * 4);
+			pcmPacket = m_pcmRetransmitPacket;
 			alacPacket.getBuffer().getBytes(0, pcmPacket.getBuffer(), 0, RaopRtpPacket.AudioRetransmit.Length);
 		}
 		else
 			throw new ProtocolException("Packet type " + alacPacket.getClass() + " is not supported by the ALAC decoder");
 
-		for(int i=0; i < pcmSamples.length; ++i) {
-			/* Convert sample to big endian unsigned integer PCM */
-			final int pcmSampleUnsigned = pcmSamples[i] + 0x8000;
+		/* Packets created by RtpPacket's constructor are backed by an array */
+		final ChannelBuffer pcmBuffer = pcmPacket.getBuffer();
+		decodePcm(
+			alacPacket.getBuffer(), alacPacket.getPayloadOffset(), alacPacket.getPayloadLength(),
+			pcmBuffer.array(), pcmBuffer.arrayOffset() + pcmPacket.getPayloadOffset()
+		);
 
-			pcmPacket.getPayload().setByte(2*i, (pcmSampleUnsigned & 0xff00) >> 8);
-			pcmPacket.getPayload().setByte(2*i + 1, pcmSampleUnsigned & 0x00ff);
+		return pcmPacket;
+	}
+
+	/**
+	 * Decodes an ALAC frame to PCM samples in the decoder's output format,
+	 * which is the format the packets emitted by {@link #decode} contain.
+	 * 
+	 * @param alacBuffer buffer containing the ALAC frame
+	 * @param alacOffset offset of the ALAC frame
+	 * @param alacLength length of the ALAC frame
+	 * @return PCM sample data
+	 * @throws ProtocolException if the frame didn't contain the expected number of samples
+	 */
+	public synchronized byte[] decodeFrame(final ChannelBuffer alacBuffer, final int alacOffset, final int alacLength)
+		throws ProtocolException
+	{
+		final byte[] pcmBytes = new byte[m_samplesPerFrame * 4];
+		decodeFrame(alacBuffer, alacOffset, alacLength, pcmBytes, 0);
+		return pcmBytes;
+	}
+
+	/**
+	 * Decodes an ALAC frame to PCM samples in the decoder's output format, and
+	 * stores them in the provided array. Allocates nothing, so this allows samples to be
+	 * decoded directly into a buffer obtained from {@link AudioOutputQueue#obtainSampleBuffer(int)}.
+	 * 
+	 * @param alacBuffer buffer containing the ALAC frame
+	 * @param alacOffset offset of the ALAC frame
+	 * @param alacLength length of the ALAC frame
+	 * @param pcmBytes array to store the PCM sample data in
+	 * @param pcmOffset offset to store the PCM sample data at
+	 * @return number of bytes stored
+	 * @throws ProtocolException if the frame didn't contain the expected number of samples
+	 */
+	@Override
+	public synchronized int decodeFrame(final ChannelBuffer alacBuffer, final int alacOffset, final int alacLength, final byte[] pcmBytes, final int pcmOffset)
+		throws ProtocolException
+	{
+		return decodePcm(alacBuffer, alacOffset, alacLength, pcmBytes, pcmOffset);
+	}
+
+	/**
+	 * Decodes an ALAC frame to PCM samples in the decoder's output format.
+	 * The stereo decorrelation, sign and byte order conversion are done in
+	 * a single pass which writes directly into the provided array.
+	 * 
+	 * @param alacBuffer buffer containing the ALAC frame
+	 * @param alacOffset offset of the ALAC frame
+	 * @param alacLength length of the ALAC frame
+	 * @param pcmBytes array to store the PCM sample data in
+	 * @param pcmOffset offset to store the PCM sample data at
+	 * @return number of bytes stored
+	 * @throws ProtocolException if the frame didn't contain the expected number of samples
+	 */
+	private int decodePcm(final ChannelBuffer alacBuffer, final int alacOffset, final int alacLength, final byte[] pcmBytes, final int pcmOffset)
+		throws ProtocolException
+	{
+		/* Decode ALAC to PCM where the frame lies. The decoder treats reads
+		 * beyond the frame's end as zeros, so no padded copy is required.
+		 * Heap buffers are decoded from their backing array, all others
+		 * (i.e. direct buffers) through a ByteBuffer view of the frame.
+		 */
+		final int pcmSamplesBytes;
+		if (alacBuffer.hasArray()) {
+			pcmSamplesBytes = AlacDecodeUtils.decode_frame_pcm(
+				m_alacFile,
+				alacBuffer.array(), alacBuffer.arrayOffset() + alacOffset, alacLength,
+				pcmBytes, pcmOffset, m_pcmFormat
+			);
+		}
+		else {
+			pcmSamplesBytes = AlacDecodeUtils.decode_frame_pcm(
+				m_alacFile,
+				alacBuffer.toByteBuffer(alacOffset, alacLength),
+				pcmBytes, pcmOffset, m_pcmFormat
+			);
 		}
 
-		return pcmPacket;
+		/* decode_frame() returns the number of *bytes*, not samples! */
+		final int pcmSamplesLength = pcmSamplesBytes / 4;
+		final Level level = Level.FINEST;
+		if (s_logger.isLoggable(level))
+			s_logger.log(level, "Decoded " + alacLength + " bytes of ALAC audio data to " + pcmSamplesLength + " PCM samples");
+
+		/* Complain if the sender doesn't honour it's commitment */
+		if (pcmSamplesLength != m_samplesPerFrame)
+			throw new ProtocolException("Frame declared to contain " + m_samplesPerFrame + ", but contained " + pcmSamplesLength);
+
+		return pcmSamplesBytes;
+	}
+
+	@Override
+	public int getDecodedLength(final int payloadLength) {
+		/* Every frame contains the same number of samples */
+		return m_samplesPerFrame * m_audioFormat.getFrameSize();
 	}
 
 	@Override
 	public AudioFormat getAudioFormat() {
-		return AudioOutputFormat;
+		return m_audioFormat;
 	}
 
 	@Override
@@ -17,6 +17,8 @@
 
 package org.phlo.AirReceiver;
 
+import java.security.GeneralSecurityException;
+
 import javax.crypto.Cipher;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.IvParameterSpec;
@@ -44,31 +46,78 @@ public class RaopRtpAudioDecryptionHandler extends OneToOneDecoder {
 	 */
 	private final IvParameterSpec m_aesIv;
 
-	public RaopRtpAudioDecryptionHandler(final SecretKey aesKey, final IvParameterSpec aesIv) {
+	/**
+	 * Scratch space for the plain text. Ciphers copy their input if it
+	 * overlaps the output, so we never decrypt in-place
+	 */
+	private byte[] m_plainText = new byte[0];
+
+	/**
+	 * Scratch space for the cipher text of buffers without a backing array
+	 */
+	private byte[] m_cipherText = new byte[0];
+
+	public RaopRtpAudioDecryptionHandler(final SecretKey aesKey, final IvParameterSpec aesIv)
+		throws GeneralSecurityException
+	{
 		m_aesKey = aesKey;
 		m_aesIv = aesIv;
+
+		/* doFinal() resets the cipher to this state, so initializing once suffices */
+		m_aesCipher.init(Cipher.DECRYPT_MODE, m_aesKey, m_aesIv);
 	}
 
 	@Override
-	protected synchronized Object decode(final ChannelHandlerContext ctx, final Channel channel, final Object msg)
+	protected Object decode(final ChannelHandlerContext ctx, final Channel channel, final Object msg)
 		throws Exception
 	{
 		if (msg instanceof RaopRtpPacket.Audio) {
 			final RaopRtpPacket.Audio audioPacket = (RaopRtpPacket.Audio)msg;
-			final ChannelBuffer audioPayload = audioPacket.getPayload();
+			decrypt(audioPacket.getBuffer(), audioPacket.getPayloadOffset(), audioPacket.getPayloadLength());
+		}
 
-			/* Cipher is restarted for every packet. We simply overwrite the
-			 * encrypted data with the corresponding plain text
+		return msg;
+	}
+
+	/**
+	 * Decrypts the payload of an audio packet in-place
+	 * 
+	 * @param audioBuffer buffer containing the payload
+	 * @param audioPayloadOffset offset of the payload
+	 * @param audioPayloadLength length of the payload
+	 * @throws GeneralSecurityException if the cipher fails
+	 */
+	public synchronized void decrypt(final ChannelBuffer audioBuffer, final int audioPayloadOffset, final int audioPayloadLength)
+		throws GeneralSecurityException
+	{
+		/* Only complete blocks are encrypted, the trailing bytes are plain text */
+		final int length = audioPayloadLength & ~0xf;
+
+		try {
+			/* The cipher is restarted for every packet, which doFinal() does
+			 * implicitly. We overwrite the encrypted data with the corresponding
+			 * plain text, decrypted in a single call
 			 */
-			m_aesCipher.init(Cipher.DECRYPT_MODE, m_aesKey, m_aesIv);
-			for(int i=0; (i + 16) <= audioPayload.capacity(); i += 16) {
-				byte[] block = new byte[16];
-				audioPayload.getBytes(i, block);
-				block = m_aesCipher.update(block);
-				audioPayload.setBytes(i, block);
+			if (m_plainText.length < length)
+				m_plainText = new byte[length];
+			if (audioBuffer.hasArray()) {
+				final byte[] array = audioBuffer.array();
+				final int offset = audioBuffer.arrayOffset() + audioPayloadOffset;
+				m_aesCipher.doFinal(array, offset, length, m_plainText, 0);
+				System.arraycopy(m_plainText, 0, array, offset, length);
+			}
+			else {
+				if (m_cipherText.length < length)
+					m_cipherText = new byte[length];
+				audioBuffer.getBytes(audioPayloadOffset, m_cipherText, 0, length);
+				m_aesCipher.doFinal(m_cipherText, 0, length, m_plainText, 0);
+				audioBuffer.setBytes(audioPayloadOffset, m_plainText, 0, length);
 			}
 		}
-
-		return msg;
+		catch (final GeneralSecurityException e) {
+			/* Don't leave the cipher in the middle of a packet */
+			m_aesCipher.init(Cipher.DECRYPT_MODE, m_aesKey, m_aesIv);
+			throw e;
+		}
 	}
 }
@@ -0,0 +1,197 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.phlo.AirReceiver;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.*;
+
+/**
+ * Handles audio packets in a single stage.
+ * <p>
+ * Replaces the sequence decode, retransmit request, decryption, audio decode and
+ * enqueue handlers for audio packets. Incoming buffers are decoded, checked for
+ * duplicates and packets which are too late to be played, decrypted, decoded
+ * and placed on the audio output queue by a single method invocation. All other
+ * packets, and buffers which aren't valid audio packets are passed upstream
+ * unmodified, and are handled by the general pipeline.
+ * <p>
+ * The handler must be placed <b>before</b> the {@link RaopRtpDecodeHandler}
+ * in the audio channel's pipeline. It also accepts already decoded audio packets,
+ * such as retransmitted packets routed over from the control channel.
+ */
+public class RaopRtpAudioFusedHandler extends SimpleChannelUpstreamHandler {
+	private static final Logger s_logger = Logger.getLogger(RaopRtpAudioFusedHandler.class.getName());
+
+	/**
+	 * Decoder for incoming buffers. Packets are handled synchronously, so
+	 * a single re-used instance suffices
+	 */
+	private final RaopRtpPacket.Decoder m_decoder = new RaopRtpPacket.Decoder();
+
+	/**
+	 * Decryption stage, or null if the stream isn't encrypted
+	 */
+	private final RaopRtpAudioDecryptionHandler m_decryptionHandler;
+
+	/**
+	 * Audio decode stage
+	 */
+	private final AudioFrameDecoder m_audioDecodeHandler;
+
+	/**
+	 * Retransmit request stage
+	 */
+	private final RaopRtpRetransmitRequestHandler m_retransmitRequestHandler;
+
+	/**
+	 * Duplicate and late packet filter
+	 */
+	private final RaopRtpAudioAdmissionHandler m_admissionHandler;
+
+	/**
+	 * Audio output queue, or null if decoded audio is to be discarded
+	 */
+	private final AudioOutputQueue m_audioOutputQueue;
+
+	/**
+	 * Latency handler, or null
+	 */
+	private final RaopRtpLatencyHandler m_latencyHandler;
+
+	/**
+	 * Receiver statistics, or null
+	 */
+	private final RaopRtpStatistics m_statistics;
+
+	/**
+	 * Samples are decoded into this buffer if they are discarded. Grown as necessary
+	 */
+	private byte[] m_discardedSamples = new byte[0];
+
+	/**
+	 * Creates a fused audio handler from the handlers whose work it replaces
+	 * 
+	 * @param decryptionHandler decryption handler, or null if the stream isn't encrypted
+	 * @param audioDecodeHandler audio decode handler
+	 * @param retransmitRequestHandler retransmit request handler
+	 * @param admissionHandler the session's duplicate and late packet filter
+	 * @param audioOutputQueue audio output queue, or null to discard decoded audio
+	 * @param latencyHandler latency handler to notify about enqueued packets, or null
+	 * @param statistics receiver statistics to report late packets to, or null
+	 */
+	public RaopRtpAudioFusedHandler(
+		final RaopRtpAudioDecryptionHandler decryptionHandler,
+		final AudioFrameDecoder audioDecodeHandler,
+		final RaopRtpRetransmitRequestHandler retransmitRequestHandler,
+		final RaopRtpAudioAdmissionHandler admissionHandler,
+		final AudioOutputQueue audioOutputQueue,
+		final RaopRtpLatencyHandler latencyHandler,
+		final RaopRtpStatistics statistics
+	) {
+		m_decryptionHandler = decryptionHandler;
+		m_audioDecodeHandler = audioDecodeHandler;
+		m_retransmitRequestHandler = retransmitRequestHandler;
+		m_admissionHandler = admissionHandler;
+		m_audioOutputQueue = audioOutputQueue;
+		m_latencyHandler = latencyHandler;
+		m_statistics = statistics;
+	}
+
+	@Override
+	public void messageReceived(final ChannelHandlerContext ctx, final MessageEvent evt)
+		throws Exception
+	{
+		final Object msg = evt.getMessage();
+
+		if (msg instanceof ChannelBuffer) {
+			RaopRtpPacket packet;
+			try {
+				packet = m_decoder.decode((ChannelBuffer)msg);
+			}
+			catch (final ProtocolException e) {
+				/* Let the decode handler deal with (and complain about) the buffer */
+				packet = null;
+			}
+
+			if (packet instanceof RaopRtpPacket.Audio) {
+				audioReceived(ctx.getChannel(), (RaopRtpPacket.Audio)packet);
+				return;
+			}
+		}
+		else if (msg instanceof RaopRtpPacket.Audio) {
+			audioReceived(ctx.getChannel(), (RaopRtpPacket.Audio)msg);
+			return;
+		}
+
+		super.messageReceived(ctx, evt);
+	}
+
+	/**
+	 * Handles an audio packet
+	 * 
+	 * @param channel channel the packet arrived on
+	 * @param audioPacket the packet
+	 * @throws Exception if the packet cannot be decrypted or decoded
+	 */
+	private synchronized void audioReceived(final Channel channel, final RaopRtpPacket.Audio audioPacket)
+		throws Exception
+	{
+		/* Retransmit requests must be updated for duplicates and late packets too */
+		m_retransmitRequestHandler.audioReceived(channel, audioPacket);
+
+		/* Drop duplicates and packets which would be played entirely in the past */
+		if (!m_admissionHandler.admit(audioPacket))
+			return;
+
+		/* Decrypt in-place, and decode directly into the buffer that is queued for playback */
+		final ChannelBuffer buffer = audioPacket.getBuffer();
+		final int offset = audioPacket.getPayloadOffset();
+		final int length = audioPacket.getPayloadLength();
+		if (m_decryptionHandler != null)
+			m_decryptionHandler.decrypt(buffer, offset, length);
+		final int samplesLength = m_audioDecodeHandler.getDecodedLength(length);
+		final byte[] samples;
+		if (m_audioOutputQueue != null) {
+			samples = m_audioOutputQueue.obtainSampleBuffer(samplesLength);
+		}
+		else {
+			if (m_discardedSamples.length != samplesLength)
+				m_discardedSamples = new byte[samplesLength];
+			samples = m_discardedSamples;
+		}
+		m_audioDecodeHandler.decodeFrame(buffer, offset, length, samples, 0);
+
+		/* Enqueue */
+		if (m_audioOutputQueue != null) {
+			if (m_audioOutputQueue.enqueue(audioPacket.getTimeStamp(), samples)) {
+				if (m_latencyHandler != null)
+					m_latencyHandler.audioEnqueued(audioPacket);
+			}
+			else if ((m_statistics != null) && (audioPacket.getTimeStamp() < m_audioOutputQueue.getNextFrameTime())) {
+				/* Rejected packets which start in the past were late, not early */
+				m_statistics.lateDropped();
+			}
+			if (s_logger.isLoggable(Level.FINEST))
+				s_logger.finest("Packet with sequence " + audioPacket.getSequence() + " for playback at " + audioPacket.getTimeStamp() + " submitted to audio output queue");
+		}
+	}
+}
@@ -0,0 +1,225 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.phlo.AirReceiver;
+
+import java.util.logging.*;
+
+import javax.sound.sampled.AudioFormat;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.*;
+import org.jboss.netty.handler.codec.oneone.OneToOneDecoder;
+
+/**
+ * Handles uncompressed {@code L16/44100/2} audio packets, i.e. signed big endian
+ * 16-bit stereo PCM as defined by RFC 3551. Also serves as an
+ * {@link AudioStreamInformationProvider} and {@link AudioFrameDecoder}
+ *
+ * There's nothing to decode. If the output format is the payload's format,
+ * which is the default, packets are passed on unmodified. Otherwise the
+ * samples' signedness and byte order are fixed up in place.
+ */
+public class RaopRtpAudioL16DecodeHandler extends OneToOneDecoder implements AudioFrameDecoder {
+	private static Logger s_logger = Logger.getLogger(RaopRtpAudioL16DecodeHandler.class.getName());
+
+	/**
+	 * The SDP rtpmap encoding handled by this decoder
+	 */
+	public static final String Encoding = "L16/44100/2";
+
+	/**
+	 * Number of frames per packet assumed unless the sender says otherwise.
+	 * Matches the packet size used for ALAC streams
+	 */
+	public static final int DefaultFramesPerPacket = 352;
+
+	/**
+	 * The payload's format
+	 */
+	public static final AudioFormat PayloadFormat = RaopRtpAudioAlacDecodeHandler.SignedBigEndianFormat;
+
+	/**
+	 * The {@link AudioFormat} that corresponds to the output produced by the decoder
+	 */
+	private final AudioFormat m_audioFormat;
+
+	/**
+	 * True if the samples' top bits must be flipped, i.e. the output is unsigned
+	 */
+	private final boolean m_flipSign;
+
+	/**
+	 * True if the samples' bytes must be swapped, i.e. the output is little endian
+	 */
+	private final boolean m_swapBytes;
+
+	/**
+	 * Number of frames per packet
+	 */
+	private final int m_framesPerPacket;
+
+	/**
+	 * Creates an L16 decoder which passes packets on unmodified
+	 *
+	 * @param framesPerPacket number of frames per packet the sender uses
+	 */
+	public RaopRtpAudioL16DecodeHandler(final int framesPerPacket) {
+		this(framesPerPacket, PayloadFormat);
+	}
+
+	/**
+	 * Creates an L16 decoder
+	 *
+	 * @param framesPerPacket number of frames per packet the sender uses
+	 * @param outputFormat PCM format to produce. Must be 16-bit stereo PCM at
+	 *        44100 Hz, but may be signed or unsigned, and either byte order
+	 * @throws IllegalArgumentException if the output format is not supported
+	 */
+	public RaopRtpAudioL16DecodeHandler(final int framesPerPacket, final AudioFormat outputFormat) {
+		if (
+			(outputFormat.getSampleSizeInBits() != 16) ||
+			(outputFormat.getChannels() != 2) ||
+			(outputFormat.getSampleRate() != 44100)
+		)
+			throw new IllegalArgumentException("Output format " + outputFormat + " is not supported");
+		if (AudioFormat.Encoding.PCM_SIGNED.equals(outputFormat.getEncoding()))
+			m_flipSign = false;
+		else if (AudioFormat.Encoding.PCM_UNSIGNED.equals(outputFormat.getEncoding()))
+			m_flipSign = true;
+		else
+			throw new IllegalArgumentException("Output encoding " + outputFormat.getEncoding() + " is not supported");
+		m_swapBytes = !outputFormat.isBigEndian();
+		m_audioFormat = outputFormat;
+		m_framesPerPacket = framesPerPacket;
+
+		s_logger.info("Created L16 decoder for " + framesPerPacket + " frames per packet producing " + m_audioFormat);
+	}
+
+	@Override
+	protected Object decode(final ChannelHandlerContext ctx, final Channel channel, final Object msg)
+		throws Exception
+	{
+		if (!(msg instanceof RaopRtpPacket.Audio))
+			return msg;
+
+		final RaopRtpPacket.Audio audioPacket = (RaopRtpPacket.Audio)msg;
+		final ChannelBuffer buffer = audioPacket.getBuffer();
+		final int offset = audioPacket.getPayloadOffset();
+		final int length = audioPacket.getPayloadLength();
+		checkLength(length);
+
+		/* Fix up the samples where they lie, if at all */
+		if (m_flipSign || m_swapBytes) {
+			if (buffer.hasArray()) {
+				final byte[] array = buffer.array();
+				final int arrayOffset = buffer.arrayOffset() + offset;
+				convertSamples(array, arrayOffset, array, arrayOffset, length);
+			}
+			else {
+				/* Byte-wise, since the buffer's byte order may differ from the payload's */
+				final int flip = m_flipSign ? 0x80 : 0x00;
+				final int hi = m_swapBytes ? 1 : 0;
+				final int lo = 1 - hi;
+				for(int i=offset; i < offset + length; i += 2) {
+					final byte high = (byte)(buffer.getByte(i) ^ flip);
+					final byte low = buffer.getByte(i + 1);
+					buffer.setByte(i + hi, high);
+					buffer.setByte(i + lo, low);
+				}
+			}
+		}
+
+		return audioPacket;
+	}
+
+	@Override
+	public int decodeFrame(final ChannelBuffer buffer, final int offset, final int length, final byte[] pcmBytes, final int pcmOffset)
+		throws ProtocolException
+	{
+		checkLength(length);
+
+		if (buffer.hasArray()) {
+			convertSamples(buffer.array(), buffer.arrayOffset() + offset, pcmBytes, pcmOffset, length);
+		}
+		else {
+			buffer.getBytes(offset, pcmBytes, pcmOffset, length);
+			convertSamples(pcmBytes, pcmOffset, pcmBytes, pcmOffset, length);
+		}
+
+		return length;
+	}
+
+	/**
+	 * Complains about payloads which contain partial frames
+	 *
+	 * @param length payload length
+	 * @throws ProtocolException if the payload contains a partial frame
+	 */
+	private void checkLength(final int length) throws ProtocolException {
+		if (length % m_audioFormat.getFrameSize() != 0)
+			throw new ProtocolException("L16 payload of " + length + " bytes contains a partial frame");
+	}
+
+	/**
+	 * Converts big endian signed samples to the output format. The source
+	 * and destination ranges may be identical, but must not overlap otherwise.
+	 *
+	 * @param src source samples
+	 * @param srcOffset offset of the source samples
+	 * @param dst array to store the converted samples in
+	 * @param dstOffset offset to store the converted samples at
+	 * @param length length in bytes
+	 */
+	private void convertSamples(final byte[] src, final int srcOffset, final byte[] dst, final int dstOffset, final int length) {
+		if (!m_flipSign && !m_swapBytes) {
+			if ((src != dst) || (srcOffset != dstOffset))
+				System.arraycopy(src, srcOffset, dst, dstOffset, length);
+			return;
+		}
+
+		final int flip = m_flipSign ? 0x80 : 0x00;
+		final int hi = m_swapBytes ? 1 : 0;
+		final int lo = 1 - hi;
+		for(int i=0; i < length; i += 2) {
+			final byte high = (byte)(src[srcOffset + i] ^ flip);
+			final byte low = src[srcOffset + i + 1];
+			dst[dstOffset + i + hi] = high;
+			dst[dstOffset + i + lo] = low;
+		}
+	}
+
+	@Override
+	public int getDecodedLength(final int payloadLength) {
+		return payloadLength;
+	}
+
+	@Override
+	public AudioFormat getAudioFormat() {
+		return m_audioFormat;
+	}
+
+	@Override
+	public int getFramesPerPacket() {
+		return m_framesPerPacket;
+	}
+
+	@Override
+	public double getPacketsPerSecond() {
+		return getAudioFormat().getSampleRate() / (double)getFramesPerPacket();
+	}
+}
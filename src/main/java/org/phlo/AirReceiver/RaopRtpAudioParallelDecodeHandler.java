@@ -0,0 +1,369 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.phlo.AirReceiver;
+
+import java.net.SocketAddress;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.*;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+import javax.sound.sampled.AudioFormat;
+
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.*;
+
+/**
+ * Decrypts and decodes audio packets on a pool of worker threads, and
+ * passes the resulting PCM packets on in the order they arrived.
+ * <p>
+ * Replaces {@link RaopRtpAudioDecryptionHandler} and {@link RaopRtpAudioAlacDecodeHandler}
+ * in the audio channel's pipeline. Every worker task borrows one of {@code parallelism}
+ * decoders, each owning its own cipher and ALAC decoder state, so no decoder is
+ * ever used by two threads at once. Packets are numbered in the order they are
+ * submitted, and completed packets are held in a small reorder window until all
+ * their predecessors are completed. If the window is full, the submitting thread
+ * blocks until the oldest packet completes. Packets are passed on by one thread at
+ * a time, but without holding the window's lock, so workers never wait for the
+ * rest of the pipeline.
+ * <p>
+ * {@link #discard()} drops all packets submitted so far which haven't been
+ * passed on yet, and must be called whenever the client flushes its stream.
+ * <p>
+ * Since packets and their buffers may be re-used once this handler returns
+ * (see {@link AirReceiver#RtpReusePackets}), audio
+ * packets are copied before they're submitted. Other messages are passed on
+ * immediately.
+ */
+public class RaopRtpAudioParallelDecodeHandler extends SimpleChannelUpstreamHandler {
+	/**
+	 * Maximum number of submitted but not yet passed on packets
+	 */
+	public static final int WindowPackets = 64;
+
+	/**
+	 * Marks a reorder window slot whose packet failed to decode
+	 */
+	private static final Object Dropped = new Object();
+
+	/**
+	 * Decryption and decoding state used by one task at a time
+	 */
+	private static final class Decoder {
+		/**
+		 * Decryption handler, or null if the audio data isn't encrypted
+		 */
+		public final RaopRtpAudioDecryptionHandler decryptionHandler;
+
+		/**
+		 * ALAC decoder
+		 */
+		public final RaopRtpAudioAlacDecodeHandler alacDecodeHandler;
+
+		public Decoder(final RaopRtpAudioDecryptionHandler _decryptionHandler, final RaopRtpAudioAlacDecodeHandler _alacDecodeHandler) {
+			decryptionHandler = _decryptionHandler;
+			alacDecodeHandler = _alacDecodeHandler;
+		}
+	}
+
+	/**
+	 * Executor the worker tasks run on
+	 */
+	private final Executor m_executor;
+
+	/**
+	 * Decoders not currently used by a task
+	 */
+	private final BlockingQueue<Decoder> m_decoders;
+
+	/**
+	 * Number of decoders
+	 */
+	private final int m_parallelism;
+
+	/**
+	 * Free slots in the reorder window
+	 */
+	private final Semaphore m_windowSlots = new Semaphore(WindowPackets);
+
+	/**
+	 * Completed packets, indexed by submission number modulo
+	 * {@link #WindowPackets}. Guarded by {@link #m_window}
+	 */
+	private final Object[] m_window = new Object[WindowPackets];
+
+	/**
+	 * Submission number of the next submitted packet. Guarded by {@link #m_window}
+	 */
+	private long m_submitted = 0;
+
+	/**
+	 * Addresses the completed packets were received from, indexed like
+	 * {@link #m_window}. Guarded by {@link #m_window}
+	 */
+	private final SocketAddress[] m_windowAddresses = new SocketAddress[WindowPackets];
+
+	/**
+	 * Submission number of the next packet to pass on. Guarded by {@link #m_window}
+	 */
+	private long m_passed = 0;
+
+	/**
+	 * True while a thread is passing packets on. Guarded by {@link #m_window}
+	 */
+	private boolean m_draining = false;
+
+	/**
+	 * Packets taken from the reorder window by the draining thread, and the
+	 * addresses they were received from. Only used by the draining thread
+	 */
+	private final Object[] m_run = new Object[WindowPackets];
+	private final SocketAddress[] m_runAddresses = new SocketAddress[WindowPackets];
+
+	/**
+	 * Packets with smaller submission numbers were discarded by {@link #discard()}.
+	 * Only modified while holding {@link #m_window}
+	 */
+	private volatile long m_discardedBefore = 0;
+
+	/**
+	 * Creates a parallel decode handler which produces the ALAC decoder's default PCM format
+	 *
+	 * @param aesKey AES key, or null if the audio data isn't encrypted
+	 * @param aesIv AES initialization vector, or null if the audio data isn't encrypted
+	 * @param formatOptions ALAC format options as they appear in the SDP session announcement
+	 * @param executor executor to run the worker tasks on
+	 * @param parallelism number of packets decoded concurrently
+	 * @throws GeneralSecurityException if the AES cipher cannot be initialized
+	 * @throws ProtocolException if the format options are invalid for ALAC
+	 */
+	public RaopRtpAudioParallelDecodeHandler(
+		final SecretKey aesKey,
+		final IvParameterSpec aesIv,
+		final String[] formatOptions,
+		final Executor executor,
+		final int parallelism
+	)
+		throws GeneralSecurityException, ProtocolException
+	{
+		this(aesKey, aesIv, formatOptions, RaopRtpAudioAlacDecodeHandler.SignedBigEndianFormat, executor, parallelism);
+	}
+
+	/**
+	 * Creates a parallel decode handler
+	 *
+	 * @param aesKey AES key, or null if the audio data isn't encrypted
+	 * @param aesIv AES initialization vector, or null if the audio data isn't encrypted
+	 * @param formatOptions ALAC format options as they appear in the SDP session announcement
+	 * @param outputFormat PCM format to produce, see {@link RaopRtpAudioAlacDecodeHandler}
+	 * @param executor executor to run the worker tasks on
+	 * @param parallelism number of packets decoded concurrently
+	 * @throws GeneralSecurityException if the AES cipher cannot be initialized
+	 * @throws ProtocolException if the format options are invalid for ALAC
+	 */
+	public RaopRtpAudioParallelDecodeHandler(
+		final SecretKey aesKey,
+		final IvParameterSpec aesIv,
+		final String[] formatOptions,
+		final AudioFormat outputFormat,
+		final Executor executor,
+		final int parallelism
+	)
+		throws GeneralSecurityException, ProtocolException
+	{
+		if (parallelism < 1)
+			throw new IllegalArgumentException("Parallelism must be positive, but was " + parallelism);
+
+		m_executor = executor;
+		m_parallelism = parallelism;
+		m_decoders = new ArrayBlockingQueue<Decoder>(parallelism);
+		for(int i=0; i < parallelism; ++i) {
+			m_decoders.add(new Decoder(
+				((aesKey != null) && (aesIv != null)) ? new RaopRtpAudioDecryptionHandler(aesKey, aesIv) : null,
+				new RaopRtpAudioAlacDecodeHandler(formatOptions, false, outputFormat)
+			));
+		}
+	}
+
+	/**
+	 * Returns the number of packets decoded concurrently
+	 *
+	 * @return number of decoders
+	 */
+	public int getParallelism() {
+		return m_parallelism;
+	}
+
+	@Override
+	public void messageReceived(final ChannelHandlerContext ctx, final MessageEvent evt)
+		throws Exception
+	{
+		if (!(evt.getMessage() instanceof RaopRtpPacket.Audio)) {
+			super.messageReceived(ctx, evt);
+			return;
+		}
+
+		/* Copy the packet, the original may be re-used once we return */
+		final RaopRtpPacket.Audio audioPacket = (RaopRtpPacket.Audio)RaopRtpPacket.decode(
+			ChannelBuffers.copiedBuffer(((RaopRtpPacket.Audio)evt.getMessage()).getBuffer())
+		);
+		final SocketAddress remoteAddress = evt.getRemoteAddress();
+
+		/* Wait for a free slot in the reorder window */
+		m_windowSlots.acquire();
+
+		final long submission;
+		synchronized(m_window) {
+			submission = m_submitted++;
+		}
+
+		try {
+			m_executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					/* Don't bother decoding packets which were discarded while waiting */
+					completed(ctx, submission, (submission >= m_discardedBefore) ? decode(ctx, audioPacket) : Dropped, remoteAddress);
+				}
+			});
+		}
+		catch (final RejectedExecutionException e) {
+			/* Keep the window consistent, otherwise all later packets are held back */
+			completed(ctx, submission, Dropped, remoteAddress);
+			throw e;
+		}
+	}
+
+	/**
+	 * Decrypts and decodes a packet using one of the decoders. Failures
+	 * are reported to the channel's pipeline.
+	 *
+	 * @param ctx channel handler context
+	 * @param audioPacket ALAC audio packet
+	 * @return PCM audio packet, or {@link #Dropped} if decoding failed
+	 */
+	private Object decode(final ChannelHandlerContext ctx, final RaopRtpPacket.Audio audioPacket) {
+		Decoder decoder = null;
+		try {
+			decoder = m_decoders.take();
+
+			if (decoder.decryptionHandler != null)
+				decoder.decryptionHandler.decrypt(audioPacket.getBuffer(), audioPacket.getPayloadOffset(), audioPacket.getPayloadLength());
+			return decoder.alacDecodeHandler.decode(ctx, ctx.getChannel(), audioPacket);
+		}
+		catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return Dropped;
+		}
+		catch (final Throwable e) {
+			Channels.fireExceptionCaught(ctx.getChannel(), e);
+			return Dropped;
+		}
+		finally {
+			if (decoder != null)
+				m_decoders.add(decoder);
+		}
+	}
+
+	/**
+	 * Stores a completed packet in the reorder window, and passes on all
+	 * packets whose predecessors have completed. If another thread is already
+	 * passing packets on, that thread takes care of this packet too, which
+	 * keeps the packets in order.
+	 *
+	 * @param ctx channel handler context
+	 * @param submission submission number of the packet
+	 * @param result PCM audio packet, or {@link #Dropped}
+	 * @param remoteAddress address the packet was received from
+	 */
+	private void completed(final ChannelHandlerContext ctx, final long submission, final Object result, final SocketAddress remoteAddress) {
+		synchronized(m_window) {
+			final int slot = (int)(submission % WindowPackets);
+			m_window[slot] = result;
+			m_windowAddresses[slot] = remoteAddress;
+
+			if (m_draining)
+				return;
+			m_draining = true;
+		}
+
+		while (true) {
+			/* Take the packets which are next in line from the window */
+			final long first;
+			int count = 0;
+			synchronized(m_window) {
+				first = m_passed;
+				while (m_passed < m_submitted) {
+					final int slot = (int)(m_passed % WindowPackets);
+					if (m_window[slot] == null)
+						break;
+
+					m_run[count] = m_window[slot];
+					m_runAddresses[count] = m_windowAddresses[slot];
+					m_window[slot] = null;
+					m_windowAddresses[slot] = null;
+					++m_passed;
+					++count;
+				}
+
+				if (count == 0) {
+					m_draining = false;
+					return;
+				}
+			}
+
+			/* And pass them on without holding the lock */
+			for(int i=0; i < count; ++i) {
+				final Object packet = m_run[i];
+				final SocketAddress address = m_runAddresses[i];
+				m_run[i] = null;
+				m_runAddresses[i] = null;
+
+				try {
+					if ((packet != Dropped) && (first + i >= m_discardedBefore))
+						Channels.fireMessageReceived(ctx, packet, address);
+				}
+				catch (final Throwable e) {
+					Channels.fireExceptionCaught(ctx.getChannel(), e);
+				}
+				finally {
+					m_windowSlots.release();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Drops all submitted packets which haven't been passed on yet. Packets
+	 * still being decoded are dropped once they complete.
+	 */
+	public void discard() {
+		synchronized(m_window) {
+			m_discardedBefore = m_submitted;
+		}
+	}
+
+	/**
+	 * Waits until all submitted packets have been passed on
+	 *
+	 * @throws InterruptedException if the calling thread was interrupted
+	 */
+	public void flush() throws InterruptedException {
+		m_windowSlots.acquire(WindowPackets);
+		m_windowSlots.release(WindowPackets);
+	}
+}
@@ -25,10 +25,36 @@ import org.jboss.netty.handler.codec.oneone.OneToOneDecoder;
 
 /**
  * Decodes incoming packets, emitting instances of {@link RaopRtpPacket}
+ * <p>
+ * If packet re-use is enabled, one {@link RaopRtpPacket.Decoder} is kept per
+ * channel, and the emitted packets are views which are re-bound to the next
+ * incoming buffer. Handlers further up the pipeline must then not retain the
+ * packets or pass them to other threads.
  */
 public class RaopRtpDecodeHandler extends OneToOneDecoder {
 	private static final Logger s_logger = Logger.getLogger(RaopRtpDecodeHandler.class.getName());
 
+	/**
+	 * Re-use packet instances
+	 */
+	private final boolean m_reusePackets;
+
+	/**
+	 * Creates a decoder which allocates a new packet instance per packet
+	 */
+	public RaopRtpDecodeHandler() {
+		this(false);
+	}
+
+	/**
+	 * Creates a decoder
+	 * 
+	 * @param reusePackets re-use one packet instance per packet type and channel
+	 */
+	public RaopRtpDecodeHandler(final boolean reusePackets) {
+		m_reusePackets = reusePackets;
+	}
+
 	@Override
 	protected Object decode(final ChannelHandlerContext ctx, final Channel channel, final Object msg)
 		throws Exception
@@ -37,7 +63,10 @@ public class RaopRtpDecodeHandler extends OneToOneDecoder {
 			final ChannelBuffer buffer = (ChannelBuffer)msg;
 
 			try {
-				return RaopRtpPacket.decode(buffer);
+				if (m_reusePackets)
+					return getDecoder(ctx).decode(buffer);
+				else
+					return RaopRtpPacket.decode(buffer);
 			}
 			catch (final InvalidPacketException e1) {
 				s_logger.warning(e1.getMessage());
@@ -48,4 +77,21 @@ public class RaopRtpDecodeHandler extends OneToOneDecoder {
 			return msg;
 		}
 	}
+
+	/**
+	 * Returns the channel's decoder. The handler is shared between the channels
+	 * of a session, so the decoder is stored as the context's attachment, which
+	 * is specific to the channel's pipeline.
+	 * 
+	 * @param ctx the handler context
+	 * @return the channel's decoder
+	 */
+	private static RaopRtpPacket.Decoder getDecoder(final ChannelHandlerContext ctx) {
+		RaopRtpPacket.Decoder decoder = (RaopRtpPacket.Decoder)ctx.getAttachment();
+		if (decoder == null) {
+			decoder = new RaopRtpPacket.Decoder();
+			ctx.setAttachment(decoder);
+		}
+		return decoder;
+	}
 }
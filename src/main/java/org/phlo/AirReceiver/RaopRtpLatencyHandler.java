@@ -0,0 +1,151 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.phlo.AirReceiver;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.*;
+
+/**
+ * Measures the latency between the arrival of an audio datagram and the
+ * moment its samples are placed on the audio output queue.
+ * <p>
+ * Must be the first handler of the audio channel's pipeline, i.e. in front of
+ * the execution handler, so that the arrival time is taken on the I/O thread.
+ * Arrival times are stored per sequence number and looked up by
+ * {@link #audioEnqueued(RaopRtpPacket.Audio)}. Only transmitted packets are
+ * measured, retransmitted packets arrive on the control channel.
+ */
+public class RaopRtpLatencyHandler extends SimpleChannelUpstreamHandler {
+	private static final Logger s_logger = Logger.getLogger(RaopRtpLatencyHandler.class.getName());
+
+	/**
+	 * Weight of a single packet's latency in the running average
+	 */
+	private static final double AverageWeight = 0.01;
+
+	/**
+	 * Number of packets between two log messages
+	 */
+	private static final int LogInterval = 1000;
+
+	/**
+	 * Arrival times (as returned by {@link System#nanoTime()}) indexed
+	 * by sequence number. Zero if unknown
+	 */
+	private final long[] m_arrivalNanos = new long[0x10000];
+
+	/**
+	 * Running average latency in seconds
+	 */
+	private final RunningExponentialAverage m_averageSeconds = new RunningExponentialAverage();
+
+	/**
+	 * Maximum latency in seconds
+	 */
+	private double m_maximumSeconds = 0.0;
+
+	/**
+	 * Number of packets measured
+	 */
+	private long m_packetCount = 0;
+
+	@Override
+	public void messageReceived(final ChannelHandlerContext ctx, final MessageEvent evt)
+		throws Exception
+	{
+		if (evt.getMessage() instanceof ChannelBuffer) {
+			final ChannelBuffer buffer = (ChannelBuffer)evt.getMessage();
+			if (
+				(buffer.capacity() >= RaopRtpPacket.AudioTransmit.Length) &&
+				((buffer.getByte(1) & 0x7f) == RaopRtpPacket.AudioTransmit.PayloadType)
+			) {
+				m_arrivalNanos[buffer.getUnsignedShort(2)] = System.nanoTime();
+			}
+		}
+
+		super.messageReceived(ctx, evt);
+	}
+
+	/**
+	 * Records that an audio packet was placed on the audio output queue
+	 * 
+	 * @param audioPacket audio packet
+	 */
+	public void audioEnqueued(final RaopRtpPacket.Audio audioPacket) {
+		if (!(audioPacket instanceof RaopRtpPacket.AudioTransmit))
+			return;
+
+		final long enqueuedNanos = System.nanoTime();
+		final int sequence = audioPacket.getSequence();
+		final long arrivalNanos = m_arrivalNanos[sequence];
+		if (arrivalNanos == 0)
+			return;
+		m_arrivalNanos[sequence] = 0;
+
+		final double latencySeconds = 1e-9 * (double)(enqueuedNanos - arrivalNanos);
+		synchronized(this) {
+			m_averageSeconds.add(latencySeconds, AverageWeight);
+			m_maximumSeconds = Math.max(m_maximumSeconds, latencySeconds);
+			++m_packetCount;
+
+			if (((m_packetCount % LogInterval) == 0) && s_logger.isLoggable(Level.FINE))
+				s_logger.fine(toString());
+		}
+	}
+
+	/**
+	 * Returns the running average of the latency between arrival and enqueue
+	 * 
+	 * @return average latency in seconds, or NaN if no packet was measured yet
+	 */
+	public synchronized double getAverageSeconds() {
+		return m_averageSeconds.get();
+	}
+
+	/**
+	 * Returns the maximum latency between arrival and enqueue
+	 * 
+	 * @return maximum latency in seconds
+	 */
+	public synchronized double getMaximumSeconds() {
+		return m_maximumSeconds;
+	}
+
+	/**
+	 * Returns the number of packets measured
+	 * 
+	 * @return number of packets
+	 */
+	public synchronized long getPacketCount() {
+		return m_packetCount;
+	}
+
+	@Override
+	public synchronized String toString() {
+		final StringBuilder s = new StringBuilder();
+		s.append("Audio packet arrival to enqueue latency");
+		s.append(": "); s.append("average="); s.append(m_averageSeconds.get());
+		s.append(" "); s.append("max="); s.append(m_maximumSeconds);
+		s.append(" "); s.append("packets="); s.append(m_packetCount);
+		return s.toString();
+	}
+}
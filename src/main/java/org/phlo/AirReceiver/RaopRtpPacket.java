@@ -83,31 +83,36 @@ public abstract class RaopRtpPacket extends RtpPacket {
 	 * 
 	 * The value is internally represented as a 64-bit fixed
 	 * point number with 32 fractional bits.
+	 * <p>
+	 * Instances are views onto a part of a packet's buffer. They
+	 * always refer to the packet's <b>current</b> buffer, and thus
+	 * remain valid if the packet is re-bound to a different buffer.
 	 */
 	public static final class NtpTime {
 		public static final int Length = 8;
 
-		private final ChannelBuffer m_buffer;
+		private final RtpPacket m_packet;
+		private final int m_offset;
 
-		protected NtpTime(final ChannelBuffer buffer) {
-			assert buffer.capacity() == Length;
-			m_buffer = buffer;
+		protected NtpTime(final RtpPacket packet, final int offset) {
+			m_packet = packet;
+			m_offset = offset;
 		}
 
 		public long getSeconds() {
-			return getBeUInt(m_buffer, 0);
+			return getBeUInt(m_packet.getBuffer(), m_offset);
 		}
 
 		public void setSeconds(final long seconds) {
-			setBeUInt(m_buffer, 0, seconds);
+			setBeUInt(m_packet.getBuffer(), m_offset, seconds);
 		}
 
 		public long getFraction() {
-			return getBeUInt(m_buffer, 4);
+			return getBeUInt(m_packet.getBuffer(), m_offset + 4);
 		}
 
 		public void setFraction(final long fraction) {
-			setBeUInt(m_buffer, 4, fraction);
+			setBeUInt(m_packet.getBuffer(), m_offset + 4, fraction);
 		}
 
 		public double getDouble() {
@@ -126,6 +131,10 @@ public abstract class RaopRtpPacket extends RtpPacket {
 	public static class Timing extends RaopRtpPacket {
 		public static final int Length = RaopRtpPacket.Length + 4 + 8 + 8 + 8;
 
+		private final NtpTime m_referenceTime = new NtpTime(this, RaopRtpPacket.Length + 4);
+		private final NtpTime m_receivedTime = new NtpTime(this, RaopRtpPacket.Length + 12);
+		private final NtpTime m_sendTime = new NtpTime(this, RaopRtpPacket.Length + 20);
+
 		protected Timing() {
 			super(Length);
 			setMarker(true);
@@ -142,7 +151,7 @@ public abstract class RaopRtpPacket extends RtpPacket {
 		 * @return
 		 */
 		public NtpTime getReferenceTime() {
-			return new NtpTime(getBuffer().slice(RaopRtpPacket.Length + 4, 8));
+			return m_referenceTime;
 		}
 
 		/**
@@ -151,7 +160,7 @@ public abstract class RaopRtpPacket extends RtpPacket {
 		 * @return
 		 */
 		public NtpTime getReceivedTime() {
-			return new NtpTime(getBuffer().slice(RaopRtpPacket.Length + 12, 8));
+			return m_receivedTime;
 		}
 
 		/**
@@ -160,7 +169,7 @@ public abstract class RaopRtpPacket extends RtpPacket {
 		 * @return
 		 */
 		public NtpTime getSendTime() {
-			return new NtpTime(getBuffer().slice(RaopRtpPacket.Length + 20, 8));
+			return m_sendTime;
 		}
 
 		@Override
@@ -232,6 +241,8 @@ public abstract class RaopRtpPacket extends RtpPacket {
 		public static final byte PayloadType = 0x54;
 		public static final int Length = RaopRtpPacket.Length + 4 + 8 + 4;
 
+		private final NtpTime m_time = new NtpTime(this, RaopRtpPacket.Length + 4);
+
 		public Sync() {
 			super(Length);
 			setPayloadType(PayloadType);
@@ -266,7 +277,7 @@ public abstract class RaopRtpPacket extends RtpPacket {
 		 * @return the source's NTP time corresponding to the RTP time returned by {@link #getTimeStamp()}
 		 */
 		public NtpTime getTime() {
-			return new NtpTime(getBuffer().slice(RaopRtpPacket.Length + 4, 8));
+			return m_time;
 		}
 
 		/**
@@ -409,10 +420,31 @@ public abstract class RaopRtpPacket extends RtpPacket {
 		abstract public void setSSrc(long sSrc);
 		
 		/**
-		 * ChannelBuffer containing the audio data
+		 * Offset of the audio data within the packet's buffer
+		 * @return offset of the audio data
+		 */
+		abstract public int getPayloadOffset();
+
+		/**
+		 * Length of the audio data
+		 * @return length of audio data in bytes
+		 */
+		public int getPayloadLength() {
+			return getLength() - getPayloadOffset();
+		}
+
+		/**
+		 * ChannelBuffer containing the audio data.
+		 * <p>
+		 * Creates a new slice of the packet's buffer upon
+		 * every call. Use {@link #getBuffer()}, {@link #getPayloadOffset()}
+		 * and {@link #getPayloadLength()} on hot paths instead.
+		 * 
 		 * @return channel buffer containing audio data
 		 */
-		abstract public ChannelBuffer getPayload();
+		public ChannelBuffer getPayload() {
+			return getBuffer().slice(getPayloadOffset(), getPayloadLength());
+		}
 	}
 
 	/**
@@ -456,8 +488,8 @@ public abstract class RaopRtpPacket extends RtpPacket {
 		}
 
 		@Override
-		public ChannelBuffer getPayload() {
-			return getBuffer().slice(Length, getLength() - Length);
+		public int getPayloadOffset() {
+			return Length;
 		}
 
 		@Override
@@ -467,7 +499,7 @@ public abstract class RaopRtpPacket extends RtpPacket {
 
 			s.append(" "); s.append("ts="); s.append(getTimeStamp());
 			s.append(" "); s.append("ssrc="); s.append(getSSrc());
-			s.append(" "); s.append("<"); s.append(getPayload().capacity()); s.append(" bytes payload>");
+			s.append(" "); s.append("<"); s.append(getPayloadLength()); s.append(" bytes payload>");
 
 			return s.toString();
 		}
@@ -547,8 +579,8 @@ public abstract class RaopRtpPacket extends RtpPacket {
 		}
 
 		@Override
-		public ChannelBuffer getPayload() {
-			return getBuffer().slice(Length, getLength() - Length);
+		public int getPayloadOffset() {
+			return Length;
 		}
 
 		@Override
@@ -560,12 +592,75 @@ public abstract class RaopRtpPacket extends RtpPacket {
 			s.append(" "); s.append("oseq="); s.append(getOriginalSequence());
 			s.append(" "); s.append("ts="); s.append(getTimeStamp());
 			s.append(" "); s.append("ssrc="); s.append(getSSrc());
-			s.append(" "); s.append("<"); s.append(getPayload().capacity()); s.append(" bytes payload>");
+			s.append(" "); s.append("<"); s.append(getPayloadLength()); s.append(" bytes payload>");
 
 			return s.toString();
 		}
 	}
 
+	/**
+	 * Re-usable packet decoder.
+	 * <p>
+	 * Holds one instance of each {@link RaopRtpPacket} sub-class, and re-binds
+	 * them to the buffers passed to {@link #decode(ChannelBuffer)} instead of
+	 * allocating new instances. The returned packet is thus only valid until
+	 * the next call to {@link #decode(ChannelBuffer)}, and must neither be
+	 * retained nor handed to other threads. Instances are not thread-safe.
+	 */
+	public static final class Decoder {
+		private final TimingRequest m_timingRequest = new TimingRequest();
+		private final TimingResponse m_timingResponse = new TimingResponse();
+		private final Sync m_sync = new Sync();
+		private final RetransmitRequest m_retransmitRequest = new RetransmitRequest();
+		private final AudioRetransmit m_audioRetransmit = new AudioRetransmit(0);
+		private final AudioTransmit m_audioTransmit = new AudioTransmit(0);
+
+		/**
+		 * Re-binds the instance of the sub-class of {@link RaopRtpPacket} indicated
+		 * by the packet's {@link #getPayloadType()} to the given buffer
+		 * 
+		 * @param buffer ChannelBuffer containing the packet
+		 * @return Re-used instance of one of the sub-classes of {@link RaopRtpPacket}
+		 * @throws ProtocolException if the packet is invalid.
+		 */
+		public RaopRtpPacket decode(final ChannelBuffer buffer)
+			throws ProtocolException
+		{
+			switch (getPayloadType(buffer)) {
+				case TimingRequest.PayloadType: return bind(m_timingRequest, buffer, TimingRequest.Length);
+				case TimingResponse.PayloadType: return bind(m_timingResponse, buffer, TimingResponse.Length);
+				case Sync.PayloadType: return bind(m_sync, buffer, Sync.Length);
+				case RetransmitRequest.PayloadType: return bind(m_retransmitRequest, buffer, RetransmitRequest.Length);
+				case AudioRetransmit.PayloadType: return bind(m_audioRetransmit, buffer, AudioRetransmit.Length);
+				case AudioTransmit.PayloadType: return bind(m_audioTransmit, buffer, AudioTransmit.Length);
+				default: throw new ProtocolException("Invalid PayloadType " + getPayloadType(buffer));
+			}
+		}
+
+		private static <T extends RaopRtpPacket> T bind(final T packet, final ChannelBuffer buffer, final int minimumSize)
+			throws ProtocolException
+		{
+			packet.rebind(buffer, minimumSize);
+			return packet;
+		}
+	}
+
+	/**
+	 * Reads the payload type of the RTP packet contained in a {@link ChannelBuffer}
+	 * 
+	 * @param buffer ChannelBuffer containing the packet
+	 * @return the packet's payload type
+	 * @throws ProtocolException if the buffer is too small to contain an RTP header
+	 */
+	private static byte getPayloadType(final ChannelBuffer buffer)
+		throws ProtocolException
+	{
+		if (buffer.capacity() < Length)
+			throw new InvalidPacketException("Packet had invalid size " + buffer.capacity() + " instead of at least " + Length);
+
+		return (byte)(buffer.getByte(1) & (0x7f));
+	}
+
 	/**
 	 * Creates an RTP packet from a {@link ChannelBuffer}, using the
 	 * sub-class of {@link RaopRtpPacket} indicated by the packet's
@@ -578,16 +673,14 @@ public abstract class RaopRtpPacket extends RtpPacket {
 	public static RaopRtpPacket decode(final ChannelBuffer buffer)
 		throws ProtocolException
 	{
-		final RtpPacket rtpPacket = new RtpPacket(buffer, Length);
-
-		switch (rtpPacket.getPayloadType()) {
+		switch (getPayloadType(buffer)) {
 			case TimingRequest.PayloadType: return new TimingRequest(buffer);
 			case TimingResponse.PayloadType: return new TimingResponse(buffer);
 			case Sync.PayloadType: return new Sync(buffer);
 			case RetransmitRequest.PayloadType: return new RetransmitRequest(buffer);
 			case AudioRetransmit.PayloadType: return new AudioRetransmit(buffer);
 			case AudioTransmit.PayloadType: return new AudioTransmit(buffer);
-			default: throw new ProtocolException("Invalid PayloadType " + rtpPacket.getPayloadType());
+			default: throw new ProtocolException("Invalid PayloadType " + getPayloadType(buffer));
 		}
 	}
 
@@ -121,6 +121,11 @@ public class RaopRtpRetransmitRequestHandler extends SimpleChannelUpstreamHandle
 	 */
 	private final long m_framesPerPacket;
 
+	/**
+	 * Receiver statistics to report retransmits to, or null
+	 */
+	private final RaopRtpStatistics m_statistics;
+
 	/**
 	 * Latest sequence number received so far
 	 */
@@ -143,8 +148,21 @@ public class RaopRtpRetransmitRequestHandler extends SimpleChannelUpstreamHandle
 	private int m_retransmitRequestSequence = 0;
 
 	public RaopRtpRetransmitRequestHandler(final AudioStreamInformationProvider streamInfoProvider, final AudioClock audioClock) {
+		this(streamInfoProvider, audioClock, null);
+	}
+
+	/**
+	 * Creates a retransmit request handler which reports requested and
+	 * recovered packets to the given receiver statistics
+	 * 
+	 * @param streamInfoProvider stream information
+	 * @param audioClock time source
+	 * @param statistics receiver statistics, or null
+	 */
+	public RaopRtpRetransmitRequestHandler(final AudioStreamInformationProvider streamInfoProvider, final AudioClock audioClock, final RaopRtpStatistics statistics) {
 		m_framesPerPacket = streamInfoProvider.getFramesPerPacket();
 		m_audioClock = audioClock;
+		m_statistics = statistics;
 	}
 
 	/**
@@ -153,16 +171,20 @@ public class RaopRtpRetransmitRequestHandler extends SimpleChannelUpstreamHandle
 	 * 
 	 * @param sequence sequence number of packet
 	 * @param nextSecondsTime next possible play back time
+	 * @return true if the packet was in the list
 	 */
-	private void markRetransmitted(final int sequence, final double nextSecondsTimee) {
+	private boolean markRetransmitted(final int sequence, final double nextSecondsTimee) {
+		boolean found = false;
 		final Iterator<MissingPacket> i = m_missingPackets.iterator();
 		while (i.hasNext()) {
 			final MissingPacket missingPacket = i.next();
 			if (missingPacket.sequence == sequence) {
 				s_logger.fine("Packet " + sequence + " arrived " + (missingPacket.expectedUntilSecondsTime - nextSecondsTimee) + " seconds before it was due");
 				i.remove();
+				found = true;
 			}
 		}
+		return found;
 	}
 
 	/**
@@ -242,6 +264,8 @@ public class RaopRtpRetransmitRequestHandler extends SimpleChannelUpstreamHandle
 				final int retransmitRequestCountPrevious = missingPacket.retransmitRequestCount;
 				final double expectedUntilSecondsTimePrevious = missingPacket.expectedUntilSecondsTime;
 				missingPacket.sentRetransmitRequest(nextSecondsTime);
+				if ((retransmitRequestCountPrevious == 0) && (m_statistics != null))
+					m_statistics.retransmitRequested();
 
 				s_logger.fine("Packet " + missingPacket.sequence + " overdue " + (nextSecondsTime - expectedUntilSecondsTimePrevious) + " seconds after " + retransmitRequestCountPrevious + " retransmit requests, requesting again expecting response in " + (missingPacket.expectedUntilSecondsTime - nextSecondsTime) + " seconds");
 			}
@@ -287,9 +311,9 @@ public class RaopRtpRetransmitRequestHandler extends SimpleChannelUpstreamHandle
 		throws Exception
 	{
 		if (evt.getMessage() instanceof RaopRtpPacket.AudioTransmit)
-			audioTransmitReceived(ctx, (RaopRtpPacket.AudioTransmit)evt.getMessage());
+			audioTransmitReceived((RaopRtpPacket.AudioTransmit)evt.getMessage());
 		else if (evt.getMessage() instanceof RaopRtpPacket.AudioRetransmit)
-			audioRetransmitReceived(ctx, (RaopRtpPacket.AudioRetransmit)evt.getMessage());
+			audioRetransmitReceived((RaopRtpPacket.AudioRetransmit)evt.getMessage());
 
 		super.messageReceived(ctx, evt);
 
@@ -297,14 +321,32 @@ public class RaopRtpRetransmitRequestHandler extends SimpleChannelUpstreamHandle
 		requestRetransmits(ctx.getChannel(), m_audioClock.getNextSecondsTime());
 	}
 
-	private synchronized void audioRetransmitReceived(final ChannelHandlerContext ctx, final RaopRtpPacket.AudioRetransmit audioPacket) {
+	/**
+	 * Updates the retransmit state for an audio packet which was
+	 * handled outside of the pipeline (see {@link RaopRtpAudioFusedHandler}),
+	 * and requests retransmits if necessary.
+	 * 
+	 * @param channel channel used to send retransmit requests
+	 * @param audioPacket audio packet
+	 */
+	public void audioReceived(final Channel channel, final RaopRtpPacket.Audio audioPacket) {
+		if (audioPacket instanceof RaopRtpPacket.AudioTransmit)
+			audioTransmitReceived((RaopRtpPacket.AudioTransmit)audioPacket);
+		else if (audioPacket instanceof RaopRtpPacket.AudioRetransmit)
+			audioRetransmitReceived((RaopRtpPacket.AudioRetransmit)audioPacket);
+
+		requestRetransmits(channel, m_audioClock.getNextSecondsTime());
+	}
+
+	private synchronized void audioRetransmitReceived(final RaopRtpPacket.AudioRetransmit audioPacket) {
 		final double nextSecondsTime = m_audioClock.getNextSecondsTime();
 
 		/* Mark packet as retransmitted */
-		markRetransmitted(audioPacket.getOriginalSequence(), nextSecondsTime);
+		if (markRetransmitted(audioPacket.getOriginalSequence(), nextSecondsTime) && (m_statistics != null))
+			m_statistics.retransmitRecovered();
 	}
 
-	private synchronized void audioTransmitReceived(final ChannelHandlerContext ctx, final RaopRtpPacket.AudioTransmit audioPacket) {
+	private synchronized void audioTransmitReceived(final RaopRtpPacket.AudioTransmit audioPacket) {
 		final double nextSecondsTime = m_audioClock.getNextSecondsTime();
 
 		/* Mark packet as retransmitted.
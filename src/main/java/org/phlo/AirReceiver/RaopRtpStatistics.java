@@ -0,0 +1,370 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.phlo.AirReceiver;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.*;
+
+/**
+ * Collects receiver statistics for an RTP audio session, in the spirit of RFC 3550.
+ * <p>
+ * Tracks interarrival jitter (see RFC 3550, section 6.4.1), cumulative loss, reordering
+ * and duplicates of transmitted audio packets, as well as the number of retransmit
+ * requests, recovered packets and packets dropped because they arrived too late.
+ * <p>
+ * Like the {@link RaopRtpLatencyHandler}, the handler must be placed in front of the
+ * audio channel's execution handler, so that arrival times are taken on the I/O
+ * thread. Transmitted packets are thus only ever recorded by a single thread, and
+ * the remaining events are counted with atomic counters. Neither takes locks nor
+ * allocates, and {@link #snapshot()} only reads volatile fields.
+ */
+public class RaopRtpStatistics extends SimpleChannelUpstreamHandler {
+	/**
+	 * Sequence gap beyond which the sequence numbers are assumed to have
+	 * been reset, see RFC 3550, appendix A.1
+	 */
+	static final int MaxDropout = 3000;
+
+	/**
+	 * Reorder distance beyond which the sequence numbers are assumed to have
+	 * been reset, see RFC 3550, appendix A.1
+	 */
+	static final int MaxMisorder = 100;
+
+	/**
+	 * Number of sequences covered by the duplicate detection window
+	 */
+	private static final int DuplicateWindowSize = 64;
+
+	/**
+	 * Immutable point-in-time copy of the statistics
+	 */
+	public static final class Snapshot {
+		/**
+		 * {@link System#nanoTime()} at which the snapshot was taken
+		 */
+		public final long nanoTime;
+
+		/**
+		 * Number of transmitted packets expected, based on the sequence numbers seen
+		 */
+		public final long expected;
+
+		/**
+		 * Number of distinct transmitted packets received
+		 */
+		public final long received;
+
+		/**
+		 * Number of duplicate packets received
+		 */
+		public final long duplicates;
+
+		/**
+		 * Number of packets which arrived after a packet with a higher sequence number
+		 */
+		public final long reordered;
+
+		/**
+		 * Largest distance in sequence numbers by which a packet was delayed
+		 */
+		public final int maxReorderDepth;
+
+		/**
+		 * Number of times the sequence numbers jumped and tracking was restarted
+		 */
+		public final long sequenceResets;
+
+		/**
+		 * Interarrival jitter in seconds
+		 */
+		public final double jitterSeconds;
+
+		/**
+		 * Number of packets for which a retransmit was requested
+		 */
+		public final long retransmitsRequested;
+
+		/**
+		 * Number of packets recovered by retransmits
+		 */
+		public final long retransmitsRecovered;
+
+		/**
+		 * Number of packets dropped because they arrived too late to be played
+		 */
+		public final long lateDrops;
+
+		private Snapshot(final RaopRtpStatistics statistics) {
+			nanoTime = System.nanoTime();
+			expected = statistics.m_expected;
+			received = statistics.m_received;
+			duplicates = statistics.m_duplicates;
+			reordered = statistics.m_reordered;
+			maxReorderDepth = statistics.m_maxReorderDepth;
+			sequenceResets = statistics.m_sequenceResets;
+			jitterSeconds = statistics.m_jitter / statistics.m_sampleRate;
+			retransmitsRequested = statistics.m_retransmitsRequested.get();
+			retransmitsRecovered = statistics.m_retransmitsRecovered.get();
+			lateDrops = statistics.m_lateDrops.get();
+		}
+
+		/**
+		 * Returns the cumulative number of lost packets
+		 * 
+		 * @return number of packets lost
+		 */
+		public long getLost() {
+			return Math.max(0, expected - received);
+		}
+
+		/**
+		 * Returns the fraction of packets lost
+		 * 
+		 * @return loss fraction between 0 and 1
+		 */
+		public double getLossFraction() {
+			return (expected > 0) ? (double)getLost() / (double)expected : 0.0;
+		}
+
+		/**
+		 * Returns the number of packets lost since an earlier snapshot
+		 * 
+		 * @param previous earlier snapshot of the same statistics
+		 * @return number of packets lost in the interval
+		 */
+		public long getIntervalLost(final Snapshot previous) {
+			return Math.max(0, (expected - previous.expected) - (received - previous.received));
+		}
+
+		/**
+		 * Returns the fraction of packets lost since an earlier snapshot,
+		 * see RFC 3550, appendix A.3
+		 * 
+		 * @param previous earlier snapshot of the same statistics
+		 * @return loss fraction between 0 and 1
+		 */
+		public double getIntervalLossFraction(final Snapshot previous) {
+			final long expectedInterval = expected - previous.expected;
+			return (expectedInterval > 0) ? (double)getIntervalLost(previous) / (double)expectedInterval : 0.0;
+		}
+
+		/**
+		 * Returns the fraction of requested retransmits which arrived
+		 * 
+		 * @return recovery rate between 0 and 1, or NaN if no retransmits were requested
+		 */
+		public double getRecoveryRate() {
+			return (retransmitsRequested > 0) ? (double)retransmitsRecovered / (double)retransmitsRequested : Double.NaN;
+		}
+
+		@Override
+		public String toString() {
+			final StringBuilder s = new StringBuilder();
+			s.append("RTP receiver statistics");
+			s.append(": "); s.append("expected="); s.append(expected);
+			s.append(" "); s.append("lost="); s.append(getLost());
+			s.append(" "); s.append("loss="); s.append(String.format("%.3f%%", 100.0 * getLossFraction()));
+			s.append(" "); s.append("jitter="); s.append(String.format("%.6f", jitterSeconds));
+			s.append(" "); s.append("reordered="); s.append(reordered);
+			s.append(" "); s.append("maxReorderDepth="); s.append(maxReorderDepth);
+			s.append(" "); s.append("duplicates="); s.append(duplicates);
+			s.append(" "); s.append("resets="); s.append(sequenceResets);
+			s.append(" "); s.append("retransmitsRequested="); s.append(retransmitsRequested);
+			s.append(" "); s.append("retransmitsRecovered="); s.append(retransmitsRecovered);
+			s.append(" "); s.append("lateDrops="); s.append(lateDrops);
+			return s.toString();
+		}
+	}
+
+	/**
+	 * Sample rate, i.e. the RTP time stamp units per second
+	 */
+	private final double m_sampleRate;
+
+	/* The following fields are only accessed by the thread recording transmitted packets */
+
+	/**
+	 * True once the first packet was recorded
+	 */
+	private boolean m_started = false;
+
+	/**
+	 * Highest sequence number seen
+	 */
+	private int m_highestSequence;
+
+	/**
+	 * Bit i is set if packet with sequence {@link #m_highestSequence} - i was seen
+	 */
+	private long m_sequenceWindow;
+
+	/**
+	 * Arrival time of the previous packet, in RTP time stamp units
+	 */
+	private double m_previousArrival;
+
+	/**
+	 * RTP time stamp of the previous packet
+	 */
+	private long m_previousTimeStamp;
+
+	/* The following fields are written by the thread recording transmitted packets,
+	 * and read by snapshot()
+	 */
+
+	private volatile long m_expected = 0;
+	private volatile long m_received = 0;
+	private volatile long m_duplicates = 0;
+	private volatile long m_reordered = 0;
+	private volatile int m_maxReorderDepth = 0;
+	private volatile long m_sequenceResets = 0;
+
+	/**
+	 * Interarrival jitter in RTP time stamp units
+	 */
+	private volatile double m_jitter = 0.0;
+
+	/* The following fields are updated by arbitrary threads */
+
+	private final AtomicLong m_retransmitsRequested = new AtomicLong(0);
+	private final AtomicLong m_retransmitsRecovered = new AtomicLong(0);
+	private final AtomicLong m_lateDrops = new AtomicLong(0);
+
+	/**
+	 * Creates a statistics collector for a stream
+	 * 
+	 * @param sampleRate the stream's sample rate
+	 */
+	public RaopRtpStatistics(final double sampleRate) {
+		m_sampleRate = sampleRate;
+	}
+
+	@Override
+	public void messageReceived(final ChannelHandlerContext ctx, final MessageEvent evt)
+		throws Exception
+	{
+		if (evt.getMessage() instanceof ChannelBuffer) {
+			final ChannelBuffer buffer = (ChannelBuffer)evt.getMessage();
+			if (
+				(buffer.capacity() >= RaopRtpPacket.AudioTransmit.Length) &&
+				((buffer.getByte(1) & 0x7f) == RaopRtpPacket.AudioTransmit.PayloadType)
+			) {
+				transmitReceived(buffer.getUnsignedShort(2), buffer.getUnsignedInt(4), System.nanoTime());
+			}
+		}
+
+		super.messageReceived(ctx, evt);
+	}
+
+	/**
+	 * Records the arrival of a transmitted audio packet. Must only be called
+	 * by one thread at a time, usually the audio channel's I/O thread.
+	 * 
+	 * @param sequence the packet's sequence number
+	 * @param timeStamp the packet's RTP time stamp
+	 * @param arrivalNanos arrival time as returned by {@link System#nanoTime()}
+	 */
+	public void transmitReceived(final int sequence, final long timeStamp, final long arrivalNanos) {
+		final double arrival = 1e-9 * m_sampleRate * (double)arrivalNanos;
+
+		/* Signed distance to the highest sequence, taking wrap-around into account */
+		final int delta = (short)(sequence - m_highestSequence);
+
+		if (!m_started || (delta >= MaxDropout) || (delta <= -MaxMisorder)) {
+			/* First packet, or the sequence numbers jumped. Start over from this packet */
+			if (m_started)
+				m_sequenceResets = m_sequenceResets + 1;
+			m_started = true;
+			m_highestSequence = sequence;
+			m_sequenceWindow = 1;
+			m_expected = m_expected + 1;
+		}
+		else {
+			if (delta > 0) {
+				/* In order, possibly after a gap */
+				m_sequenceWindow = (delta < DuplicateWindowSize) ? (m_sequenceWindow << delta) | 1 : 1;
+				m_highestSequence = sequence;
+				m_expected = m_expected + delta;
+			}
+			else {
+				/* Duplicate or delayed. Duplicates are only detected inside the window */
+				final long bit = (-delta < DuplicateWindowSize) ? (1L << -delta) : 0;
+				if ((m_sequenceWindow & bit) != 0) {
+					m_duplicates = m_duplicates + 1;
+					return;
+				}
+				m_sequenceWindow |= bit;
+				m_reordered = m_reordered + 1;
+				if (-delta > m_maxReorderDepth)
+					m_maxReorderDepth = -delta;
+			}
+
+			/* Update the jitter estimate, see RFC 3550, section 6.4.1. The time
+			 * stamp difference is computed modulo 2^32 to handle wrap-around.
+			 * After a jump, the time stamps most likely jumped too, so the
+			 * estimate isn't updated for the first packet after one
+			 */
+			final double transitDelta = (arrival - m_previousArrival) - (double)(int)(timeStamp - m_previousTimeStamp);
+			m_jitter = m_jitter + (Math.abs(transitDelta) - m_jitter) / 16.0;
+		}
+
+		m_previousArrival = arrival;
+		m_previousTimeStamp = timeStamp;
+		m_received = m_received + 1;
+	}
+
+	/**
+	 * Records that a retransmit was requested for a missing packet
+	 */
+	public void retransmitRequested() {
+		m_retransmitsRequested.incrementAndGet();
+	}
+
+	/**
+	 * Records that a retransmitted packet arrived in time to replace a missing packet
+	 */
+	public void retransmitRecovered() {
+		m_retransmitsRecovered.incrementAndGet();
+	}
+
+	/**
+	 * Records that a packet was dropped because it arrived too late to be played
+	 */
+	public void lateDropped() {
+		m_lateDrops.incrementAndGet();
+	}
+
+	/**
+	 * Returns a point-in-time copy of the statistics. Individual values are
+	 * read without locking, and may thus be off by a packet relative to each
+	 * other.
+	 * 
+	 * @return snapshot
+	 */
+	public Snapshot snapshot() {
+		return new Snapshot(this);
+	}
+
+	@Override
+	public String toString() {
+		return snapshot().toString();
+	}
+}
@@ -35,7 +35,6 @@ public class RaopRtspChallengeResponseHandler extends SimpleChannelHandler
 	private static final String HeaderSignature = "Apple-Response";
 
 	private final byte[] m_hwAddress;
-	private final Cipher m_rsaPkCS1PaddingCipher = AirTunesCrytography.getCipher("RSA/None/PKCS1Padding");
 
 	private byte[] m_challenge;
 	private InetAddress m_localAddress;
@@ -114,8 +113,10 @@ public class RaopRtspChallengeResponseHandler extends SimpleChannelHandler
 			sigData.put((byte)0);
 
 		try {
-			m_rsaPkCS1PaddingCipher.init(Cipher.ENCRYPT_MODE, AirTunesCrytography.PrivateKey);
-			return m_rsaPkCS1PaddingCipher.doFinal(sigData.array());
+			/* The cipher belongs to this thread, and is only created if a client sends a challenge */
+			final Cipher rsaPkCS1PaddingCipher = AirTunesCrytography.getThreadCipher("RSA/None/PKCS1Padding");
+			rsaPkCS1PaddingCipher.init(Cipher.ENCRYPT_MODE, AirTunesCrytography.PrivateKey);
+			return rsaPkCS1PaddingCipher.doFinal(sigData.array());
 		}
 		catch (final Exception e) {
 			throw new RuntimeException("Unable to sign response", e);
@@ -28,7 +28,8 @@ public class RaopRtspPipelineFactory implements ChannelPipelineFactory {
 	public ChannelPipeline getPipeline() throws Exception {
 		final ChannelPipeline pipeline = Channels.pipeline();
 
-		pipeline.addLast("executionHandler", AirReceiver.ChannelExecutionHandler);
+		if (AirReceiver.RtspExecutionHandler != null)
+			pipeline.addLast("executionHandler", AirReceiver.RtspExecutionHandler);
 		pipeline.addLast("closeOnShutdownHandler", AirReceiver.CloseChannelOnShutdownHandler);
 		pipeline.addLast("exceptionLogger", new ExceptionLoggingHandler());
 		pipeline.addLast("decoder", new RtspRequestDecoder());
@@ -38,7 +39,7 @@ public class RaopRtspPipelineFactory implements ChannelPipelineFactory {
 		pipeline.addLast("challengeResponse", new RaopRtspChallengeResponseHandler(AirReceiver.HardwareAddressBytes));
 		pipeline.addLast("header", new RaopRtspHeaderHandler());
 		pipeline.addLast("options", new RaopRtspOptionsHandler());
-		pipeline.addLast("audio", new RaopAudioHandler(AirReceiver.ExecutorService));
+		pipeline.addLast("audio", new RaopAudioHandler(AirReceiver.RtpChannelFactory, AirReceiver.RtpChannelPool, AirReceiver.RtpPortRange));
 		pipeline.addLast("unsupportedResponse", new RtspUnsupportedResponseHandler());
 
 		return pipeline;
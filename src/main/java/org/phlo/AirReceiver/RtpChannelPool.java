@@ -0,0 +1,286 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.phlo.AirReceiver;
+
+import java.net.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.jboss.netty.bootstrap.ConnectionlessBootstrap;
+import org.jboss.netty.channel.*;
+
+/**
+ * Pool of pre-bound datagram channels for RTP.
+ * <p>
+ * Binding and configuring three datagram sockets while the client waits for the
+ * response to SETUP can take a while on a busy host. The pool therefore keeps a
+ * number of channels bound, with their socket options already applied, and a
+ * background thread binds replacements whenever channels are leased.
+ * <p>
+ * Idle channels contain only a placeholder handler named {@link #IdleHandlerName}
+ * which discards incoming datagrams. After leasing a channel, the caller is expected
+ * to add its handlers and to remove the placeholder.
+ * <p>
+ * If a {@link RtpPortRange} is set, all channels are bound to ports from that range.
+ * Otherwise, ephemeral ports are used.
+ */
+public class RtpChannelPool {
+	private static final Logger s_logger = Logger.getLogger(RtpChannelPool.class.getName());
+
+	/**
+	 * Name of the placeholder handler of idle channels
+	 */
+	public static final String IdleHandlerName = "idle";
+
+	/**
+	 * Seconds to wait before retrying after binding a channel failed
+	 */
+	private static final double RetryIntervalSeconds = 1.0;
+
+	/**
+	 * Placeholder handler for idle channels. Discards all incoming datagrams,
+	 * and ignores exceptions. Failures to bind are reported by
+	 * {@link ConnectionlessBootstrap#bind(SocketAddress)} anyway
+	 */
+	private static final ChannelHandler IdleHandler = new SimpleChannelUpstreamHandler() {
+		@Override
+		public void messageReceived(final ChannelHandlerContext ctx, final MessageEvent evt) {
+			/* Discard */
+		}
+
+		@Override
+		public void exceptionCaught(final ChannelHandlerContext ctx, final ExceptionEvent evt) {
+			s_logger.log(Level.FINE, "Idle RTP channel reported exception", evt.getCause());
+		}
+	};
+
+	/**
+	 * Thread which keeps the pool filled
+	 */
+	private class Refiller implements Runnable {
+		@Override
+		public void run() {
+			/* Set while binding fails, so that an exhausted port range is reported once, not every retry */
+			boolean failing = false;
+
+			while (!m_closed && !Thread.currentThread().isInterrupted()) {
+				try {
+					/* Wait until channels were leased */
+					synchronized(RtpChannelPool.this) {
+						while (m_channels.size() >= m_size)
+							RtpChannelPool.this.wait();
+					}
+
+					/* Refill */
+					try {
+						while (!m_closed && (m_channels.size() < m_size)) {
+							/* The pool may have been closed while we were binding */
+							final Channel channel = bind();
+							if (m_closed || !m_channels.offer(channel))
+								channel.close();
+
+							if (failing) {
+								s_logger.info("Binding RTP channels for pool succeeded again");
+								failing = false;
+							}
+						}
+					}
+					catch (final ChannelException e) {
+						if (!failing) {
+							s_logger.warning("Unable to bind RTP channel for pool, retrying every " + RetryIntervalSeconds + " seconds: " + e.getMessage());
+							failing = true;
+						}
+						else {
+							s_logger.log(Level.FINE, "Unable to bind RTP channel for pool", e);
+						}
+						Thread.sleep(Math.round(RetryIntervalSeconds * 1000));
+					}
+				}
+				catch (final InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Bootstrap used to bind channels
+	 */
+	private final ConnectionlessBootstrap m_bootstrap;
+
+	/**
+	 * Ports to bind channels to, or null if ephemeral ports are used
+	 */
+	private final RtpPortRange m_portRange;
+
+	/**
+	 * Number of idle channels to keep around
+	 */
+	private final int m_size;
+
+	/**
+	 * Idle channels
+	 */
+	private final BlockingQueue<Channel> m_channels;
+
+	/**
+	 * Number of channels leased from the pool
+	 */
+	private final AtomicLong m_leases = new AtomicLong();
+
+	/**
+	 * Number of leases which found the pool empty
+	 */
+	private final AtomicLong m_misses = new AtomicLong();
+
+	/**
+	 * The {@link Refiller} thread
+	 */
+	private final Thread m_refillThread = new Thread(new Refiller());
+
+	/**
+	 * Set once {@link #close()} was called
+	 */
+	private volatile boolean m_closed = false;
+
+	/**
+	 * Creates a pool and starts the refiller thread.
+	 * 
+	 * The bootstrap's options are applied to all channels, but its pipeline
+	 * factory is replaced.
+	 * 
+	 * @param bootstrap bootstrap used to bind channels
+	 * @param portRange ports to bind channels to, or null to use ephemeral ports
+	 * @param size number of idle channels to keep around
+	 */
+	public RtpChannelPool(final ConnectionlessBootstrap bootstrap, final RtpPortRange portRange, final int size) {
+		if (size <= 0)
+			throw new IllegalArgumentException("Invalid pool size " + size);
+
+		m_bootstrap = bootstrap;
+		m_bootstrap.setPipelineFactory(new ChannelPipelineFactory() {
+			@Override
+			public ChannelPipeline getPipeline() throws Exception {
+				final ChannelPipeline pipeline = Channels.pipeline();
+				pipeline.addLast(IdleHandlerName, IdleHandler);
+				return pipeline;
+			}
+		});
+		m_portRange = portRange;
+		m_size = size;
+		m_channels = new ArrayBlockingQueue<Channel>(size);
+
+		m_refillThread.setDaemon(true);
+		m_refillThread.setName("RTP Channel Pool Refiller");
+		m_refillThread.start();
+	}
+
+	/**
+	 * Leases a channel. The channel is taken from the pool if possible,
+	 * otherwise a new channel is bound right away.
+	 * 
+	 * @return bound channel, containing only the placeholder handler
+	 * @throws ChannelException if no channel could be bound
+	 */
+	public Channel lease() {
+		m_leases.incrementAndGet();
+
+		Channel channel;
+		do {
+			channel = m_channels.poll();
+		} while ((channel != null) && !channel.isOpen());
+
+		/* Wake the refiller */
+		synchronized(this) {
+			notifyAll();
+		}
+
+		if (channel == null) {
+			m_misses.incrementAndGet();
+			s_logger.fine("RTP channel pool empty, binding channel synchronously");
+			channel = bind();
+		}
+
+		return channel;
+	}
+
+	/**
+	 * Returns the number of channels leased from the pool so far
+	 * @return number of leases
+	 */
+	public long getLeaseCount() {
+		return m_leases.get();
+	}
+
+	/**
+	 * Returns the number of leases which found the pool empty
+	 * and had to bind a channel synchronously
+	 * @return number of misses
+	 */
+	public long getMissCount() {
+		return m_misses.get();
+	}
+
+	/**
+	 * Stops the refiller thread and closes all idle channels
+	 */
+	public void close() {
+		m_closed = true;
+		m_refillThread.interrupt();
+
+		/* Wait for the refiller, a channel it is binding right now is closed by the refiller itself */
+		try {
+			m_refillThread.join();
+		}
+		catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		Channel channel;
+		while ((channel = m_channels.poll()) != null)
+			channel.close().awaitUninterruptibly();
+	}
+
+	@Override
+	public String toString() {
+		final StringBuilder s = new StringBuilder();
+		s.append("RTP channel pool");
+		if (m_portRange != null) {
+			s.append(" on ports "); s.append(m_portRange);
+		}
+		s.append(": "); s.append(getLeaseCount()); s.append(" leases");
+		s.append(", "); s.append(getMissCount()); s.append(" misses");
+		return s.toString();
+	}
+
+	/**
+	 * Binds a new channel, using a port from the port range if one is set
+	 * 
+	 * @return bound channel
+	 * @throws ChannelException if no port was available
+	 */
+	private Channel bind() {
+		if (m_portRange == null)
+			return m_bootstrap.bind(new InetSocketAddress(0));
+
+		return m_portRange.bind(m_bootstrap, null);
+	}
+}
@@ -25,7 +25,7 @@ import org.jboss.netty.buffer.*;
 public class RtpPacket {
 	public static final int Length = 4;
 
-	final private ChannelBuffer m_buffer;
+	private ChannelBuffer m_buffer;
 
 	protected RtpPacket(final int size) {
 		assert size >= Length;
@@ -40,6 +40,30 @@ public class RtpPacket {
 
 	public RtpPacket(final ChannelBuffer buffer, final int minimumSize) throws ProtocolException {
 		this(buffer);
+		checkSize(buffer, minimumSize);
+	}
+
+	/**
+	 * Re-binds the packet to a different buffer. Allows packet instances
+	 * to be re-used as views onto multiple incoming buffers.
+	 * 
+	 * @param buffer the new buffer
+	 * @param minimumSize minimum size of the packet
+	 * @throws ProtocolException if the buffer is too small
+	 */
+	protected void rebind(final ChannelBuffer buffer, final int minimumSize) throws ProtocolException {
+		checkSize(buffer, minimumSize);
+		m_buffer = buffer;
+	}
+
+	/**
+	 * Verifies that the buffer is large enough to contain the packet
+	 * 
+	 * @param buffer buffer containing the packet
+	 * @param minimumSize minimum size of the packet
+	 * @throws ProtocolException if the buffer is too small
+	 */
+	private static void checkSize(final ChannelBuffer buffer, final int minimumSize) throws ProtocolException {
 		if (buffer.capacity() < minimumSize)
 			throw new InvalidPacketException("Packet had invalid size " + buffer.capacity() + " instead of at least " + minimumSize);
 	}
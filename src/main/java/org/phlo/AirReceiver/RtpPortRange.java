@@ -0,0 +1,128 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.phlo.AirReceiver;
+
+import java.net.*;
+
+import org.jboss.netty.bootstrap.ConnectionlessBootstrap;
+import org.jboss.netty.channel.*;
+
+/**
+ * Range of UDP ports RTP channels are bound to, so that firewall rules can be static.
+ * <p>
+ * Ports are tried round-robin, starting after the port used last, so that a
+ * port which was just released isn't immediately re-used. A range must contain
+ * at least {@link #PortsPerSession} ports, since every session needs that many
+ * channels.
+ */
+public class RtpPortRange {
+	/**
+	 * Number of RTP channels per session, i.e. audio, control and timing
+	 */
+	public static final int PortsPerSession = 3;
+
+	/**
+	 * First port of the range
+	 */
+	private final int m_first;
+
+	/**
+	 * Last port of the range
+	 */
+	private final int m_last;
+
+	/**
+	 * Next port to try. Guarded by the range's monitor
+	 */
+	private int m_next;
+
+	/**
+	 * Creates a port range
+	 *
+	 * @param first first port
+	 * @param last last port
+	 */
+	public RtpPortRange(final int first, final int last) {
+		if ((first <= 0) || (last < first) || (last > 0xffff))
+			throw new IllegalArgumentException("Invalid port range " + first + "-" + last);
+		if (last - first + 1 < PortsPerSession)
+			throw new IllegalArgumentException("Port range " + first + "-" + last + " contains fewer than " + PortsPerSession + " ports");
+
+		m_first = first;
+		m_last = last;
+		m_next = first;
+	}
+
+	/**
+	 * Returns the first port of the range
+	 *
+	 * @return first port
+	 */
+	public int getFirst() {
+		return m_first;
+	}
+
+	/**
+	 * Returns the last port of the range
+	 *
+	 * @return last port
+	 */
+	public int getLast() {
+		return m_last;
+	}
+
+	/**
+	 * Returns the number of ports in the range
+	 *
+	 * @return number of ports
+	 */
+	public int getCount() {
+		return m_last - m_first + 1;
+	}
+
+	/**
+	 * Binds a channel to a free port of the range
+	 *
+	 * @param bootstrap bootstrap used to bind the channel
+	 * @param address local address, or null for the wildcard address
+	 * @return bound channel
+	 * @throws ChannelException if no port was available
+	 */
+	public synchronized Channel bind(final ConnectionlessBootstrap bootstrap, final InetAddress address) {
+		/* Try each port in the range once, starting after the last one we used */
+		ChannelException lastException = null;
+		for(int i=0; i < getCount(); ++i) {
+			final int port = m_next;
+			m_next = (port < m_last) ? port + 1 : m_first;
+
+			try {
+				return bootstrap.bind(new InetSocketAddress(address, port));
+			}
+			catch (final ChannelException e) {
+				lastException = e;
+			}
+		}
+
+		throw new ChannelException("No free port in range " + m_first + "-" + m_last, lastException);
+	}
+
+	@Override
+	public String toString() {
+		return m_first + "-" + m_last;
+	}
+}
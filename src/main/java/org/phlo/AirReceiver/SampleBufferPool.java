@@ -0,0 +1,143 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.phlo.AirReceiver;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Recycling pool of PCM sample buffers of a fixed size, usually one packet's worth.
+ * <p>
+ * Used by {@link AudioOutputQueue} so that decoders can write their samples
+ * directly into the buffer which is later queued for playback, without
+ * allocating a new buffer for every packet. Buffers are returned once they
+ * have been played or dropped. If the pool runs dry, new buffers are allocated,
+ * and are added to the pool when recycled as long as there's space.
+ */
+public class SampleBufferPool {
+	/**
+	 * Size of the pooled buffers
+	 */
+	private final int m_bufferSize;
+
+	/**
+	 * Idle buffers
+	 */
+	private final BlockingQueue<byte[]> m_buffers;
+
+	/**
+	 * Number of requests served from the pool
+	 */
+	private final AtomicLong m_hitCount = new AtomicLong();
+
+	/**
+	 * Number of requests which required a new buffer
+	 */
+	private final AtomicLong m_missCount = new AtomicLong();
+
+	/**
+	 * Creates an initially empty pool
+	 *
+	 * @param bufferSize size of the pooled buffers in bytes
+	 * @param capacity maximum number of idle buffers kept
+	 */
+	public SampleBufferPool(final int bufferSize, final int capacity) {
+		m_bufferSize = bufferSize;
+		m_buffers = new ArrayBlockingQueue<byte[]>(capacity);
+	}
+
+	/**
+	 * Returns the size of the pooled buffers
+	 *
+	 * @return buffer size in bytes
+	 */
+	public int getBufferSize() {
+		return m_bufferSize;
+	}
+
+	/**
+	 * Returns a buffer of the requested length. Buffers of the pool's
+	 * buffer size are taken from the pool, all others are allocated.
+	 * The buffer's content is undefined.
+	 *
+	 * @param length buffer length in bytes
+	 * @return buffer
+	 */
+	public byte[] obtain(final int length) {
+		if (length != m_bufferSize)
+			return new byte[length];
+
+		final byte[] buffer = m_buffers.poll();
+		if (buffer != null) {
+			m_hitCount.incrementAndGet();
+			return buffer;
+		}
+
+		m_missCount.incrementAndGet();
+		return new byte[m_bufferSize];
+	}
+
+	/**
+	 * Returns a buffer to the pool. Buffers of the wrong size, and
+	 * buffers which don't fit into the pool are left to the garbage
+	 * collector. The buffer must not be used afterwards.
+	 *
+	 * @param buffer buffer
+	 */
+	public void recycle(final byte[] buffer) {
+		if ((buffer != null) && (buffer.length == m_bufferSize))
+			m_buffers.offer(buffer);
+	}
+
+	/**
+	 * Returns the number of buffers served from the pool
+	 *
+	 * @return number of pool hits
+	 */
+	public long getHitCount() {
+		return m_hitCount.get();
+	}
+
+	/**
+	 * Returns the number of buffers allocated because the pool was empty
+	 *
+	 * @return number of pool misses
+	 */
+	public long getMissCount() {
+		return m_missCount.get();
+	}
+
+	/**
+	 * Returns the number of idle buffers
+	 *
+	 * @return number of idle buffers
+	 */
+	public int getIdleCount() {
+		return m_buffers.size();
+	}
+
+	@Override
+	public String toString() {
+		final long hits = m_hitCount.get();
+		final long total = hits + m_missCount.get();
+		return
+			"Sample buffer pool with " + m_buffers.size() + " idle buffers of " + m_bufferSize + " bytes, " +
+			"hit rate " + ((total > 0) ? String.format("%.1f%%", 100.0 * (double)hits / (double)total) : "n/a");
+	}
+}
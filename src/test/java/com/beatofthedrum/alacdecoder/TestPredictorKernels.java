@@ -0,0 +1,165 @@
+/*
+** TestPredictorKernels.java
+**
+** Distributed under the BSD Software License (see license.txt)
+**
+*/
+
+package com.beatofthedrum.alacdecoder;
+
+import java.util.Random;
+
+import org.junit.*;
+
+/**
+ * Compares the specialised predictor kernels to the generic one, and
+ * measures their performance on frame-sized blocks of residuals.
+ */
+public class TestPredictorKernels {
+	private static final int SamplesPerFrame = 352;
+	private static final int ReadSampleSize = 17;
+	private static final int FrameCount = 64;
+
+	public long resultLong;
+
+	/**
+	 * Residuals shaped like those of real frames, i.e. mostly small,
+	 * but with runs of zeros and a few large outliers
+	 */
+	private static int[] randomResiduals(final Random random) {
+		final int[] residuals = new int[SamplesPerFrame];
+		int i = 0;
+		while (i < residuals.length) {
+			final int run = Math.min(1 + random.nextInt(64), residuals.length - i);
+			final int kind = random.nextInt(8);
+			for(int j=0; j < run; ++j, ++i) {
+				if (kind == 0)
+					residuals[i] = 0;
+				else if (kind == 1)
+					residuals[i] = random.nextInt(32768) - 16384;
+				else
+					residuals[i] = (int)Math.round(random.nextGaussian() * 64.0 * kind);
+			}
+		}
+		return residuals;
+	}
+
+	private static int[] randomCoefs(final Random random, final int count) {
+		final int[] coefs = new int[count];
+		for(int i=0; i < count; ++i)
+			coefs[i] = random.nextInt(2048) - 1024;
+		return coefs;
+	}
+
+	/**
+	 * Runs the predictor for the given number of coefficients, either
+	 * through the specialised kernel or the generic one
+	 */
+	private static void predict(final boolean specialised, final int[] buffer, final int[] coefs, final int quantization) {
+		if (specialised)
+			AlacDecodeUtils.predictor_decompress_fir_adapt(buffer, SamplesPerFrame, ReadSampleSize, coefs, coefs.length, quantization);
+		else {
+			/* Same warm-up as predictor_decompress_fir_adapt() */
+			final int bitsmove = 32 - ReadSampleSize;
+			for(int i=0; i < coefs.length; ++i)
+				buffer[i+1] = ((buffer[i] + buffer[i+1]) << bitsmove) >> bitsmove;
+			AlacDecodeUtils.predictor_decompress_fir_adapt_generic(buffer, SamplesPerFrame, ReadSampleSize, coefs, coefs.length, quantization);
+		}
+	}
+
+	@Test
+	public void testFirKernelsMatchGeneric() {
+		final Random random = new Random(0);
+		for(final int coefCount: new int[] { 4, 8 }) {
+			for(int f=0; f < FrameCount; ++f) {
+				final int quantization = 1 + random.nextInt(15);
+				final int[] residuals = randomResiduals(random);
+				final int[] coefs = randomCoefs(random, coefCount);
+
+				final int[] expectedSamples = residuals.clone();
+				final int[] expectedCoefs = coefs.clone();
+				predict(false, expectedSamples, expectedCoefs, quantization);
+
+				final int[] samples = residuals.clone();
+				final int[] adaptedCoefs = coefs.clone();
+				predict(true, samples, adaptedCoefs, quantization);
+
+				Assert.assertArrayEquals("samples for " + coefCount + " coefficients", expectedSamples, samples);
+				Assert.assertArrayEquals("coefficients for " + coefCount + " coefficients", expectedCoefs, adaptedCoefs);
+			}
+		}
+	}
+
+	@Test
+	public void testDeltaKernel() {
+		final Random random = new Random(1);
+		final int bitsmove = 32 - ReadSampleSize;
+		for(int f=0; f < FrameCount; ++f) {
+			final int[] residuals = randomResiduals(random);
+
+			final int[] expected = residuals.clone();
+			for(int i=0; i < SamplesPerFrame - 1; ++i)
+				expected[i+1] = ((expected[i] + expected[i+1]) << bitsmove) >> bitsmove;
+
+			final int[] samples = residuals.clone();
+			AlacDecodeUtils.predictor_decompress_fir_adapt(samples, SamplesPerFrame, ReadSampleSize, new int[32], 0x1f, 0);
+			Assert.assertArrayEquals(expected, samples);
+		}
+	}
+
+	/**
+	 * Returns the average time the predictor takes per frame
+	 */
+	private double timePredictor(final boolean specialised, final int coefCount, final int[][] residuals, final int[][] coefs) {
+		final int[] buffer = new int[SamplesPerFrame];
+		final int[] frameCoefs = new int[coefCount];
+		final int passes = 500;
+
+		long sum = 0;
+		long start = 0;
+		for(int p=0; p < 2 * passes; ++p) {
+			/* First half is warm-up */
+			if (p == passes)
+				start = System.nanoTime();
+
+			for(int f=0; f < residuals.length; ++f) {
+				System.arraycopy(residuals[f], 0, buffer, 0, SamplesPerFrame);
+				System.arraycopy(coefs[f], 0, frameCoefs, 0, coefCount);
+				if (coefCount == 0x1f)
+					AlacDecodeUtils.predictor_decompress_fir_adapt(buffer, SamplesPerFrame, ReadSampleSize, frameCoefs, 0x1f, 9);
+				else
+					predict(specialised, buffer, frameCoefs, 9);
+				sum += buffer[SamplesPerFrame - 1];
+			}
+		}
+		final long end = System.nanoTime();
+		resultLong = sum;
+
+		return 1e-9 * (double)(end - start) / (double)(passes * residuals.length);
+	}
+
+	@Test
+	public void testPredictorPerformance() {
+		final Random random = new Random(2);
+		for(final int coefCount: new int[] { 4, 8, 0x1f }) {
+			final int[][] residuals = new int[FrameCount][];
+			final int[][] coefs = new int[FrameCount][];
+			for(int f=0; f < FrameCount; ++f) {
+				residuals[f] = randomResiduals(random);
+				coefs[f] = randomCoefs(random, coefCount);
+			}
+
+			if (coefCount == 0x1f) {
+				System.out.println("Delta predictor takes " + timePredictor(true, coefCount, residuals, coefs) + " seconds per frame");
+			}
+			else {
+				final double generic = timePredictor(false, coefCount, residuals, coefs);
+				final double specialised = timePredictor(true, coefCount, residuals, coefs);
+				System.out.println(
+					"Predictor with " + coefCount + " coefficients takes " + specialised + " seconds per frame, " +
+					"generic predictor takes " + generic + " seconds per frame (" + String.format("%.2f", generic / specialised) + "x)"
+				);
+			}
+		}
+	}
+}
@@ -0,0 +1,244 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.phlo.AirReceiver;
+
+import java.util.Random;
+
+/**
+ * Produces stereo 16-bit ALAC frames for tests.
+ * <p>
+ * The frames are built from explicitly given (or random) predictor
+ * coefficients and residuals. They are thus valid input for the decoder,
+ * but don't represent any particular audio signal. The entropy coder
+ * mirrors the one in {@link com.beatofthedrum.alacdecoder.AlacDecodeUtils},
+ * including the run-length coding of zero residuals.
+ */
+public class AlacTestFrameEncoder {
+	/**
+	 * SDP format options as sent by iTunes
+	 */
+	public static final String[] FormatOptions = { "352", "0", "16", "40", "10", "14", "2", "255", "0", "0", "44100" };
+
+	/**
+	 * Longest unary prefix the decoder accepts before switching to raw values
+	 */
+	private static final int RiceThreshold = 8;
+
+	/**
+	 * Sample size as read by the decoder for stereo frames
+	 */
+	private static final int ReadSampleSize = 17;
+
+	/**
+	 * Big endian bit writer
+	 */
+	private static final class BitWriter {
+		private byte[] m_bytes = new byte[1024];
+		private int m_bitPosition = 0;
+
+		public void write(final int value, final int bits) {
+			for(int i=bits - 1; i >= 0; --i)
+				writeBit((value >>> i) & 1);
+		}
+
+		public void writeBit(final int bit) {
+			final int index = m_bitPosition >> 3;
+			if (index >= m_bytes.length)
+				m_bytes = java.util.Arrays.copyOf(m_bytes, 2 * m_bytes.length);
+			if (bit != 0)
+				m_bytes[index] |= 0x80 >>> (m_bitPosition & 7);
+			++m_bitPosition;
+		}
+
+		public byte[] toByteArray() {
+			return java.util.Arrays.copyOf(m_bytes, (m_bitPosition + 7) >> 3);
+		}
+	}
+
+	private final int m_samplesPerFrame;
+	private final int m_riceHistoryMult;
+	private final int m_riceInitialHistory;
+	private final int m_riceKModifier;
+
+	/**
+	 * Creates an encoder for the given SDP format options
+	 * 
+	 * @param formatOptions format options, see {@link RaopRtpAudioAlacDecodeHandler}
+	 */
+	public AlacTestFrameEncoder(final String[] formatOptions) {
+		m_samplesPerFrame = Integer.valueOf(formatOptions[RaopRtpAudioAlacDecodeHandler.FormatOptionSamplesPerFrame]);
+		m_riceHistoryMult = Integer.valueOf(formatOptions[RaopRtpAudioAlacDecodeHandler.FormatOptionRiceHistoryMult]);
+		m_riceInitialHistory = Integer.valueOf(formatOptions[RaopRtpAudioAlacDecodeHandler.FormatOptionRiceInitialHistory]);
+		m_riceKModifier = Integer.valueOf(formatOptions[RaopRtpAudioAlacDecodeHandler.FormatOptionRiceKModifier]);
+	}
+
+	public int getSamplesPerFrame() {
+		return m_samplesPerFrame;
+	}
+
+	/**
+	 * Encodes a compressed stereo frame
+	 * 
+	 * @param interlacingShift interlacing shift
+	 * @param interlacingLeftWeight interlacing left weight
+	 * @param quantization predictor quantization
+	 * @param riceModifier rice history modifier
+	 * @param coefsA predictor coefficients of first channel
+	 * @param residualsA residuals of first channel
+	 * @param coefsB predictor coefficients of second channel
+	 * @param residualsB residuals of second channel
+	 * @return frame
+	 */
+	public byte[] encodeStereo(
+		final int interlacingShift, final int interlacingLeftWeight,
+		final int quantization, final int riceModifier,
+		final int[] coefsA, final int[] residualsA,
+		final int[] coefsB, final int[] residualsB
+	) {
+		final BitWriter out = new BitWriter();
+
+		out.write(1, 3); /* Two channels */
+		out.write(0, 4);
+		out.write(0, 12);
+		out.write(0, 1); /* No sample count */
+		out.write(0, 2); /* No uncompressed bytes */
+		out.write(0, 1); /* Compressed */
+		out.write(interlacingShift, 8);
+		out.write(interlacingLeftWeight, 8);
+		writePredictor(out, quantization, riceModifier, coefsA);
+		writePredictor(out, quantization, riceModifier, coefsB);
+		writeResiduals(out, riceModifier * (m_riceHistoryMult / 4), residualsA);
+		writeResiduals(out, riceModifier * (m_riceHistoryMult / 4), residualsB);
+		out.write(7, 3); /* End tag */
+
+		return out.toByteArray();
+	}
+
+	/**
+	 * Encodes a stereo frame with random coefficients and residuals. The residuals
+	 * are mostly small, but contain runs of zeros and a few large outliers.
+	 * 
+	 * @param random random number generator
+	 * @return frame
+	 */
+	public byte[] encodeRandomStereo(final Random random) {
+		final int coefCount = 8;
+		final int[] coefsA = new int[coefCount];
+		final int[] coefsB = new int[coefCount];
+		for(int i=0; i < coefCount; ++i) {
+			coefsA[i] = random.nextInt(2048) - 1024;
+			coefsB[i] = random.nextInt(2048) - 1024;
+		}
+
+		return encodeStereo(
+			1, random.nextInt(4),
+			9, 4,
+			coefsA, randomResiduals(random),
+			coefsB, randomResiduals(random)
+		);
+	}
+
+	private int[] randomResiduals(final Random random) {
+		final int[] residuals = new int[m_samplesPerFrame];
+		int i = 0;
+		while (i < residuals.length) {
+			final int run = Math.min(1 + random.nextInt(64), residuals.length - i);
+			final int kind = random.nextInt(8);
+			for(int j=0; j < run; ++j, ++i) {
+				if (kind == 0)
+					residuals[i] = 0;
+				else if (kind == 1)
+					residuals[i] = random.nextInt(32768) - 16384;
+				else
+					residuals[i] = (int)Math.round(random.nextGaussian() * 64.0 * kind);
+			}
+		}
+		return residuals;
+	}
+
+	private static void writePredictor(final BitWriter out, final int quantization, final int riceModifier, final int[] coefs) {
+		out.write(0, 4); /* Adaptive FIR */
+		out.write(quantization, 4);
+		out.write(riceModifier, 3);
+		out.write(coefs.length, 5);
+		for(final int coef: coefs)
+			out.write(coef & 0xffff, 16);
+	}
+
+	private void writeResiduals(final BitWriter out, final int historyMult, final int[] residuals) {
+		final int kModifierMask = (1 << m_riceKModifier) - 1;
+		int history = m_riceInitialHistory;
+		int signModifier = 0;
+
+		for(int i=0; i < residuals.length; ++i) {
+			final int residual = residuals[i];
+			final int value = (residual >= 0) ? 2 * residual : -2 * residual - 1;
+
+			int k = 31 - m_riceKModifier - Integer.numberOfLeadingZeros((history >> 9) + 3);
+			k = (k < 0) ? k + m_riceKModifier : m_riceKModifier;
+			writeValue(out, value - signModifier, k, 0xffffffff, ReadSampleSize);
+			signModifier = 0;
+
+			history += (value * historyMult) - ((history * historyMult) >> 9);
+			if (value > 0xffff)
+				history = 0xffff;
+
+			/* Runs of zeros */
+			if ((history < 128) && (i + 1 < residuals.length)) {
+				int blockSize = 0;
+				while ((i + 1 + blockSize < residuals.length) && (residuals[i + 1 + blockSize] == 0))
+					++blockSize;
+
+				k = Integer.numberOfLeadingZeros(history) + ((history + 16) / 64) - 24;
+				writeValue(out, blockSize, k, kModifierMask, 16);
+
+				i += blockSize;
+				signModifier = 1;
+				history = 0;
+			}
+		}
+	}
+
+	private static void writeValue(final BitWriter out, final int value, final int k, final int kModifierMask, final int sampleSize) {
+		final int m = ((1 << k) - 1) & kModifierMask;
+		final int q = value / m;
+		final int r = value % m;
+
+		if (q > RiceThreshold) {
+			/* Escape, followed by the raw value */
+			for(int i=0; i <= RiceThreshold; ++i)
+				out.writeBit(1);
+			out.write(value, sampleSize);
+			return;
+		}
+
+		/* Unary quotient */
+		for(int i=0; i < q; ++i)
+			out.writeBit(1);
+		out.writeBit(0);
+
+		/* Remainder. The decoder reads k bits, but puts back the last one if the remainder is zero */
+		if (k != 1) {
+			if (r == 0)
+				out.write(0, k - 1);
+			else
+				out.write(r + 1, k);
+		}
+	}
+}
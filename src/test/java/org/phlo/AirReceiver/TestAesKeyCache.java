@@ -0,0 +1,79 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.phlo.AirReceiver;
+
+import javax.crypto.SecretKey;
+
+import org.junit.*;
+
+public class TestAesKeyCache {
+	private static byte[] bytes(final int seed, final int length) {
+		final byte[] b = new byte[length];
+		for(int i=0; i < length; ++i)
+			b[i] = (byte)(seed + i);
+		return b;
+	}
+
+	@Test
+	public void testHitsAndMisses() {
+		final AesKeyCache cache = new AesKeyCache(4, 60.0);
+		final byte[] keyMaterial = bytes(100, 16);
+
+		Assert.assertNull(cache.get(bytes(1, 256)));
+		cache.put(bytes(1, 256), keyMaterial);
+
+		/* The cache keeps its own copy */
+		keyMaterial[0] = 0;
+
+		final SecretKey key = cache.get(bytes(1, 256));
+		Assert.assertNotNull(key);
+		Assert.assertEquals("AES", key.getAlgorithm());
+		Assert.assertArrayEquals(bytes(100, 16), key.getEncoded());
+		Assert.assertNull(cache.get(bytes(2, 256)));
+
+		Assert.assertEquals(1, cache.getHitCount());
+		Assert.assertEquals(2, cache.getMissCount());
+	}
+
+	@Test
+	public void testLeastRecentlyUsedIsEvicted() {
+		final AesKeyCache cache = new AesKeyCache(2, 60.0);
+		cache.put(bytes(1, 256), bytes(100, 16));
+		cache.put(bytes(2, 256), bytes(101, 16));
+		Assert.assertNotNull(cache.get(bytes(1, 256)));
+		cache.put(bytes(3, 256), bytes(102, 16));
+
+		Assert.assertEquals(2, cache.size());
+		Assert.assertEquals(1, cache.getEvictedCount());
+		Assert.assertNotNull(cache.get(bytes(1, 256)));
+		Assert.assertNull(cache.get(bytes(2, 256)));
+		Assert.assertNotNull(cache.get(bytes(3, 256)));
+	}
+
+	@Test
+	public void testKeysExpire() throws InterruptedException {
+		final AesKeyCache cache = new AesKeyCache(4, 0.05);
+		cache.put(bytes(1, 256), bytes(100, 16));
+		Assert.assertNotNull(cache.get(bytes(1, 256)));
+
+		Thread.sleep(100);
+		Assert.assertNull(cache.get(bytes(1, 256)));
+		Assert.assertEquals(1, cache.getExpiredCount());
+		Assert.assertEquals(0, cache.size());
+	}
+}
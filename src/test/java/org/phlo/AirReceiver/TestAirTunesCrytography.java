@@ -0,0 +1,81 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.phlo.AirReceiver;
+
+import java.math.BigInteger;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.interfaces.RSAPrivateCrtKey;
+import java.security.spec.RSAPublicKeySpec;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.junit.*;
+
+public class TestAirTunesCrytography {
+	private static byte[] hex(final String s) {
+		final byte[] b = new BigInteger("10" + s, 16).toByteArray();
+		final byte[] result = new byte[s.length() / 2];
+		System.arraycopy(b, b.length - result.length, result, 0, result.length);
+		return result;
+	}
+
+	@Test
+	public void testProvidersAreSelected() {
+		AirTunesCrytography.selectProviders();
+		for(final String transformation: AirTunesCrytography.Transformations) {
+			Assert.assertNotNull(AirTunesCrytography.getProvider(transformation));
+			Assert.assertSame(AirTunesCrytography.getProvider(transformation), AirTunesCrytography.getProvider(transformation.toLowerCase()));
+		}
+	}
+
+	@Test
+	public void testAesCbc() throws Exception {
+		/* NIST SP 800-38A, F.2.2 CBC-AES128.Decrypt, first block */
+		final Cipher cipher = AirTunesCrytography.getCipher("AES/CBC/NoPadding");
+		cipher.init(
+			Cipher.DECRYPT_MODE,
+			new SecretKeySpec(hex("2b7e151628aed2a6abf7158809cf4f3c"), "AES"),
+			new IvParameterSpec(hex("000102030405060708090a0b0c0d0e0f"))
+		);
+		Assert.assertArrayEquals(hex("6bc1bee22e409f96e93d7e117393172a"), cipher.doFinal(hex("7649abac8119b246cee98e9b12e9197d")));
+	}
+
+	@Test
+	public void testRsa() throws Exception {
+		final RSAPrivateCrtKey privateKey = (RSAPrivateCrtKey)AirTunesCrytography.PrivateKey;
+		final PublicKey publicKey = KeyFactory.getInstance("RSA").generatePublic(new RSAPublicKeySpec(privateKey.getModulus(), privateKey.getPublicExponent()));
+		final byte[] plain = hex("00112233445566778899aabbccddeeff");
+
+		/* Signing, as done for the Apple-Challenge */
+		final Cipher pkcs1Cipher = AirTunesCrytography.getCipher("RSA/None/PKCS1Padding");
+		pkcs1Cipher.init(Cipher.ENCRYPT_MODE, privateKey);
+		final byte[] signature = pkcs1Cipher.doFinal(plain);
+		pkcs1Cipher.init(Cipher.DECRYPT_MODE, publicKey);
+		Assert.assertArrayEquals(plain, pkcs1Cipher.doFinal(signature));
+
+		/* Decrypting the AES key, as done for ANNOUNCE */
+		final Cipher oaepCipher = AirTunesCrytography.getCipher("RSA/None/OAEPWithSHA1AndMGF1Padding");
+		oaepCipher.init(Cipher.ENCRYPT_MODE, publicKey);
+		final byte[] encrypted = oaepCipher.doFinal(plain);
+		oaepCipher.init(Cipher.DECRYPT_MODE, privateKey);
+		Assert.assertArrayEquals(plain, oaepCipher.doFinal(encrypted));
+	}
+}
@@ -0,0 +1,283 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.phlo.AirReceiver;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import javax.sound.sampled.AudioFormat;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.*;
+
+/**
+ * Guards the ALAC decoder against changes in its output. The expected
+ * checksums were produced by the original byte-oriented decoder, over
+ * a corpus of frames which exercises the different code paths of the
+ * entropy decoder and predictor. They cover the unsigned big endian PCM
+ * the decoder originally produced, other output formats are compared to it.
+ */
+public class TestAlacDecodeRegression {
+	/**
+	 * Format options with different rice parameters
+	 */
+	private static final String[] FormatOptionsSmallK = { "352", "0", "16", "20", "20", "10", "2", "255", "0", "0", "44100" };
+	private static final String[] FormatOptionsLargeHistory = { "352", "0", "16", "60", "40", "14", "2", "255", "0", "0", "44100" };
+
+	/**
+	 * Encodes an uncompressed 16-bit stereo frame
+	 */
+	private static byte[] encodeUncompressedStereo(final Random random, final int samplesPerFrame) {
+		final int bits = 3 + 4 + 12 + 1 + 2 + 1 + samplesPerFrame * 2 * 16 + 3;
+		final byte[] frame = new byte[(bits + 7) / 8];
+		final ChannelBuffer buffer = ChannelBuffers.wrappedBuffer(frame);
+		buffer.writerIndex(0);
+
+		long bitBuffer = 0;
+		int bitCount = 0;
+		final int[] fields = new int[3 + 2 * samplesPerFrame + 1];
+		final int[] widths = new int[fields.length];
+		int f = 0;
+		fields[f] = 1; widths[f++] = 3; /* Two channels */
+		fields[f] = 0; widths[f++] = 16; /* Unknown */
+		fields[f] = 1; widths[f++] = 5; /* No sample count, no uncompressed bytes, not compressed */
+		for(int i=0; i < 2 * samplesPerFrame; ++i) {
+			fields[f] = random.nextInt(65536);
+			widths[f++] = 16;
+		}
+		fields[f] = 7; widths[f++] = 3; /* End tag */
+
+		for(int i=0; i < f; ++i) {
+			bitBuffer = (bitBuffer << widths[i]) | (fields[i] & ((1L << widths[i]) - 1));
+			bitCount += widths[i];
+			while (bitCount >= 8) {
+				buffer.writeByte((int)(bitBuffer >>> (bitCount - 8)));
+				bitCount -= 8;
+			}
+		}
+		if (bitCount > 0)
+			buffer.writeByte((int)(bitBuffer << (8 - bitCount)));
+
+		return frame;
+	}
+
+	/**
+	 * Returns predictor coefficients which keep the output bounded
+	 */
+	private static int[] randomCoefs(final Random random, final int count) {
+		final int[] coefs = new int[count];
+		for(int i=0; i < count; ++i)
+			coefs[i] = random.nextInt(1024) - 512;
+		return coefs;
+	}
+
+	/**
+	 * Returns residuals of the given magnitude
+	 */
+	private static int[] randomResiduals(final Random random, final int count, final int magnitude) {
+		final int[] residuals = new int[count];
+		for(int i=0; i < count; ++i)
+			residuals[i] = random.nextInt(2 * magnitude + 1) - magnitude;
+		return residuals;
+	}
+
+	/**
+	 * Builds the corpus for a set of format options
+	 */
+	private static List<byte[]> createCorpus(final String[] formatOptions, final long seed) {
+		final AlacTestFrameEncoder encoder = new AlacTestFrameEncoder(formatOptions);
+		final int samplesPerFrame = encoder.getSamplesPerFrame();
+		final Random random = new Random(seed);
+		final List<byte[]> corpus = new ArrayList<byte[]>();
+
+		/* Mixed residuals with runs of zeros and outliers */
+		for(int i=0; i < 64; ++i)
+			corpus.add(encoder.encodeRandomStereo(random));
+
+		/* Different predictor orders, including the delta-only order 31 */
+		for(final int coefCount: new int[] { 1, 2, 4, 16, 31 }) {
+			for(final int magnitude: new int[] { 0, 1, 100, 30000 }) {
+				corpus.add(encoder.encodeStereo(
+					random.nextInt(3), random.nextInt(4),
+					random.nextInt(16), 1 + random.nextInt(7),
+					randomCoefs(random, coefCount), randomResiduals(random, samplesPerFrame, magnitude),
+					randomCoefs(random, coefCount), randomResiduals(random, samplesPerFrame, magnitude)
+				));
+			}
+		}
+
+		/* Uncompressed frames */
+		for(int i=0; i < 4; ++i)
+			corpus.add(encodeUncompressedStereo(random, samplesPerFrame));
+
+		return corpus;
+	}
+
+	/**
+	 * Kinds of buffers the frames are decoded from
+	 */
+	private enum BufferKind {
+		Heap,
+		HeapWithGuards,
+		Direct,
+		DirectLittleEndian
+	}
+
+	/**
+	 * Guard bytes placed around frames. Non-zero, so that reading
+	 * them instead of treating the frame's end as zeros changes the output
+	 */
+	private static final int GuardLength = 13;
+
+	/**
+	 * Places a frame in a buffer of the given kind, behind GuardLength guard bytes unless the kind is Heap
+	 */
+	private static ChannelBuffer createBuffer(final BufferKind kind, final byte[] frame) {
+		switch (kind) {
+			case Heap:
+				return ChannelBuffers.wrappedBuffer(frame);
+
+			case HeapWithGuards: {
+				final byte[] guarded = new byte[GuardLength + frame.length + GuardLength];
+				Arrays.fill(guarded, (byte)0xa5);
+				System.arraycopy(frame, 0, guarded, GuardLength, frame.length);
+				return ChannelBuffers.wrappedBuffer(guarded);
+			}
+
+			case Direct:
+			case DirectLittleEndian: {
+				final ByteBuffer direct = ByteBuffer.allocateDirect(GuardLength + frame.length + GuardLength);
+				while (direct.hasRemaining())
+					direct.put((byte)0xa5);
+				direct.position(GuardLength);
+				direct.put(frame);
+				direct.clear();
+				if (kind == BufferKind.DirectLittleEndian)
+					direct.order(ByteOrder.LITTLE_ENDIAN);
+				return ChannelBuffers.wrappedBuffer(direct);
+			}
+
+			default:
+				throw new IllegalArgumentException();
+		}
+	}
+
+	/**
+	 * Decodes the corpus and returns the CRC32 of the decoded samples
+	 */
+	private long decodeCorpus(final String[] formatOptions, final List<byte[]> corpus) throws Exception {
+		return decodeCorpus(formatOptions, corpus, BufferKind.Heap);
+	}
+
+	/**
+	 * Decodes the corpus from buffers of the given kind and returns the CRC32 of the decoded samples
+	 */
+	private long decodeCorpus(final String[] formatOptions, final List<byte[]> corpus, final BufferKind kind) throws Exception {
+		final RaopRtpAudioAlacDecodeHandler decoder = new RaopRtpAudioAlacDecodeHandler(formatOptions, false, RaopRtpAudioAlacDecodeHandler.UnsignedBigEndianFormat);
+		final CRC32 crc = new CRC32();
+		for(final byte[] frame: corpus) {
+			final ChannelBuffer buffer = createBuffer(kind, frame);
+			final int offset = (kind == BufferKind.Heap) ? 0 : GuardLength;
+			Assert.assertEquals(kind.toString(), buffer.hasArray(), (kind == BufferKind.Heap) || (kind == BufferKind.HeapWithGuards));
+			crc.update(decoder.decodeFrame(buffer, offset, frame.length));
+		}
+		return crc.getValue();
+	}
+
+	@Test
+	public void testDefaultOptions() throws Exception {
+		Assert.assertEquals(0x674f5b3dL, decodeCorpus(AlacTestFrameEncoder.FormatOptions, createCorpus(AlacTestFrameEncoder.FormatOptions, 1)));
+	}
+
+	@Test
+	public void testSmallK() throws Exception {
+		Assert.assertEquals(0x7df66c6cL, decodeCorpus(FormatOptionsSmallK, createCorpus(FormatOptionsSmallK, 2)));
+	}
+
+	@Test
+	public void testLargeHistory() throws Exception {
+		Assert.assertEquals(0x807341b5L, decodeCorpus(FormatOptionsLargeHistory, createCorpus(FormatOptionsLargeHistory, 3)));
+	}
+
+	@Test
+	public void testBufferKinds() throws Exception {
+		final List<byte[]> corpus = createCorpus(FormatOptionsSmallK, 2);
+		for(final BufferKind kind: BufferKind.values())
+			Assert.assertEquals(kind.toString(), 0x7df66c6cL, decodeCorpus(FormatOptionsSmallK, corpus, kind));
+	}
+
+	@Test
+	public void testTruncatedFrames() throws Exception {
+		/* Frames cut short must decode as if they were padded with zeros,
+		 * regardless of what follows them in the buffer
+		 */
+		final List<byte[]> truncated = new ArrayList<byte[]>();
+		final List<byte[]> padded = new ArrayList<byte[]>();
+		for(final byte[] frame: createCorpus(AlacTestFrameEncoder.FormatOptions, 4)) {
+			for(final int cut: new int[] { 1, 3, 9 }) {
+				truncated.add(Arrays.copyOf(frame, frame.length - cut));
+				final byte[] zeros = Arrays.copyOf(frame, frame.length + 16);
+				Arrays.fill(zeros, frame.length - cut, zeros.length, (byte)0);
+				padded.add(zeros);
+			}
+		}
+
+		final long expected = decodeCorpus(AlacTestFrameEncoder.FormatOptions, padded);
+		for(final BufferKind kind: BufferKind.values())
+			Assert.assertEquals(kind.toString(), expected, decodeCorpus(AlacTestFrameEncoder.FormatOptions, truncated, kind));
+	}
+
+	@Test
+	public void testOutputFormats() throws Exception {
+		final List<byte[]> corpus = createCorpus(AlacTestFrameEncoder.FormatOptions, 5);
+		final RaopRtpAudioAlacDecodeHandler reference = new RaopRtpAudioAlacDecodeHandler(AlacTestFrameEncoder.FormatOptions, false, RaopRtpAudioAlacDecodeHandler.UnsignedBigEndianFormat);
+
+		for(final boolean signed: new boolean[] { false, true }) {
+			for(final boolean bigEndian: new boolean[] { false, true }) {
+				final AudioFormat format = new AudioFormat(44100, 16, 2, signed, bigEndian);
+				final RaopRtpAudioAlacDecodeHandler decoder = new RaopRtpAudioAlacDecodeHandler(AlacTestFrameEncoder.FormatOptions, false, format);
+				Assert.assertSame(format, decoder.getAudioFormat());
+
+				for(final byte[] frame: corpus) {
+					/* Convert the reference samples to the tested format */
+					final byte[] expected = reference.decodeFrame(ChannelBuffers.wrappedBuffer(frame), 0, frame.length);
+					for(int i=0; i < expected.length; i += 2) {
+						final byte high = (byte)(signed ? expected[i] ^ 0x80 : expected[i]);
+						final byte low = expected[i + 1];
+						expected[i] = bigEndian ? high : low;
+						expected[i + 1] = bigEndian ? low : high;
+					}
+
+					Assert.assertArrayEquals(format.toString(), expected, decoder.decodeFrame(ChannelBuffers.wrappedBuffer(frame), 0, frame.length));
+				}
+			}
+		}
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testUnsupportedOutputFormat() throws Exception {
+		new RaopRtpAudioAlacDecodeHandler(AlacTestFrameEncoder.FormatOptions, false, new AudioFormat(44100, 24, 2, true, true));
+	}
+}
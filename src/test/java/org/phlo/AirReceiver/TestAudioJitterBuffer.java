@@ -0,0 +1,212 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.phlo.AirReceiver;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.*;
+
+public class TestAudioJitterBuffer {
+	private static final int PacketFrames = 352;
+	private static final int BufferSize = 16;
+
+	private SampleBufferPool m_pool;
+	private AudioJitterBuffer m_buffer;
+
+	@Before
+	public void createBuffer() {
+		m_pool = new SampleBufferPool(BufferSize, 64);
+		m_buffer = new AudioJitterBuffer(PacketFrames, 6, m_pool);
+	}
+
+	private byte[] createSamples(final int tag) {
+		final byte[] samples = m_pool.obtain(BufferSize);
+		samples[0] = (byte)tag;
+		return samples;
+	}
+
+	@Test
+	public void testCapacityIsPowerOfTwo() {
+		Assert.assertEquals(8, m_buffer.getCapacity());
+		Assert.assertEquals(1, new AudioJitterBuffer(PacketFrames, 1, m_pool).getCapacity());
+		Assert.assertEquals(1024, new AudioJitterBuffer(PacketFrames, 1024, m_pool).getCapacity());
+	}
+
+	@Test
+	public void testEntriesAreTakenInOrder() {
+		final long base = 1000;
+		for(final int i: new int[] { 2, 0, 3, 1 })
+			Assert.assertTrue(m_buffer.put(base + i * PacketFrames, createSamples(i)));
+		Assert.assertEquals(4, m_buffer.size());
+
+		for(int i=0; i < 4; ++i) {
+			final long frameTime = base + i * PacketFrames;
+			Assert.assertEquals(frameTime, m_buffer.peek(frameTime - PacketFrames, frameTime + PacketFrames));
+			Assert.assertEquals(i, m_buffer.take()[0]);
+			Assert.assertNull(m_buffer.take());
+		}
+		Assert.assertTrue(m_buffer.isEmpty());
+		Assert.assertEquals(0, m_buffer.getDroppedCount());
+	}
+
+	@Test
+	public void testEntriesOutsideRangeAreNotReturned() {
+		Assert.assertTrue(m_buffer.put(3 * PacketFrames, createSamples(3)));
+		Assert.assertEquals(AudioJitterBuffer.None, m_buffer.peek(0, 2 * PacketFrames));
+		Assert.assertNull(m_buffer.take());
+		Assert.assertEquals(1, m_buffer.size());
+		Assert.assertEquals(3 * PacketFrames, m_buffer.peek(2 * PacketFrames, 4 * PacketFrames));
+	}
+
+	@Test
+	public void testOccupiedSlotsRejectEntries() {
+		Assert.assertTrue(m_buffer.put(PacketFrames, createSamples(1)));
+		Assert.assertFalse(m_buffer.put(PacketFrames, createSamples(2)));
+		Assert.assertFalse(m_buffer.put(PacketFrames + 10, createSamples(3)));
+		Assert.assertEquals(1, m_buffer.size());
+
+		/* Rejected sample buffers are recycled */
+		Assert.assertEquals(1, m_pool.getIdleCount());
+		Assert.assertEquals(1, m_pool.getHitCount());
+
+		Assert.assertEquals(PacketFrames, m_buffer.peek(0, 2 * PacketFrames));
+		Assert.assertEquals(1, m_buffer.take()[0]);
+	}
+
+	@Test
+	public void testLateEntriesAreDropped() {
+		for(int i=0; i < 4; ++i)
+			Assert.assertTrue(m_buffer.put(i * PacketFrames, createSamples(i)));
+
+		Assert.assertEquals(3 * PacketFrames, m_buffer.peek(3 * PacketFrames, 4 * PacketFrames));
+		Assert.assertEquals(3, m_buffer.getDroppedCount());
+		Assert.assertEquals(3, m_pool.getIdleCount());
+		Assert.assertEquals(3, m_buffer.take()[0]);
+	}
+
+	@Test
+	public void testStaleEntriesAreReplaced() {
+		/* Same slot index, one pass around the ring later */
+		Assert.assertTrue(m_buffer.put(0, createSamples(1)));
+		Assert.assertTrue(m_buffer.put(m_buffer.getCapacity() * PacketFrames, createSamples(2)));
+		Assert.assertEquals(1, m_buffer.size());
+		Assert.assertEquals(1, m_pool.getIdleCount());
+
+		/* But later entries are never replaced by earlier ones */
+		Assert.assertFalse(m_buffer.put(0, createSamples(3)));
+	}
+
+	@Test
+	public void testReaderSkipsAhead() {
+		Assert.assertTrue(m_buffer.put(PacketFrames, createSamples(1)));
+		Assert.assertTrue(m_buffer.put(5 * PacketFrames, createSamples(5)));
+
+		/* Many rounds ahead, everything queued is too late */
+		final long frameTime = 100 * m_buffer.getCapacity() * PacketFrames;
+		Assert.assertEquals(AudioJitterBuffer.None, m_buffer.peek(frameTime, frameTime + PacketFrames));
+		Assert.assertEquals(2, m_buffer.getDroppedCount());
+		Assert.assertTrue(m_buffer.isEmpty());
+
+		/* Moving back is allowed, e.g. if the frame time offset changes */
+		Assert.assertTrue(m_buffer.put(2 * PacketFrames, createSamples(2)));
+		Assert.assertEquals(2 * PacketFrames, m_buffer.peek(PacketFrames, 3 * PacketFrames));
+	}
+
+	@Test
+	public void testNegativeFrameTimes() {
+		Assert.assertTrue(m_buffer.put(-PacketFrames, createSamples(1)));
+		Assert.assertTrue(m_buffer.put(0, createSamples(2)));
+		Assert.assertEquals(-PacketFrames, m_buffer.peek(-2 * PacketFrames, 0));
+		Assert.assertEquals(1, m_buffer.take()[0]);
+		Assert.assertEquals(0, m_buffer.peek(-1, PacketFrames));
+		Assert.assertEquals(2, m_buffer.take()[0]);
+	}
+
+	@Test
+	public void testClear() {
+		for(int i=0; i < 4; ++i)
+			Assert.assertTrue(m_buffer.put(i * PacketFrames, createSamples(i)));
+
+		Assert.assertEquals(0, m_buffer.peek(0, PacketFrames));
+		m_buffer.clear();
+		Assert.assertTrue(m_buffer.isEmpty());
+		Assert.assertEquals(4, m_pool.getIdleCount());
+
+		/* The entry peeked before the buffer was cleared is gone, even
+		 * if its slot was filled again in the meantime
+		 */
+		Assert.assertTrue(m_buffer.put(0, createSamples(5)));
+		Assert.assertNull(m_buffer.take());
+		Assert.assertEquals(0, m_buffer.peek(0, PacketFrames));
+		Assert.assertEquals(5, m_buffer.take()[0]);
+	}
+
+	@Test
+	public void testConcurrentWriterAndReader() throws Exception {
+		final int packetCount = 200000;
+		final AudioJitterBuffer buffer = new AudioJitterBuffer(PacketFrames, 32, m_pool);
+		final AtomicReference<Throwable> readerFailure = new AtomicReference<Throwable>();
+
+		/* Reads the packets in order, waiting for each one to arrive */
+		final Thread reader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					for(int i=0; i < packetCount; ++i) {
+						final long frameTime = (long)i * PacketFrames;
+						byte[] samples = null;
+						while (samples == null) {
+							if (buffer.peek(frameTime, frameTime + PacketFrames) == frameTime)
+								samples = buffer.take();
+							else
+								Thread.yield();
+						}
+						if ((samples[0] != (byte)i) || (samples[1] != (byte)(i >> 8)))
+							throw new AssertionError("Packet " + i + " has wrong content");
+						m_pool.recycle(samples);
+					}
+				}
+				catch (final Throwable e) {
+					readerFailure.set(e);
+				}
+			}
+		});
+		reader.start();
+
+		/* Writes the packets in order, waiting while the ring is full */
+		for(int i=0; (i < packetCount) && reader.isAlive(); ) {
+			if (buffer.size() >= buffer.getCapacity() - 1) {
+				Thread.yield();
+				continue;
+			}
+
+			final byte[] samples = m_pool.obtain(BufferSize);
+			samples[0] = (byte)i;
+			samples[1] = (byte)(i >> 8);
+			Assert.assertTrue(buffer.put((long)i * PacketFrames, samples));
+			++i;
+		}
+
+		reader.join();
+		if (readerFailure.get() != null)
+			throw new AssertionError(readerFailure.get());
+		Assert.assertTrue(buffer.isEmpty());
+		Assert.assertEquals(0, buffer.getDroppedCount());
+	}
+}
@@ -0,0 +1,267 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.phlo.AirReceiver;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.sound.sampled.*;
+
+import org.junit.*;
+
+public class TestAudioOutputQueue {
+	private static final int FramesPerPacket = 352;
+	private static final int PacketCount = 1000;
+
+	/**
+	 * Output line which doesn't play anything. Its position stays at zero until
+	 * {@link #startDraining()} is called, afterwards everything written counts
+	 * as played immediately. Records the frames written from the first write
+	 * which doesn't start with a zero byte on, i.e. from the first packet on.
+	 */
+	static final class FakeLine implements SourceDataLine {
+		private final FloatControl m_gainControl = new FloatControl(FloatControl.Type.MASTER_GAIN, -80.0f, 6.0f, 0.1f, 0, 0.0f, "dB") { };
+		private final int m_capturedFrames;
+		private final boolean m_capture;
+		private final ByteArrayOutputStream m_captured = new ByteArrayOutputStream();
+		private final CountDownLatch m_capturedAll = new CountDownLatch(1);
+
+		private AudioFormat m_format;
+		private int m_bufferSize;
+		private volatile boolean m_open = false;
+		private volatile boolean m_started = false;
+		private volatile boolean m_draining = false;
+		private volatile long m_framesWritten = 0;
+
+		private long m_framesCaptured = 0;
+		private long m_firstCaptureNanos = 0;
+		private long m_lastCaptureNanos = 0;
+
+		public FakeLine(final int capturedFrames, final boolean capture) {
+			m_capturedFrames = capturedFrames;
+			m_capture = capture;
+		}
+
+		public void startDraining() {
+			m_draining = true;
+		}
+
+		public boolean awaitCaptured() throws InterruptedException {
+			return m_capturedAll.await(30, TimeUnit.SECONDS);
+		}
+
+		public byte[] getCaptured() {
+			return m_captured.toByteArray();
+		}
+
+		public double getCaptureSeconds() {
+			return 1e-9 * (double)(m_lastCaptureNanos - m_firstCaptureNanos);
+		}
+
+		@Override
+		public int write(final byte[] b, final int off, final int len) {
+			if ((m_framesCaptured < m_capturedFrames) && ((m_framesCaptured > 0) || (b[off] != 0))) {
+				final int frames = (int)Math.min(len / m_format.getFrameSize(), m_capturedFrames - m_framesCaptured);
+				if (m_framesCaptured == 0)
+					m_firstCaptureNanos = System.nanoTime();
+				m_lastCaptureNanos = System.nanoTime();
+				if (m_capture)
+					m_captured.write(b, off, frames * m_format.getFrameSize());
+				m_framesCaptured += frames;
+				if (m_framesCaptured >= m_capturedFrames)
+					m_capturedAll.countDown();
+			}
+
+			m_framesWritten += len / m_format.getFrameSize();
+			return len;
+		}
+
+		@Override public void open(final AudioFormat format, final int bufferSize) { m_format = format; m_bufferSize = bufferSize; m_open = true; }
+		@Override public void open(final AudioFormat format) { open(format, 16384); }
+		@Override public void open() { open(m_format); }
+		@Override public void close() { m_open = false; }
+		@Override public boolean isOpen() { return m_open; }
+		@Override public void start() { m_started = true; }
+		@Override public void stop() { m_started = false; }
+		@Override public boolean isRunning() { return m_started; }
+		@Override public boolean isActive() { return m_started && (m_framesWritten > 0); }
+		@Override public void drain() { }
+		@Override public void flush() { }
+		@Override public AudioFormat getFormat() { return m_format; }
+		@Override public int getBufferSize() { return m_bufferSize; }
+		@Override public int available() { return m_bufferSize - (int)(m_framesWritten - getLongFramePosition()) * m_format.getFrameSize(); }
+		@Override public int getFramePosition() { return (int)getLongFramePosition(); }
+		@Override public long getLongFramePosition() { return m_draining ? m_framesWritten : 0; }
+		@Override public long getMicrosecondPosition() { return (long)(getLongFramePosition() * 1e6 / m_format.getSampleRate()); }
+		@Override public float getLevel() { return AudioSystem.NOT_SPECIFIED; }
+		@Override public Line.Info getLineInfo() { return new DataLine.Info(SourceDataLine.class, m_format); }
+		@Override public Control[] getControls() { return new Control[] { m_gainControl }; }
+		@Override public boolean isControlSupported(final Control.Type control) { return FloatControl.Type.MASTER_GAIN.equals(control); }
+		@Override public Control getControl(final Control.Type control) { return m_gainControl; }
+		@Override public void addLineListener(final LineListener listener) { }
+		@Override public void removeLineListener(final LineListener listener) { }
+	}
+
+	private static AudioStreamInformationProvider createStreamInfo(final AudioFormat format) {
+		return new AudioStreamInformationProvider() {
+			@Override public AudioFormat getAudioFormat() { return format; }
+			@Override public int getFramesPerPacket() { return FramesPerPacket; }
+			@Override public double getPacketsPerSecond() { return format.getSampleRate() / (double)FramesPerPacket; }
+		};
+	}
+
+	/**
+	 * Random packets, each starting with a byte which is non-zero both
+	 * before and after the conversion from unsigned to signed
+	 */
+	private static byte[][] createPackets(final int frameSize) {
+		final Random random = new Random(0);
+		final byte[][] packets = new byte[PacketCount][FramesPerPacket * frameSize];
+		for(final byte[] packet: packets) {
+			random.nextBytes(packet);
+			packet[0] = 0x11;
+		}
+		return packets;
+	}
+
+	/**
+	 * Plays the packets through an output queue of the given stream format
+	 * and returns the line they were written to
+	 */
+	private static FakeLine play(final AudioFormat format, final byte[][] packets, final boolean capture) throws Exception {
+		final FakeLine line = new FakeLine(PacketCount * FramesPerPacket, capture);
+		final AudioOutputQueue queue = new AudioOutputQueue(createStreamInfo(format), line);
+		try {
+			/* The line doesn't drain yet, so all packets can be queued before playback starts */
+			final long frameTime = queue.getNextFrameTime() + FramesPerPacket;
+			for(int i=0; i < packets.length; ++i) {
+				final byte[] samples = queue.obtainSampleBuffer(packets[i].length);
+				System.arraycopy(packets[i], 0, samples, 0, samples.length);
+				Assert.assertTrue(queue.enqueue(frameTime + i * FramesPerPacket, samples));
+			}
+
+			line.startDraining();
+			Assert.assertTrue("Timed out waiting for playback", line.awaitCaptured());
+			return line;
+		}
+		finally {
+			queue.close();
+		}
+	}
+
+	@Test
+	public void testNativeFormatIsWrittenUnmodified() throws Exception {
+		final AudioFormat format = RaopRtpAudioAlacDecodeHandler.SignedBigEndianFormat;
+		final byte[][] packets = createPackets(format.getFrameSize());
+
+		final byte[] captured = play(format, packets, true).getCaptured();
+		for(int i=0; i < packets.length; ++i)
+			for(int j=0; j < packets[i].length; ++j)
+				Assert.assertEquals("packet " + i + " byte " + j, packets[i][j], captured[i * packets[i].length + j]);
+	}
+
+	@Test
+	public void testUnsignedFormatIsConverted() throws Exception {
+		final AudioFormat format = RaopRtpAudioAlacDecodeHandler.UnsignedBigEndianFormat;
+		final byte[][] packets = createPackets(format.getFrameSize());
+
+		final byte[] captured = play(format, packets, true).getCaptured();
+		for(int i=0; i < packets.length; ++i)
+			for(int j=0; j < packets[i].length; ++j)
+				Assert.assertEquals("packet " + i + " byte " + j, (byte)(packets[i][j] ^ ((j % 2 == 0) ? 0x80 : 0x00)), captured[i * packets[i].length + j]);
+	}
+
+	@Test
+	public void testNegotiatedLineFormatIsSigned() {
+		final AudioFormat lineFormat = AudioOutputQueue.negotiateLineFormat(RaopRtpAudioAlacDecodeHandler.UnsignedBigEndianFormat);
+		Assert.assertEquals(AudioFormat.Encoding.PCM_SIGNED, lineFormat.getEncoding());
+		Assert.assertEquals(44100.0f, lineFormat.getSampleRate(), 0.0f);
+		Assert.assertEquals(16, lineFormat.getSampleSizeInBits());
+		Assert.assertEquals(2, lineFormat.getChannels());
+		Assert.assertSame(lineFormat, AudioOutputQueue.negotiateLineFormat(RaopRtpAudioAlacDecodeHandler.UnsignedBigEndianFormat));
+	}
+
+	@Test
+	public void testFrameTimeAdjustment() throws Exception {
+		final AudioOutputQueue queue = new AudioOutputQueue(createStreamInfo(RaopRtpAudioAlacDecodeHandler.SignedBigEndianFormat), new FakeLine(0, false));
+		try {
+			final double secondsTime = queue.getNextSecondsTime() + 1.0;
+			queue.setFrameTime(1000000, secondsTime);
+			Assert.assertEquals(secondsTime, queue.convertFrameToSecondsTime(1000000), 1.0 / 44100.0);
+			Assert.assertEquals(1000000 - 44100, queue.getNextFrameTime(), 1);
+		}
+		finally {
+			queue.close();
+		}
+	}
+
+	@Test
+	public void testClockDoesNotUseQueueMonitor() throws Exception {
+		final AudioOutputQueue queue = new AudioOutputQueue(createStreamInfo(RaopRtpAudioAlacDecodeHandler.SignedBigEndianFormat), new FakeLine(0, false));
+		try {
+			final CountDownLatch done = new CountDownLatch(1);
+			final Thread reader = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					queue.setFrameTime(queue.getNextFrameTime(), queue.getNextSecondsTime());
+					queue.convertFrameToSecondsTime(queue.getNowFrameTime());
+					queue.enqueue(queue.getNextFrameTime() + FramesPerPacket, queue.obtainSampleBuffer(FramesPerPacket * 4));
+					queue.setGain(queue.getGain());
+					done.countDown();
+				}
+			});
+
+			/* Readers and writers of the clock never wait for other threads holding the queue's monitor */
+			synchronized(queue) {
+				reader.start();
+				Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+			}
+		}
+		finally {
+			queue.close();
+		}
+	}
+
+	@Test
+	public void testAppendFramesPerformance() throws Exception {
+		final AudioFormat nativeFormat = RaopRtpAudioAlacDecodeHandler.SignedBigEndianFormat;
+		final AudioFormat convertedFormat = RaopRtpAudioAlacDecodeHandler.UnsignedBigEndianFormat;
+		final byte[][] packets = createPackets(nativeFormat.getFrameSize());
+
+		/* Warm up */
+		for(int n=0; n < 3; ++n) {
+			play(nativeFormat, packets, false);
+			play(convertedFormat, packets, false);
+		}
+
+		double nativeSeconds = Double.MAX_VALUE;
+		double convertedSeconds = Double.MAX_VALUE;
+		for(int n=0; n < 3; ++n) {
+			nativeSeconds = Math.min(nativeSeconds, play(nativeFormat, packets, false).getCaptureSeconds() / PacketCount);
+			convertedSeconds = Math.min(convertedSeconds, play(convertedFormat, packets, false).getCaptureSeconds() / PacketCount);
+		}
+
+		System.out.println(
+			"Appending packets to the line takes " + nativeSeconds + " seconds per packet in the line's format, " +
+			convertedSeconds + " seconds per packet with conversion (" + String.format("%.2f", convertedSeconds / nativeSeconds) + "x)"
+		);
+	}
+}
@@ -0,0 +1,126 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.phlo.AirReceiver;
+
+import org.junit.*;
+
+public class TestRaopRtpAudioAdmissionHandler {
+	private static final int FramesPerPacket = 352;
+
+	/**
+	 * Frame time returned by the clock's {@link AudioClock#getNextFrameTime()}
+	 */
+	private long m_nextFrameTime = 0;
+
+	private final AudioClock m_clock = new AudioClock() {
+		@Override public double getNowSecondsTime() { return m_nextFrameTime / 44100.0; }
+		@Override public long getNowFrameTime() { return m_nextFrameTime; }
+		@Override public double getNextSecondsTime() { return m_nextFrameTime / 44100.0; }
+		@Override public long getNextFrameTime() { return m_nextFrameTime; }
+		@Override public double convertFrameToSecondsTime(final long frameTime) { return frameTime / 44100.0; }
+		@Override public void setFrameTime(final long frameTime, final double secondsTime) { }
+	};
+
+	private static RaopRtpPacket.Audio transmit(final int sequence) {
+		final RaopRtpPacket.AudioTransmit packet = new RaopRtpPacket.AudioTransmit(16);
+		packet.setSequence(sequence & 0xffff);
+		packet.setTimeStamp((long)sequence * FramesPerPacket);
+		return packet;
+	}
+
+	private static RaopRtpPacket.Audio retransmit(final int sequence) {
+		final RaopRtpPacket.AudioRetransmit packet = new RaopRtpPacket.AudioRetransmit(16);
+		packet.setSequence(1);
+		packet.setOriginalSequence(sequence & 0xffff);
+		packet.setTimeStamp((long)sequence * FramesPerPacket);
+		return packet;
+	}
+
+	@Test
+	public void testDuplicatesAreDropped() {
+		final RaopRtpAudioAdmissionHandler handler = new RaopRtpAudioAdmissionHandler(m_clock, FramesPerPacket, null);
+
+		Assert.assertTrue(handler.admit(transmit(10)));
+		Assert.assertFalse(handler.admit(transmit(10)));
+		Assert.assertTrue(handler.admit(transmit(12)));
+
+		/* A retransmit of a missing packet is accepted once, a retransmit of a received one not at all */
+		Assert.assertTrue(handler.admit(retransmit(11)));
+		Assert.assertFalse(handler.admit(retransmit(11)));
+		Assert.assertFalse(handler.admit(retransmit(12)));
+		Assert.assertFalse(handler.admit(transmit(11)));
+
+		/* Far older packets are still remembered */
+		for(int s=13; s < 20000; ++s)
+			Assert.assertTrue(handler.admit(transmit(s)));
+		Assert.assertFalse(handler.admit(retransmit(100)));
+	}
+
+	@Test
+	public void testSequenceWrapAround() {
+		final RaopRtpAudioAdmissionHandler handler = new RaopRtpAudioAdmissionHandler(m_clock, FramesPerPacket, null);
+
+		/* Sequences are re-used after a full cycle */
+		for(int s=0; s < 0x30000; ++s)
+			Assert.assertTrue(handler.admit(transmit(s)));
+		Assert.assertFalse(handler.admit(transmit(0x2ffff)));
+	}
+
+	@Test
+	public void testSequenceJumpResyncs() {
+		final RaopRtpAudioAdmissionHandler handler = new RaopRtpAudioAdmissionHandler(m_clock, FramesPerPacket, null);
+
+		/* After a full cycle every sequence has been seen, a jump back must still be accepted */
+		for(int s=0; s < 70000; ++s)
+			Assert.assertTrue(handler.admit(transmit(s)));
+		for(int s=50000; s < 51000; ++s)
+			Assert.assertTrue(handler.admit(transmit(s)));
+		Assert.assertFalse(handler.admit(transmit(50950)));
+
+		/* As must a jump forward by more than half the sequence space */
+		for(int s=51000 + 40000; s < 51000 + 41000; ++s)
+			Assert.assertTrue(handler.admit(transmit(s)));
+		Assert.assertFalse(handler.admit(transmit(51000 + 40950)));
+	}
+
+	@Test
+	public void testResetForgetsSequences() {
+		final RaopRtpAudioAdmissionHandler handler = new RaopRtpAudioAdmissionHandler(m_clock, FramesPerPacket, null);
+
+		for(int s=0; s < 100; ++s)
+			Assert.assertTrue(handler.admit(transmit(s)));
+
+		/* After a FLUSH, the client may re-use sequences within the misorder window */
+		handler.reset();
+		for(int s=50; s < 100; ++s)
+			Assert.assertTrue(handler.admit(transmit(s)));
+		Assert.assertFalse(handler.admit(transmit(99)));
+	}
+
+	@Test
+	public void testLatePacketsAreDropped() {
+		final RaopRtpStatistics statistics = new RaopRtpStatistics(44100.0);
+		final RaopRtpAudioAdmissionHandler handler = new RaopRtpAudioAdmissionHandler(m_clock, FramesPerPacket, statistics);
+
+		m_nextFrameTime = 10 * FramesPerPacket;
+		Assert.assertFalse(handler.admit(transmit(9)));
+		Assert.assertTrue(handler.admit(transmit(10)));
+		Assert.assertFalse(handler.admit(retransmit(8)));
+		Assert.assertEquals(2, statistics.snapshot().lateDrops);
+	}
+}
@@ -0,0 +1,262 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.phlo.AirReceiver;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.*;
+
+public class TestRaopRtpAudioAlacDecodeHandler {
+	private static final int PacketCount = 256;
+
+	private final SecretKeySpec m_aesKey = new SecretKeySpec(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16 }, "AES");
+	private final IvParameterSpec m_aesIv = new IvParameterSpec(new byte[16]);
+	private final AlacTestFrameEncoder m_encoder = new AlacTestFrameEncoder(AlacTestFrameEncoder.FormatOptions);
+
+	/**
+	 * Encrypted audio packets with consecutive sequence numbers and time stamps
+	 */
+	private RaopRtpPacket.AudioTransmit[] m_packets;
+
+	/**
+	 * Encrypted payloads of {@link #m_packets}, used to restore them after decryption
+	 */
+	private byte[][] m_payloads;
+
+	public long resultLong;
+
+	@Before
+	public void createPackets() throws Exception {
+		final Random random = new Random(0);
+		final Cipher aesCipher = AirTunesCrytography.getCipher("AES/CBC/NoPadding");
+
+		m_packets = new RaopRtpPacket.AudioTransmit[PacketCount];
+		m_payloads = new byte[PacketCount][];
+		for(int i=0; i < PacketCount; ++i) {
+			final byte[] frame = m_encoder.encodeRandomStereo(random);
+
+			/* Encrypt all complete blocks, leave the rest alone */
+			aesCipher.init(Cipher.ENCRYPT_MODE, m_aesKey, m_aesIv);
+			final int encryptedLength = frame.length & ~0xf;
+			aesCipher.doFinal(frame, 0, encryptedLength, frame, 0);
+
+			final RaopRtpPacket.AudioTransmit packet = new RaopRtpPacket.AudioTransmit(frame.length);
+			packet.setSequence(i);
+			packet.setTimeStamp(i * m_encoder.getSamplesPerFrame());
+			packet.getBuffer().setBytes(packet.getPayloadOffset(), frame);
+			m_packets[i] = packet;
+			m_payloads[i] = frame;
+		}
+	}
+
+	private static byte[] getSamples(final RaopRtpPacket.Audio packet) {
+		final byte[] samples = new byte[packet.getPayloadLength()];
+		packet.getBuffer().getBytes(packet.getPayloadOffset(), samples);
+		return samples;
+	}
+
+	private ChannelBuffer decryptedPayload(final int i, final RaopRtpAudioDecryptionHandler decryptionHandler) throws Exception {
+		final ChannelBuffer payload = ChannelBuffers.copiedBuffer(m_payloads[i]);
+		decryptionHandler.decrypt(payload, 0, payload.capacity());
+		return payload;
+	}
+
+	@Test
+	public void testDecodeFrameIntoArray() throws Exception {
+		final RaopRtpAudioDecryptionHandler decryptionHandler = new RaopRtpAudioDecryptionHandler(m_aesKey, m_aesIv);
+		final RaopRtpAudioAlacDecodeHandler alacDecodeHandler = new RaopRtpAudioAlacDecodeHandler(AlacTestFrameEncoder.FormatOptions);
+
+		for(int i=0; i < PacketCount; ++i) {
+			final ChannelBuffer payload = decryptedPayload(i, decryptionHandler);
+			final byte[] expected = alacDecodeHandler.decodeFrame(payload, 0, payload.capacity());
+
+			/* Decode at a non-zero offset and make sure the surrounding bytes are untouched */
+			final byte[] samples = new byte[expected.length + 8];
+			Arrays.fill(samples, (byte)0x5a);
+			Assert.assertEquals(expected.length, alacDecodeHandler.decodeFrame(payload, 0, payload.capacity(), samples, 4));
+			Assert.assertArrayEquals(expected, Arrays.copyOfRange(samples, 4, 4 + expected.length));
+			for(int b=0; b < 4; ++b) {
+				Assert.assertEquals(0x5a, samples[b]);
+				Assert.assertEquals(0x5a, samples[samples.length - 1 - b]);
+			}
+		}
+	}
+
+	@Test
+	public void testReusedPacketsMatchNewPackets() throws Exception {
+		final RaopRtpAudioDecryptionHandler decryptionHandler = new RaopRtpAudioDecryptionHandler(m_aesKey, m_aesIv);
+		final RaopRtpAudioAlacDecodeHandler newPacketsHandler = new RaopRtpAudioAlacDecodeHandler(AlacTestFrameEncoder.FormatOptions, false);
+		final RaopRtpAudioAlacDecodeHandler reusedPacketsHandler = new RaopRtpAudioAlacDecodeHandler(AlacTestFrameEncoder.FormatOptions, true);
+
+		Object previousReused = null;
+		for(int i=0; i < PacketCount; ++i) {
+			final RaopRtpPacket.Audio packet = (RaopRtpPacket.Audio)RaopRtpPacket.decode(ChannelBuffers.copiedBuffer(m_packets[i].getBuffer()));
+			decryptionHandler.decrypt(packet.getBuffer(), packet.getPayloadOffset(), packet.getPayloadLength());
+
+			final RaopRtpPacket.Audio expected = (RaopRtpPacket.Audio)newPacketsHandler.decode(null, null, packet);
+			final RaopRtpPacket.Audio reused = (RaopRtpPacket.Audio)reusedPacketsHandler.decode(null, null, packet);
+
+			Assert.assertEquals(i, reused.getSequence());
+			Assert.assertEquals(expected.getTimeStamp(), reused.getTimeStamp());
+			Assert.assertArrayEquals(getSamples(expected), getSamples(reused));
+			if (previousReused != null)
+				Assert.assertSame(previousReused, reused);
+			previousReused = reused;
+		}
+	}
+
+	/**
+	 * Measures the time it takes to decode a frame, most of which is
+	 * spent in the entropy decoder
+	 *
+	 * @param alacDecodeHandler decoder
+	 * @param payloads decrypted payloads
+	 * @param samples buffer to decode into
+	 * @return seconds per frame
+	 */
+	private double measureDecode(final RaopRtpAudioAlacDecodeHandler alacDecodeHandler, final ChannelBuffer[] payloads, final byte[] samples) throws Exception {
+		double best = Double.POSITIVE_INFINITY;
+		for(int n=0; n < 50; ++n) {
+			final long startNanos = System.nanoTime();
+			for(int i=0; i < PacketCount; ++i)
+				resultLong += alacDecodeHandler.decodeFrame(payloads[i], 0, payloads[i].capacity(), samples, 0);
+			final long endNanos = System.nanoTime();
+			best = Math.min(best, 1e-9 * (double)(endNanos - startNanos) / (double)PacketCount);
+		}
+		return best;
+	}
+
+	@Test
+	public void testDecodePerformance() throws Exception {
+		final RaopRtpAudioDecryptionHandler decryptionHandler = new RaopRtpAudioDecryptionHandler(m_aesKey, m_aesIv);
+		final RaopRtpAudioAlacDecodeHandler alacDecodeHandler = new RaopRtpAudioAlacDecodeHandler(AlacTestFrameEncoder.FormatOptions);
+
+		final ChannelBuffer[] payloads = new ChannelBuffer[PacketCount];
+		for(int i=0; i < PacketCount; ++i)
+			payloads[i] = decryptedPayload(i, decryptionHandler);
+		final byte[] samples = new byte[m_encoder.getSamplesPerFrame() * 4];
+
+		/* Frames using the delta predictor (31 coefficients), whose decoding time is
+		 * dominated by the entropy decoder
+		 */
+		final Random random = new Random(1);
+		final int[] deltaCoefs = new int[31];
+		final ChannelBuffer[] deltaFrames = new ChannelBuffer[PacketCount];
+		for(int i=0; i < PacketCount; ++i) {
+			final int[] residualsA = new int[m_encoder.getSamplesPerFrame()];
+			final int[] residualsB = new int[m_encoder.getSamplesPerFrame()];
+			for(int j=0; j < residualsA.length; ++j) {
+				residualsA[j] = (int)Math.round(random.nextGaussian() * 256.0);
+				residualsB[j] = (int)Math.round(random.nextGaussian() * 256.0);
+			}
+			deltaFrames[i] = ChannelBuffers.wrappedBuffer(m_encoder.encodeStereo(0, 0, 0, 4, deltaCoefs, residualsA, deltaCoefs, residualsB));
+		}
+
+		/* Warm up before measuring */
+		measureDecode(alacDecodeHandler, payloads, samples);
+		measureDecode(alacDecodeHandler, deltaFrames, samples);
+
+		System.out.println("ALAC decoding takes " + measureDecode(alacDecodeHandler, payloads, samples) + " seconds per frame");
+		System.out.println("ALAC decoding of delta-predicted frames takes " + measureDecode(alacDecodeHandler, deltaFrames, samples) + " seconds per frame");
+	}
+
+	/**
+	 * Returns the thread MX bean if it can count allocated bytes per thread, otherwise null
+	 */
+	private static com.sun.management.ThreadMXBean getAllocationCounter() {
+		try {
+			final java.lang.management.ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+			if (!(threadMXBean instanceof com.sun.management.ThreadMXBean))
+				return null;
+			final com.sun.management.ThreadMXBean sunThreadMXBean = (com.sun.management.ThreadMXBean)threadMXBean;
+			if (!sunThreadMXBean.isThreadAllocatedMemorySupported() || !sunThreadMXBean.isThreadAllocatedMemoryEnabled())
+				return null;
+			return sunThreadMXBean;
+		}
+		catch (final LinkageError e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Decrypts and decodes all packets once, both into re-used packets and
+	 * directly into pooled sample buffers, as the classic pipeline and the
+	 * fused handler do.
+	 */
+	private void decodeAll(
+		final RaopRtpAudioDecryptionHandler decryptionHandler,
+		final RaopRtpAudioAlacDecodeHandler alacDecodeHandler,
+		final SampleBufferPool sampleBufferPool
+	)
+		throws Exception
+	{
+		for(int i=0; i < PacketCount; ++i) {
+			final RaopRtpPacket.AudioTransmit packet = m_packets[i];
+			final ChannelBuffer buffer = packet.getBuffer();
+			final int offset = packet.getPayloadOffset();
+			final int length = packet.getPayloadLength();
+
+			buffer.setBytes(offset, m_payloads[i]);
+			decryptionHandler.decrypt(buffer, offset, length);
+			final RaopRtpPacket.Audio pcmPacket = (RaopRtpPacket.Audio)alacDecodeHandler.decode(null, null, packet);
+			resultLong += pcmPacket.getBuffer().getByte(pcmPacket.getPayloadOffset());
+
+			buffer.setBytes(offset, m_payloads[i]);
+			decryptionHandler.decrypt(buffer, offset, length);
+			final byte[] samples = sampleBufferPool.obtain(sampleBufferPool.getBufferSize());
+			resultLong += alacDecodeHandler.decodeFrame(buffer, offset, length, samples, 0);
+			sampleBufferPool.recycle(samples);
+		}
+	}
+
+	@Test
+	public void testSteadyStateAllocationFree() throws Exception {
+		final com.sun.management.ThreadMXBean allocationCounter = getAllocationCounter();
+		Assume.assumeNotNull(allocationCounter);
+		final long threadId = Thread.currentThread().getId();
+
+		final RaopRtpAudioDecryptionHandler decryptionHandler = new RaopRtpAudioDecryptionHandler(m_aesKey, m_aesIv);
+		final RaopRtpAudioAlacDecodeHandler alacDecodeHandler = new RaopRtpAudioAlacDecodeHandler(AlacTestFrameEncoder.FormatOptions, true);
+		final SampleBufferPool sampleBufferPool = new SampleBufferPool(m_encoder.getSamplesPerFrame() * 4, 4);
+
+		/* Warm up, so that the decoder's buffers have grown to their final size */
+		for(int n=0; n < 20; ++n)
+			decodeAll(decryptionHandler, alacDecodeHandler, sampleBufferPool);
+
+		/* Allow for stray one-off allocations, e.g. by the JIT, but not for one per packet */
+		long allocatedBytes = Long.MAX_VALUE;
+		for(int n=0; n < 5; ++n) {
+			final long startBytes = allocationCounter.getThreadAllocatedBytes(threadId);
+			decodeAll(decryptionHandler, alacDecodeHandler, sampleBufferPool);
+			allocatedBytes = Math.min(allocatedBytes, allocationCounter.getThreadAllocatedBytes(threadId) - startBytes);
+		}
+
+		System.out.println("Decoding " + PacketCount + " packets allocated " + allocatedBytes + " bytes");
+		Assert.assertTrue("Decoding allocated " + allocatedBytes + " bytes", allocatedBytes < PacketCount);
+		Assert.assertEquals(1, sampleBufferPool.getMissCount());
+	}
+}
@@ -0,0 +1,161 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.phlo.AirReceiver;
+
+import java.util.Random;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.*;
+
+public class TestRaopRtpAudioDecryptionHandler {
+	private static final int PacketCount = 512;
+	private static final int PayloadLength = 1400;
+
+	private final SecretKeySpec m_aesKey = new SecretKeySpec(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16 }, "AES");
+	private final IvParameterSpec m_aesIv = new IvParameterSpec(new byte[] { 16, 15, 14, 13, 12, 11, 10, 9, 8, 7, 6, 5, 4, 3, 2, 1 });
+
+	/**
+	 * Encrypted payloads, with a trailing partial block
+	 */
+	private byte[][] m_payloads;
+
+	public long resultLong;
+
+	@Before
+	public void createPayloads() throws Exception {
+		final Random random = new Random(0);
+		final Cipher aesCipher = AirTunesCrytography.getCipher("AES/CBC/NoPadding");
+
+		m_payloads = new byte[PacketCount][];
+		for(int i=0; i < PacketCount; ++i) {
+			final byte[] payload = new byte[PayloadLength - (i % 16)];
+			random.nextBytes(payload);
+
+			aesCipher.init(Cipher.ENCRYPT_MODE, m_aesKey, m_aesIv);
+			final int encryptedLength = payload.length & ~0xf;
+			aesCipher.doFinal(payload, 0, encryptedLength, payload, 0);
+
+			m_payloads[i] = payload;
+		}
+	}
+
+	/**
+	 * Decrypts block by block, the way the handler used to
+	 */
+	private void decryptPerBlock(final Cipher aesCipher, final ChannelBuffer buffer, final int offset, final int length) throws Exception {
+		aesCipher.init(Cipher.DECRYPT_MODE, m_aesKey, m_aesIv);
+		for(int i=0; (i + 16) <= length; i += 16) {
+			byte[] block = new byte[16];
+			buffer.getBytes(offset + i, block);
+			block = aesCipher.update(block);
+			buffer.setBytes(offset + i, block);
+		}
+	}
+
+	private void assertDecryptsLikeReference(final ChannelBuffer buffer, final int offset) throws Exception {
+		final RaopRtpAudioDecryptionHandler handler = new RaopRtpAudioDecryptionHandler(m_aesKey, m_aesIv);
+		final Cipher referenceCipher = AirTunesCrytography.getCipher("AES/CBC/NoPadding");
+
+		for(int i=0; i < PacketCount; ++i) {
+			final byte[] payload = m_payloads[i];
+			buffer.setBytes(offset, payload);
+			handler.decrypt(buffer, offset, payload.length);
+
+			final ChannelBuffer reference = ChannelBuffers.wrappedBuffer(payload.clone());
+			decryptPerBlock(referenceCipher, reference, 0, payload.length);
+
+			final byte[] decrypted = new byte[payload.length];
+			buffer.getBytes(offset, decrypted);
+			Assert.assertArrayEquals(reference.array(), decrypted);
+		}
+	}
+
+	@Test
+	public void testHeapBuffer() throws Exception {
+		assertDecryptsLikeReference(ChannelBuffers.buffer(12 + PayloadLength), 12);
+	}
+
+	@Test
+	public void testSlicedHeapBuffer() throws Exception {
+		assertDecryptsLikeReference(ChannelBuffers.buffer(20 + PayloadLength).slice(8, 12 + PayloadLength), 12);
+	}
+
+	@Test
+	public void testDirectBuffer() throws Exception {
+		assertDecryptsLikeReference(ChannelBuffers.directBuffer(12 + PayloadLength), 12);
+	}
+
+	/**
+	 * Measures the per-packet cost of either the handler or the per-block
+	 * reference. Copying the payloads into the buffer is measured separately
+	 * and subtracted.
+	 * 
+	 * @param handler handler, or null to measure the reference
+	 * @return seconds per packet
+	 */
+	private double measure(final RaopRtpAudioDecryptionHandler handler) throws Exception {
+		final Cipher referenceCipher = AirTunesCrytography.getCipher("AES/CBC/NoPadding");
+		final ChannelBuffer buffer = ChannelBuffers.buffer(12 + PayloadLength);
+
+		double overhead = Double.POSITIVE_INFINITY;
+		double withOverhead = Double.POSITIVE_INFINITY;
+
+		for(int n=0; n < 20; ++n) {
+			final long startNanos = System.nanoTime();
+			for(int i=0; i < PacketCount; ++i) {
+				buffer.setBytes(12, m_payloads[i]);
+				resultLong += buffer.getByte(12);
+			}
+			final long overheadNanos = System.nanoTime();
+			for(int i=0; i < PacketCount; ++i) {
+				buffer.setBytes(12, m_payloads[i]);
+				if (handler != null)
+					handler.decrypt(buffer, 12, m_payloads[i].length);
+				else
+					decryptPerBlock(referenceCipher, buffer, 12, m_payloads[i].length);
+				resultLong += buffer.getByte(12);
+			}
+			final long endNanos = System.nanoTime();
+
+			overhead = Math.min(overhead, 1e-9 * (double)(overheadNanos - startNanos) / (double)PacketCount);
+			withOverhead = Math.min(withOverhead, 1e-9 * (double)(endNanos - overheadNanos) / (double)PacketCount);
+		}
+
+		return withOverhead - overhead;
+	}
+
+	@Test
+	public void testPerformance() throws Exception {
+		final RaopRtpAudioDecryptionHandler handler = new RaopRtpAudioDecryptionHandler(m_aesKey, m_aesIv);
+
+		/* Warm up both before measuring either */
+		measure(null);
+		measure(handler);
+
+		final double perBlock = measure(null);
+		final double bulk = measure(handler);
+
+		System.out.println("Per-block decryption takes " + perBlock + " seconds per packet");
+		System.out.println("Bulk decryption takes " + bulk + " seconds per packet");
+	}
+}
@@ -0,0 +1,344 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.phlo.AirReceiver;
+
+import java.util.Random;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelUpstreamHandler;
+import org.jboss.netty.handler.codec.embedder.DecoderEmbedder;
+import org.junit.*;
+
+public class TestRaopRtpAudioFusedHandler {
+	private static final int PacketCount = 256;
+
+	private static final AudioClock NullClock = new AudioClock() {
+		@Override public double getNowSecondsTime() { return 0.0; }
+		@Override public long getNowFrameTime() { return 0; }
+		@Override public double getNextSecondsTime() { return 0.0; }
+		@Override public long getNextFrameTime() { return 0; }
+		@Override public double convertFrameToSecondsTime(final long frameTime) { return frameTime / 44100.0; }
+		@Override public void setFrameTime(final long frameTime, final double secondsTime) { }
+	};
+
+	private final SecretKeySpec m_aesKey = new SecretKeySpec(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16 }, "AES");
+	private final IvParameterSpec m_aesIv = new IvParameterSpec(new byte[16]);
+	private final AlacTestFrameEncoder m_encoder = new AlacTestFrameEncoder(AlacTestFrameEncoder.FormatOptions);
+
+	/**
+	 * Encrypted audio packets, with sequence numbers and time stamps to be filled in
+	 */
+	private ChannelBuffer[] m_packets;
+
+	/**
+	 * Sequence number of the next packet
+	 */
+	private int m_sequence = 0;
+
+	public long resultLong;
+
+	@Before
+	public void createPackets() throws Exception {
+		final Random random = new Random(0);
+		final Cipher aesCipher = AirTunesCrytography.getCipher("AES/CBC/NoPadding");
+
+		m_packets = new ChannelBuffer[PacketCount];
+		for(int i=0; i < PacketCount; ++i) {
+			final byte[] frame = m_encoder.encodeRandomStereo(random);
+
+			/* Encrypt all complete blocks, leave the rest alone */
+			aesCipher.init(Cipher.ENCRYPT_MODE, m_aesKey, m_aesIv);
+			final int encryptedLength = frame.length & ~0xf;
+			aesCipher.doFinal(frame, 0, encryptedLength, frame, 0);
+
+			final RaopRtpPacket.AudioTransmit packet = new RaopRtpPacket.AudioTransmit(frame.length);
+			packet.getBuffer().setBytes(packet.getPayloadOffset(), frame);
+			m_packets[i] = packet.getBuffer();
+		}
+	}
+
+	/**
+	 * Returns a copy of a packet with the given sequence number and a matching time stamp
+	 */
+	private ChannelBuffer copyPacket(final int i, final int sequence) {
+		final ChannelBuffer buffer = ChannelBuffers.copiedBuffer(m_packets[i]);
+		buffer.setShort(2, sequence & 0xffff);
+		buffer.setInt(4, sequence * m_encoder.getSamplesPerFrame());
+		return buffer;
+	}
+
+	/**
+	 * Returns a copy of a packet with the next sequence number
+	 */
+	private ChannelBuffer nextPacket(final int i) {
+		return copyPacket(i, m_sequence++);
+	}
+
+	private RaopRtpAudioAlacDecodeHandler createAlacDecodeHandler() throws ProtocolException {
+		return new RaopRtpAudioAlacDecodeHandler(AlacTestFrameEncoder.FormatOptions);
+	}
+
+	private DecoderEmbedder<Object> createClassicPipeline() throws Exception {
+		final RaopRtpAudioAlacDecodeHandler alacDecodeHandler = createAlacDecodeHandler();
+		return new DecoderEmbedder<Object>(new ChannelUpstreamHandler[] {
+			new ExceptionLoggingHandler(),
+			new RaopRtpDecodeHandler(true),
+			new RtpLoggingHandler(),
+			new RaopRtpRetransmitRequestHandler(alacDecodeHandler, NullClock),
+			new RaopRtpAudioDecryptionHandler(m_aesKey, m_aesIv),
+			alacDecodeHandler
+		});
+	}
+
+	/**
+	 * Replaces the packets with unencrypted L16 packets, whose decoding is a plain copy
+	 */
+	private void useL16Packets() {
+		final Random random = new Random(0);
+		for(int i=0; i < PacketCount; ++i) {
+			final RaopRtpPacket.AudioTransmit packet = new RaopRtpPacket.AudioTransmit(RaopRtpAudioL16DecodeHandler.DefaultFramesPerPacket * 4);
+			final byte[] samples = new byte[packet.getPayloadLength()];
+			random.nextBytes(samples);
+			packet.getBuffer().setBytes(packet.getPayloadOffset(), samples);
+			m_packets[i] = packet.getBuffer();
+		}
+	}
+
+	private DecoderEmbedder<Object> createClassicL16Pipeline() {
+		final RaopRtpAudioL16DecodeHandler l16DecodeHandler = new RaopRtpAudioL16DecodeHandler(RaopRtpAudioL16DecodeHandler.DefaultFramesPerPacket);
+		return new DecoderEmbedder<Object>(new ChannelUpstreamHandler[] {
+			new ExceptionLoggingHandler(),
+			new RaopRtpDecodeHandler(true),
+			new RtpLoggingHandler(),
+			new RaopRtpRetransmitRequestHandler(l16DecodeHandler, NullClock),
+			l16DecodeHandler
+		});
+	}
+
+	private DecoderEmbedder<Object> createFusedL16Pipeline() {
+		final RaopRtpAudioL16DecodeHandler l16DecodeHandler = new RaopRtpAudioL16DecodeHandler(RaopRtpAudioL16DecodeHandler.DefaultFramesPerPacket);
+		return new DecoderEmbedder<Object>(new ChannelUpstreamHandler[] {
+			new ExceptionLoggingHandler(),
+			new RaopRtpAudioFusedHandler(
+				null,
+				l16DecodeHandler,
+				new RaopRtpRetransmitRequestHandler(l16DecodeHandler, NullClock),
+				new RaopRtpAudioAdmissionHandler(NullClock, l16DecodeHandler.getFramesPerPacket(), null),
+				null,
+				null,
+				null
+			),
+			new RaopRtpDecodeHandler(true),
+			new RtpLoggingHandler()
+		});
+	}
+
+	private DecoderEmbedder<Object> createFusedPipeline() throws Exception {
+		final RaopRtpAudioAlacDecodeHandler alacDecodeHandler = createAlacDecodeHandler();
+		return new DecoderEmbedder<Object>(new ChannelUpstreamHandler[] {
+			new ExceptionLoggingHandler(),
+			new RaopRtpAudioFusedHandler(
+				new RaopRtpAudioDecryptionHandler(m_aesKey, m_aesIv),
+				alacDecodeHandler,
+				new RaopRtpRetransmitRequestHandler(alacDecodeHandler, NullClock),
+				new RaopRtpAudioAdmissionHandler(NullClock, alacDecodeHandler.getFramesPerPacket(), null),
+				null,
+				null,
+				null
+			),
+			new RaopRtpDecodeHandler(true),
+			new RtpLoggingHandler()
+		});
+	}
+
+	@Test
+	public void testFusedConsumesAudio() throws Exception {
+		final DecoderEmbedder<Object> fused = createFusedPipeline();
+		for(int i=0; i < PacketCount; ++i)
+			fused.offer(nextPacket(i));
+		Assert.assertNull(fused.poll());
+	}
+
+	@Test
+	public void testFusedReportsPacketsRejectedAsLate() throws Exception {
+		final RaopRtpAudioAlacDecodeHandler alacDecodeHandler = createAlacDecodeHandler();
+		final AudioOutputQueue queue = new AudioOutputQueue(alacDecodeHandler, new TestAudioOutputQueue.FakeLine(0, false));
+		try {
+			final RaopRtpStatistics statistics = new RaopRtpStatistics(44100.0);
+			final DecoderEmbedder<Object> fused = new DecoderEmbedder<Object>(new ChannelUpstreamHandler[] {
+				new ExceptionLoggingHandler(),
+				new RaopRtpAudioFusedHandler(
+					new RaopRtpAudioDecryptionHandler(m_aesKey, m_aesIv),
+					alacDecodeHandler,
+					new RaopRtpRetransmitRequestHandler(alacDecodeHandler, NullClock),
+					new RaopRtpAudioAdmissionHandler(queue, alacDecodeHandler.getFramesPerPacket(), statistics),
+					queue,
+					null,
+					statistics
+				)
+			});
+
+			/* The admission check uses a clock which admits the packets, but the queue is far ahead */
+			queue.setFrameTime(queue.getNextFrameTime() + 1000000, queue.getNextSecondsTime());
+			for(int i=0; i < 8; ++i)
+				fused.offer(nextPacket(i));
+
+			Assert.assertEquals(8, statistics.snapshot().lateDrops);
+		}
+		finally {
+			queue.close();
+		}
+	}
+
+	@Test
+	public void testFusedUsesSharedAdmissionHandler() throws Exception {
+		final RaopRtpAudioAlacDecodeHandler alacDecodeHandler = createAlacDecodeHandler();
+		final RaopRtpAudioAdmissionHandler admissionHandler = new RaopRtpAudioAdmissionHandler(NullClock, alacDecodeHandler.getFramesPerPacket(), null);
+		final DecoderEmbedder<Object> fused = new DecoderEmbedder<Object>(new ChannelUpstreamHandler[] {
+			new ExceptionLoggingHandler(),
+			new RaopRtpAudioFusedHandler(
+				new RaopRtpAudioDecryptionHandler(m_aesKey, m_aesIv),
+				alacDecodeHandler,
+				new RaopRtpRetransmitRequestHandler(alacDecodeHandler, NullClock),
+				admissionHandler,
+				null,
+				null,
+				null
+			)
+		});
+
+		/* Packets admitted by the fused handler are known to the session's admission
+		 * handler, so resetting that one on FLUSH resets the fused handler too
+		 */
+		fused.offer(copyPacket(0, 1000));
+		final RaopRtpPacket.AudioTransmit duplicate = new RaopRtpPacket.AudioTransmit(16);
+		duplicate.setSequence(1000);
+		duplicate.setTimeStamp(1000L * m_encoder.getSamplesPerFrame());
+		Assert.assertFalse(admissionHandler.admit(duplicate));
+
+		admissionHandler.reset();
+		Assert.assertTrue(admissionHandler.admit(duplicate));
+	}
+
+	@Test
+	public void testFusedPassesOtherPackets() throws Exception {
+		final DecoderEmbedder<Object> fused = createFusedPipeline();
+		final RaopRtpPacket.Sync sync = new RaopRtpPacket.Sync();
+		sync.setTimeStamp(352);
+		fused.offer(ChannelBuffers.copiedBuffer(sync.getBuffer()));
+		final Object result = fused.poll();
+		Assert.assertTrue(result instanceof RaopRtpPacket.Sync);
+		Assert.assertEquals(352, ((RaopRtpPacket.Sync)result).getTimeStamp());
+	}
+
+	@Test
+	public void testDecodeFrameMatchesDecode() throws Exception {
+		final DecoderEmbedder<Object> classic = createClassicPipeline();
+		final RaopRtpAudioDecryptionHandler decryptionHandler = new RaopRtpAudioDecryptionHandler(m_aesKey, m_aesIv);
+		final RaopRtpAudioAlacDecodeHandler alacDecodeHandler = createAlacDecodeHandler();
+
+		for(int i=0; i < PacketCount; ++i) {
+			final ChannelBuffer packet = nextPacket(i);
+			final ChannelBuffer packetCopy = ChannelBuffers.copiedBuffer(packet);
+
+			classic.offer(packet);
+			final RaopRtpPacket.Audio classicPacket = (RaopRtpPacket.Audio)classic.poll();
+			final byte[] classicSamples = new byte[classicPacket.getPayloadLength()];
+			classicPacket.getBuffer().getBytes(classicPacket.getPayloadOffset(), classicSamples);
+
+			final int length = packetCopy.capacity() - RaopRtpPacket.AudioTransmit.Length;
+			decryptionHandler.decrypt(packetCopy, RaopRtpPacket.AudioTransmit.Length, length);
+			final byte[] fusedSamples = alacDecodeHandler.decodeFrame(packetCopy, RaopRtpPacket.AudioTransmit.Length, length);
+
+			Assert.assertArrayEquals(classicSamples, fusedSamples);
+		}
+	}
+
+	/**
+	 * Measures the per-packet cost of a pipeline. Copying the packets
+	 * is measured separately and subtracted. The audio output queue
+	 * isn't part of either pipeline, since it requires an audio device.
+	 * 
+	 * @param embedder pipeline
+	 * @return seconds per packet
+	 */
+	private double measure(final DecoderEmbedder<Object> embedder) {
+		double overhead = Double.POSITIVE_INFINITY;
+		double withOverhead = Double.POSITIVE_INFINITY;
+
+		for(int n=0; n < 20; ++n) {
+			final long startNanos = System.nanoTime();
+			for(int i=0; i < PacketCount; ++i)
+				resultLong += copyPacket(i, m_sequence + i).capacity();
+			final long overheadNanos = System.nanoTime();
+			for(int i=0; i < PacketCount; ++i) {
+				embedder.offer(nextPacket(i));
+				if (embedder.poll() != null)
+					++resultLong;
+			}
+			final long endNanos = System.nanoTime();
+
+			overhead = Math.min(overhead, 1e-9 * (double)(overheadNanos - startNanos) / (double)PacketCount);
+			withOverhead = Math.min(withOverhead, 1e-9 * (double)(endNanos - overheadNanos) / (double)PacketCount);
+		}
+
+		return withOverhead - overhead;
+	}
+
+	@Test
+	public void testPerformance() throws Exception {
+		final DecoderEmbedder<Object> classicPipeline = createClassicPipeline();
+		final DecoderEmbedder<Object> fusedPipeline = createFusedPipeline();
+
+		/* Warm up both before measuring either */
+		measure(classicPipeline);
+		measure(fusedPipeline);
+
+		final double classic = measure(classicPipeline);
+		final double fused = measure(fusedPipeline);
+
+		System.out.println("Classic audio pipeline takes " + classic + " seconds per packet");
+		System.out.println("Fused audio pipeline takes " + fused + " seconds per packet");
+	}
+
+	@Test
+	public void testPerformanceWithoutDecoding() throws Exception {
+		/* Without decryption and with uncompressed audio, only the handler overhead remains */
+		useL16Packets();
+		final DecoderEmbedder<Object> classicPipeline = createClassicL16Pipeline();
+		final DecoderEmbedder<Object> fusedPipeline = createFusedL16Pipeline();
+
+		/* Warm up both before measuring either */
+		for(int n=0; n < 5; ++n) {
+			measure(classicPipeline);
+			measure(fusedPipeline);
+		}
+
+		final double classic = measure(classicPipeline);
+		final double fused = measure(fusedPipeline);
+
+		System.out.println("Classic audio pipeline without decoding takes " + classic + " seconds per packet");
+		System.out.println("Fused audio pipeline without decoding takes " + fused + " seconds per packet");
+	}
+}
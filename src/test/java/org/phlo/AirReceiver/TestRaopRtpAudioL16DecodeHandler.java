@@ -0,0 +1,155 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.phlo.AirReceiver;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.sound.sampled.AudioFormat;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelUpstreamHandler;
+import org.jboss.netty.handler.codec.embedder.DecoderEmbedder;
+import org.junit.*;
+
+public class TestRaopRtpAudioL16DecodeHandler {
+	private static final int FramesPerPacket = RaopRtpAudioL16DecodeHandler.DefaultFramesPerPacket;
+
+	private static final AudioClock NullClock = new AudioClock() {
+		@Override public double getNowSecondsTime() { return 0.0; }
+		@Override public long getNowFrameTime() { return 0; }
+		@Override public double getNextSecondsTime() { return 0.0; }
+		@Override public long getNextFrameTime() { return 0; }
+		@Override public double convertFrameToSecondsTime(final long frameTime) { return frameTime / 44100.0; }
+		@Override public void setFrameTime(final long frameTime, final double secondsTime) { }
+	};
+
+	/**
+	 * Signed big endian samples of one packet
+	 */
+	private byte[] m_samples;
+
+	@Before
+	public void createSamples() {
+		m_samples = new byte[FramesPerPacket * 4];
+		new Random(0).nextBytes(m_samples);
+	}
+
+	private RaopRtpPacket.AudioTransmit createPacket(final byte[] samples) {
+		return createPacket(1, samples);
+	}
+
+	private RaopRtpPacket.AudioTransmit createPacket(final int sequence, final byte[] samples) {
+		final RaopRtpPacket.AudioTransmit packet = new RaopRtpPacket.AudioTransmit(samples.length);
+		packet.setSequence(sequence);
+		packet.setTimeStamp(sequence * FramesPerPacket);
+		packet.getBuffer().setBytes(packet.getPayloadOffset(), samples);
+		return packet;
+	}
+
+	/**
+	 * Converts the signed big endian samples to the given format
+	 */
+	private byte[] convertSamples(final AudioFormat format) {
+		final byte[] converted = new byte[m_samples.length];
+		final boolean signed = AudioFormat.Encoding.PCM_SIGNED.equals(format.getEncoding());
+		for(int i=0; i < m_samples.length; i += 2) {
+			final int sample = ((m_samples[i] << 8) | (m_samples[i + 1] & 0xff)) + (signed ? 0 : 0x8000);
+			converted[i + (format.isBigEndian() ? 0 : 1)] = (byte)(sample >> 8);
+			converted[i + (format.isBigEndian() ? 1 : 0)] = (byte)sample;
+		}
+		return converted;
+	}
+
+	private static byte[] getPayload(final RaopRtpPacket.Audio packet) {
+		final byte[] payload = new byte[packet.getPayloadLength()];
+		packet.getBuffer().getBytes(packet.getPayloadOffset(), payload);
+		return payload;
+	}
+
+	@Test
+	public void testPayloadFormatPassesPacketsUnmodified() throws Exception {
+		final DecoderEmbedder<Object> pipeline = new DecoderEmbedder<Object>(new ChannelUpstreamHandler[] {
+			new RaopRtpAudioL16DecodeHandler(FramesPerPacket)
+		});
+
+		final RaopRtpPacket.AudioTransmit packet = createPacket(m_samples);
+		pipeline.offer(packet);
+		final Object result = pipeline.poll();
+		Assert.assertSame(packet, result);
+		Assert.assertArrayEquals(m_samples, getPayload(packet));
+	}
+
+	@Test
+	public void testOutputFormats() throws Exception {
+		for(final boolean signed: new boolean[] { false, true }) {
+			for(final boolean bigEndian: new boolean[] { false, true }) {
+				final AudioFormat format = new AudioFormat(44100, 16, 2, signed, bigEndian);
+				final byte[] expected = convertSamples(format);
+				final RaopRtpAudioL16DecodeHandler handler = new RaopRtpAudioL16DecodeHandler(FramesPerPacket, format);
+				Assert.assertSame(format, handler.getAudioFormat());
+				Assert.assertEquals(expected.length, handler.getDecodedLength(m_samples.length));
+
+				/* Packets are converted in place */
+				final DecoderEmbedder<Object> pipeline = new DecoderEmbedder<Object>(new ChannelUpstreamHandler[] { handler });
+				pipeline.offer(createPacket(m_samples));
+				Assert.assertArrayEquals(format.toString(), expected, getPayload((RaopRtpPacket.Audio)pipeline.poll()));
+
+				/* Frames are decoded from heap and direct buffers */
+				final byte[] heapSamples = new byte[expected.length + 2];
+				Assert.assertEquals(expected.length, handler.decodeFrame(ChannelBuffers.wrappedBuffer(m_samples), 0, m_samples.length, heapSamples, 2));
+				Assert.assertArrayEquals(format.toString(), expected, Arrays.copyOfRange(heapSamples, 2, heapSamples.length));
+
+				final ChannelBuffer direct = ChannelBuffers.directBuffer(m_samples.length);
+				direct.writeBytes(m_samples);
+				final byte[] directSamples = new byte[expected.length];
+				handler.decodeFrame(direct, 0, m_samples.length, directSamples, 0);
+				Assert.assertArrayEquals(format.toString(), expected, directSamples);
+			}
+		}
+	}
+
+	@Test(expected=ProtocolException.class)
+	public void testPartialFramesAreRejected() throws Exception {
+		new RaopRtpAudioL16DecodeHandler(FramesPerPacket).decodeFrame(ChannelBuffers.wrappedBuffer(m_samples), 0, 6, new byte[6], 0);
+	}
+
+	@Test
+	public void testFusedHandler() throws Exception {
+		final RaopRtpAudioL16DecodeHandler handler = new RaopRtpAudioL16DecodeHandler(FramesPerPacket);
+		final DecoderEmbedder<Object> fused = new DecoderEmbedder<Object>(new ChannelUpstreamHandler[] {
+			new RaopRtpAudioFusedHandler(
+				null,
+				handler,
+				new RaopRtpRetransmitRequestHandler(handler, NullClock),
+				new RaopRtpAudioAdmissionHandler(NullClock, FramesPerPacket, null),
+				null,
+				null,
+				null
+			),
+			new RaopRtpDecodeHandler(true)
+		});
+
+		/* Audio packets are consumed, even if they're shorter than usual */
+		fused.offer(ChannelBuffers.copiedBuffer(createPacket(1, m_samples).getBuffer()));
+		fused.offer(ChannelBuffers.copiedBuffer(createPacket(2, Arrays.copyOf(m_samples, 64)).getBuffer()));
+		Assert.assertNull(fused.poll());
+	}
+}
@@ -0,0 +1,286 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.phlo.AirReceiver;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.*;
+import org.jboss.netty.handler.codec.embedder.DecoderEmbedder;
+import org.junit.*;
+
+public class TestRaopRtpAudioParallelDecodeHandler {
+	private static final int PacketCount = 1024;
+
+	private final SecretKeySpec m_aesKey = new SecretKeySpec(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16 }, "AES");
+	private final IvParameterSpec m_aesIv = new IvParameterSpec(new byte[16]);
+	private final AlacTestFrameEncoder m_encoder = new AlacTestFrameEncoder(AlacTestFrameEncoder.FormatOptions);
+
+	/**
+	 * Encrypted audio packets with consecutive sequence numbers and time stamps
+	 */
+	private ChannelBuffer[] m_packets;
+
+	private ExecutorService m_executor;
+
+	@Before
+	public void createPackets() throws Exception {
+		final Random random = new Random(0);
+		final Cipher aesCipher = AirTunesCrytography.getCipher("AES/CBC/NoPadding");
+
+		m_packets = new ChannelBuffer[PacketCount];
+		for(int i=0; i < PacketCount; ++i) {
+			final byte[] frame = m_encoder.encodeRandomStereo(random);
+
+			/* Encrypt all complete blocks, leave the rest alone */
+			aesCipher.init(Cipher.ENCRYPT_MODE, m_aesKey, m_aesIv);
+			final int encryptedLength = frame.length & ~0xf;
+			aesCipher.doFinal(frame, 0, encryptedLength, frame, 0);
+
+			final RaopRtpPacket.AudioTransmit packet = new RaopRtpPacket.AudioTransmit(frame.length);
+			packet.setSequence(i);
+			packet.setTimeStamp(i * m_encoder.getSamplesPerFrame());
+			packet.getBuffer().setBytes(packet.getPayloadOffset(), frame);
+			m_packets[i] = packet.getBuffer();
+		}
+	}
+
+	@After
+	public void shutdownExecutor() {
+		if (m_executor != null)
+			m_executor.shutdown();
+	}
+
+	private DecoderEmbedder<Object> createParallelPipeline(final RaopRtpAudioParallelDecodeHandler handler) {
+		return new DecoderEmbedder<Object>(new ChannelUpstreamHandler[] {
+			new ExceptionLoggingHandler(),
+			new RaopRtpDecodeHandler(true),
+			handler
+		});
+	}
+
+	private RaopRtpAudioParallelDecodeHandler createParallelHandler(final int parallelism) throws Exception {
+		if (m_executor != null)
+			m_executor.shutdown();
+		m_executor = Executors.newFixedThreadPool(parallelism);
+		return new RaopRtpAudioParallelDecodeHandler(m_aesKey, m_aesIv, AlacTestFrameEncoder.FormatOptions, m_executor, parallelism);
+	}
+
+	/**
+	 * Executor which runs tasks only when asked to
+	 */
+	private static final class ManualExecutor implements Executor {
+		private final List<Runnable> m_tasks = new ArrayList<Runnable>();
+
+		@Override
+		public synchronized void execute(final Runnable task) {
+			m_tasks.add(task);
+		}
+
+		public synchronized Runnable get(final int index) {
+			return m_tasks.get(index);
+		}
+
+		public synchronized int size() {
+			return m_tasks.size();
+		}
+	}
+
+	private static byte[] getSamples(final RaopRtpPacket.Audio packet) {
+		final byte[] samples = new byte[packet.getPayloadLength()];
+		packet.getBuffer().getBytes(packet.getPayloadOffset(), samples);
+		return samples;
+	}
+
+	@Test
+	public void testMatchesSequentialDecodeInOrder() throws Exception {
+		final RaopRtpAudioParallelDecodeHandler handler = createParallelHandler(4);
+		final DecoderEmbedder<Object> parallel = createParallelPipeline(handler);
+		for(int i=0; i < PacketCount; ++i)
+			parallel.offer(ChannelBuffers.copiedBuffer(m_packets[i]));
+		handler.flush();
+
+		final RaopRtpAudioDecryptionHandler decryptionHandler = new RaopRtpAudioDecryptionHandler(m_aesKey, m_aesIv);
+		final RaopRtpAudioAlacDecodeHandler alacDecodeHandler = new RaopRtpAudioAlacDecodeHandler(AlacTestFrameEncoder.FormatOptions);
+		for(int i=0; i < PacketCount; ++i) {
+			final ChannelBuffer packet = ChannelBuffers.copiedBuffer(m_packets[i]);
+			final int length = packet.capacity() - RaopRtpPacket.AudioTransmit.Length;
+			decryptionHandler.decrypt(packet, RaopRtpPacket.AudioTransmit.Length, length);
+			final byte[] expected = alacDecodeHandler.decodeFrame(packet, RaopRtpPacket.AudioTransmit.Length, length);
+
+			final RaopRtpPacket.Audio result = (RaopRtpPacket.Audio)parallel.poll();
+			Assert.assertNotNull(result);
+			Assert.assertEquals(i, result.getSequence());
+			Assert.assertEquals(i * m_encoder.getSamplesPerFrame(), result.getTimeStamp());
+			Assert.assertArrayEquals(expected, getSamples(result));
+		}
+		Assert.assertNull(parallel.poll());
+	}
+
+	@Test
+	public void testReordersCompletedPackets() throws Exception {
+		final ManualExecutor executor = new ManualExecutor();
+		final RaopRtpAudioParallelDecodeHandler handler = new RaopRtpAudioParallelDecodeHandler(m_aesKey, m_aesIv, AlacTestFrameEncoder.FormatOptions, executor, 2);
+		final DecoderEmbedder<Object> parallel = createParallelPipeline(handler);
+		for(int i=0; i < 8; ++i)
+			parallel.offer(ChannelBuffers.copiedBuffer(m_packets[i]));
+
+		/* Complete the packets in reverse order */
+		for(int i=7; i >= 0; --i) {
+			executor.get(i).run();
+			Assert.assertEquals((i == 0) ? 8 : 0, parallel.size());
+		}
+
+		for(int i=0; i < 8; ++i)
+			Assert.assertEquals(i, ((RaopRtpPacket.Audio)parallel.poll()).getSequence());
+	}
+
+	@Test
+	public void testDiscardDropsPendingPackets() throws Exception {
+		final ManualExecutor executor = new ManualExecutor();
+		final RaopRtpAudioParallelDecodeHandler handler = new RaopRtpAudioParallelDecodeHandler(m_aesKey, m_aesIv, AlacTestFrameEncoder.FormatOptions, executor, 2);
+		final DecoderEmbedder<Object> parallel = createParallelPipeline(handler);
+
+		/* Packet 1 completes before the discard, but waits for packet 0 */
+		for(int i=0; i < 4; ++i)
+			parallel.offer(ChannelBuffers.copiedBuffer(m_packets[i]));
+		executor.get(1).run();
+		handler.discard();
+
+		/* Packets submitted after the discard are passed on */
+		for(int i=4; i < 8; ++i)
+			parallel.offer(ChannelBuffers.copiedBuffer(m_packets[i]));
+		for(int i=0; i < executor.size(); ++i) {
+			if (i != 1)
+				executor.get(i).run();
+		}
+		handler.flush();
+
+		for(int i=4; i < 8; ++i)
+			Assert.assertEquals(i, ((RaopRtpPacket.Audio)parallel.poll()).getSequence());
+		Assert.assertNull(parallel.poll());
+	}
+
+	@Test
+	public void testWorkersDoNotWaitForPipeline() throws Exception {
+		final ManualExecutor executor = new ManualExecutor();
+		final RaopRtpAudioParallelDecodeHandler handler = new RaopRtpAudioParallelDecodeHandler(m_aesKey, m_aesIv, AlacTestFrameEncoder.FormatOptions, executor, 2);
+		final CountDownLatch blocked = new CountDownLatch(1);
+		final CountDownLatch unblock = new CountDownLatch(1);
+		final DecoderEmbedder<Object> parallel = new DecoderEmbedder<Object>(new ChannelUpstreamHandler[] {
+			new ExceptionLoggingHandler(),
+			new RaopRtpDecodeHandler(true),
+			handler,
+			new SimpleChannelUpstreamHandler() {
+				@Override
+				public void messageReceived(final ChannelHandlerContext ctx, final MessageEvent evt) throws Exception {
+					/* Block while passing on the first packet */
+					if (((RaopRtpPacket.Audio)evt.getMessage()).getSequence() == 0) {
+						blocked.countDown();
+						unblock.await();
+					}
+					super.messageReceived(ctx, evt);
+				}
+			}
+		});
+		for(int i=0; i < 2; ++i)
+			parallel.offer(ChannelBuffers.copiedBuffer(m_packets[i]));
+
+		final Thread first = new Thread(executor.get(0));
+		first.start();
+		Assert.assertTrue(blocked.await(10, TimeUnit.SECONDS));
+
+		/* Completing the second packet doesn't wait for the blocked thread,
+		 * which then passes on the second packet too
+		 */
+		final Thread second = new Thread(executor.get(1));
+		second.start();
+		second.join(10000);
+		Assert.assertFalse(second.isAlive());
+		Assert.assertEquals(0, parallel.size());
+
+		unblock.countDown();
+		first.join(10000);
+		Assert.assertFalse(first.isAlive());
+		handler.flush();
+		for(int i=0; i < 2; ++i)
+			Assert.assertEquals(i, ((RaopRtpPacket.Audio)parallel.poll()).getSequence());
+	}
+
+	@Test
+	public void testPassesOtherPackets() throws Exception {
+		final DecoderEmbedder<Object> parallel = createParallelPipeline(createParallelHandler(2));
+		final RaopRtpPacket.Sync sync = new RaopRtpPacket.Sync();
+		sync.setTimeStamp(352);
+		parallel.offer(ChannelBuffers.copiedBuffer(sync.getBuffer()));
+		final Object result = parallel.poll();
+		Assert.assertTrue(result instanceof RaopRtpPacket.Sync);
+		Assert.assertEquals(352, ((RaopRtpPacket.Sync)result).getTimeStamp());
+	}
+
+	/**
+	 * Measures the throughput of the parallel stage
+	 *
+	 * @param parallelism number of workers
+	 * @return packets per second
+	 */
+	private double measure(final int parallelism) throws Exception {
+		final RaopRtpAudioParallelDecodeHandler handler = createParallelHandler(parallelism);
+		final DecoderEmbedder<Object> parallel = createParallelPipeline(handler);
+
+		double best = 0.0;
+		for(int n=0; n < 10; ++n) {
+			final long startNanos = System.nanoTime();
+			for(int i=0; i < PacketCount; ++i)
+				parallel.offer(ChannelBuffers.copiedBuffer(m_packets[i]));
+			handler.flush();
+			final long endNanos = System.nanoTime();
+
+			while (parallel.poll() != null)
+				;
+
+			best = Math.max(best, (double)PacketCount / (1e-9 * (double)(endNanos - startNanos)));
+		}
+
+		return best;
+	}
+
+	@Test
+	public void testScaling() throws Exception {
+		final int processors = Runtime.getRuntime().availableProcessors();
+
+		/* Warm up before measuring */
+		measure(1);
+
+		for(int parallelism=1; parallelism <= Math.max(4, processors); parallelism *= 2)
+			System.out.println("Parallel decode with " + parallelism + " workers on " + processors + " processors handles " + Math.round(measure(parallelism)) + " packets per second");
+	}
+}
@@ -0,0 +1,76 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.phlo.AirReceiver;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.*;
+
+public class TestRaopRtpPacket {
+	private static ChannelBuffer copy(final RtpPacket packet) {
+		return ChannelBuffers.copiedBuffer(packet.getBuffer());
+	}
+
+	@Test
+	public void testDecoderReusesInstances() throws ProtocolException {
+		final RaopRtpPacket.Decoder decoder = new RaopRtpPacket.Decoder();
+
+		final RaopRtpPacket.AudioTransmit first = new RaopRtpPacket.AudioTransmit(16);
+		first.setSequence(1);
+		first.setTimeStamp(352);
+		final RaopRtpPacket.AudioTransmit second = new RaopRtpPacket.AudioTransmit(32);
+		second.setSequence(2);
+		second.setTimeStamp(704);
+
+		final RaopRtpPacket firstDecoded = decoder.decode(copy(first));
+		Assert.assertTrue(firstDecoded instanceof RaopRtpPacket.AudioTransmit);
+		Assert.assertEquals(1, firstDecoded.getSequence());
+		Assert.assertEquals(352, ((RaopRtpPacket.Audio)firstDecoded).getTimeStamp());
+		Assert.assertEquals(16, ((RaopRtpPacket.Audio)firstDecoded).getPayloadLength());
+
+		final RaopRtpPacket secondDecoded = decoder.decode(copy(second));
+		Assert.assertSame(firstDecoded, secondDecoded);
+		Assert.assertEquals(2, secondDecoded.getSequence());
+		Assert.assertEquals(704, ((RaopRtpPacket.Audio)secondDecoded).getTimeStamp());
+		Assert.assertEquals(32, ((RaopRtpPacket.Audio)secondDecoded).getPayloadLength());
+	}
+
+	@Test
+	public void testNtpTimeFollowsRebind() throws ProtocolException {
+		final RaopRtpPacket.Decoder decoder = new RaopRtpPacket.Decoder();
+
+		final RaopRtpPacket.Sync first = new RaopRtpPacket.Sync();
+		first.getTime().setDouble(1.5);
+		final RaopRtpPacket.Sync second = new RaopRtpPacket.Sync();
+		second.getTime().setDouble(2.25);
+
+		final RaopRtpPacket.Sync firstDecoded = (RaopRtpPacket.Sync)decoder.decode(copy(first));
+		final RaopRtpPacket.NtpTime time = firstDecoded.getTime();
+		Assert.assertEquals(1.5, time.getDouble(), 0.0);
+
+		decoder.decode(copy(second));
+		Assert.assertEquals(2.25, time.getDouble(), 0.0);
+	}
+
+	@Test(expected=InvalidPacketException.class)
+	public void testDecoderRejectsShortPackets() throws ProtocolException {
+		final RaopRtpPacket.Decoder decoder = new RaopRtpPacket.Decoder();
+		final RaopRtpPacket.Sync sync = new RaopRtpPacket.Sync();
+		decoder.decode(sync.getBuffer().slice(0, RaopRtpPacket.Sync.Length - 1));
+	}
+}
@@ -0,0 +1,115 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.phlo.AirReceiver;
+
+import org.junit.*;
+
+public class TestRaopRtpStatistics {
+	private static final double SampleRate = 44100.0;
+	private static final int FramesPerPacket = 352;
+
+	/**
+	 * Nanoseconds between two packets at the nominal packet rate
+	 */
+	private static final long PacketNanos = Math.round(1e9 * FramesPerPacket / SampleRate);
+
+	private static void receive(final RaopRtpStatistics statistics, final int sequence, final long arrivalNanos) {
+		statistics.transmitReceived(sequence & 0xffff, (long)sequence * FramesPerPacket, arrivalNanos);
+	}
+
+	@Test
+	public void testPerfectStream() {
+		final RaopRtpStatistics statistics = new RaopRtpStatistics(SampleRate);
+		for(int s=65000; s < 66000; ++s)
+			receive(statistics, s, s * PacketNanos);
+
+		final RaopRtpStatistics.Snapshot snapshot = statistics.snapshot();
+		Assert.assertEquals(1000, snapshot.expected);
+		Assert.assertEquals(1000, snapshot.received);
+		Assert.assertEquals(0, snapshot.getLost());
+		Assert.assertEquals(0, snapshot.reordered);
+		Assert.assertEquals(0, snapshot.duplicates);
+		Assert.assertEquals(0, snapshot.sequenceResets);
+		Assert.assertEquals(0.0, snapshot.jitterSeconds, 1e-6);
+	}
+
+	@Test
+	public void testLossReorderAndDuplicates() {
+		final RaopRtpStatistics statistics = new RaopRtpStatistics(SampleRate);
+		receive(statistics, 1, 1 * PacketNanos);
+		receive(statistics, 2, 2 * PacketNanos);
+		/* 3 and 4 lost, 6 delayed by two packets */
+		receive(statistics, 5, 5 * PacketNanos);
+		receive(statistics, 7, 7 * PacketNanos);
+		receive(statistics, 8, 8 * PacketNanos);
+		receive(statistics, 6, 8 * PacketNanos);
+		receive(statistics, 8, 8 * PacketNanos);
+
+		final RaopRtpStatistics.Snapshot first = statistics.snapshot();
+		Assert.assertEquals(8, first.expected);
+		Assert.assertEquals(6, first.received);
+		Assert.assertEquals(2, first.getLost());
+		Assert.assertEquals(0.25, first.getLossFraction(), 1e-9);
+		Assert.assertEquals(1, first.reordered);
+		Assert.assertEquals(2, first.maxReorderDepth);
+		Assert.assertEquals(1, first.duplicates);
+		Assert.assertTrue(first.jitterSeconds > 0.0);
+
+		/* 10 lost */
+		receive(statistics, 9, 9 * PacketNanos);
+		receive(statistics, 11, 11 * PacketNanos);
+		receive(statistics, 12, 12 * PacketNanos);
+
+		final RaopRtpStatistics.Snapshot second = statistics.snapshot();
+		Assert.assertEquals(3, second.getLost());
+		Assert.assertEquals(1, second.getIntervalLost(first));
+		Assert.assertEquals(0.25, second.getIntervalLossFraction(first), 1e-9);
+	}
+
+	@Test
+	public void testJitter() {
+		final RaopRtpStatistics statistics = new RaopRtpStatistics(SampleRate);
+		/* Every other packet is delayed by one millisecond */
+		for(int s=0; s < 1000; ++s)
+			receive(statistics, s, s * PacketNanos + ((s % 2) * 1000000L));
+
+		/* The estimator converges towards the mean absolute transit difference */
+		Assert.assertEquals(0.001, statistics.snapshot().jitterSeconds, 1e-5);
+	}
+
+	@Test
+	public void testSequenceJumpAndRetransmits() {
+		final RaopRtpStatistics statistics = new RaopRtpStatistics(SampleRate);
+		receive(statistics, 1, 1 * PacketNanos);
+		receive(statistics, 2, 2 * PacketNanos);
+		receive(statistics, 20000, 3 * PacketNanos);
+		receive(statistics, 20001, 4 * PacketNanos);
+		statistics.retransmitRequested();
+		statistics.retransmitRequested();
+		statistics.retransmitRecovered();
+		statistics.lateDropped();
+
+		final RaopRtpStatistics.Snapshot snapshot = statistics.snapshot();
+		Assert.assertEquals(1, snapshot.sequenceResets);
+		Assert.assertEquals(4, snapshot.expected);
+		Assert.assertEquals(0, snapshot.getLost());
+		Assert.assertEquals(0.0, snapshot.jitterSeconds, 1e-6);
+		Assert.assertEquals(0.5, snapshot.getRecoveryRate(), 1e-9);
+		Assert.assertEquals(1, snapshot.lateDrops);
+	}
+}
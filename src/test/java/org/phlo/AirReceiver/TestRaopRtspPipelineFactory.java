@@ -0,0 +1,260 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.phlo.AirReceiver;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.Charset;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.interfaces.RSAPrivateCrtKey;
+import java.security.spec.RSAPublicKeySpec;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.crypto.Cipher;
+
+import org.jboss.netty.bootstrap.ServerBootstrap;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
+import org.junit.*;
+
+public class TestRaopRtspPipelineFactory {
+	private static final int ConnectionCount = 100;
+	private static final int ClientCount = 4;
+	private static final Charset Ascii = Charset.forName("ASCII");
+
+	/**
+	 * Pipeline factory which additionally constructs the two RSA ciphers per
+	 * connection, as the challenge response and audio handlers did before they
+	 * used the thread's ciphers. Signing and unwrapping cost the same either way
+	 */
+	private static final class PerConnectionCipherPipelineFactory extends RaopRtspPipelineFactory {
+		public volatile long resultLong;
+
+		@Override
+		public ChannelPipeline getPipeline() throws Exception {
+			resultLong += AirTunesCrytography.getCipher("RSA/None/PKCS1Padding").hashCode();
+			resultLong += AirTunesCrytography.getCipher("RSA/None/OAEPWithSHA1AndMGF1Padding").hashCode();
+			return super.getPipeline();
+		}
+	}
+
+	/**
+	 * AES keys wrapped with the AirTunes public key, one per connection
+	 */
+	private String[] m_wrappedKeys;
+
+	private final String m_challenge = Base64.encodeUnpadded(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16 });
+	private final String m_aesIv = Base64.encodeUnpadded(new byte[16]);
+
+	@Before
+	public void createWrappedKeys() throws Exception {
+		final RSAPrivateCrtKey privateKey = (RSAPrivateCrtKey)AirTunesCrytography.PrivateKey;
+		final PublicKey publicKey = KeyFactory.getInstance("RSA").generatePublic(new RSAPublicKeySpec(privateKey.getModulus(), privateKey.getPublicExponent()));
+		final Cipher oaepCipher = AirTunesCrytography.getCipher("RSA/None/OAEPWithSHA1AndMGF1Padding");
+		final Random random = new Random(0);
+
+		m_wrappedKeys = new String[ConnectionCount];
+		for(int i=0; i < ConnectionCount; ++i) {
+			final byte[] aesKey = new byte[16];
+			random.nextBytes(aesKey);
+			oaepCipher.init(Cipher.ENCRYPT_MODE, publicKey);
+			m_wrappedKeys[i] = Base64.encodeUnpadded(oaepCipher.doFinal(aesKey));
+		}
+	}
+
+	@Test
+	public void testThreadCiphersAreThreadConfined() throws Exception {
+		final Cipher cipher = AirTunesCrytography.getThreadCipher("RSA/None/PKCS1Padding");
+		Assert.assertSame(cipher, AirTunesCrytography.getThreadCipher("RSA/None/PKCS1Padding"));
+
+		final Cipher[] otherCipher = new Cipher[1];
+		final Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				otherCipher[0] = AirTunesCrytography.getThreadCipher("RSA/None/PKCS1Padding");
+			}
+		});
+		thread.start();
+		thread.join();
+
+		Assert.assertNotNull(otherCipher[0]);
+		Assert.assertNotSame(cipher, otherCipher[0]);
+	}
+
+	/**
+	 * Reads an RTSP response's status line and headers. The responses
+	 * to OPTIONS and ANNOUNCE have no body
+	 */
+	private static String readResponse(final InputStream in) throws IOException {
+		final StringBuilder response = new StringBuilder();
+		while (!response.toString().endsWith("\r\n\r\n")) {
+			final int b = in.read();
+			if (b < 0)
+				throw new EOFException("Connection closed after " + response);
+			response.append((char)b);
+		}
+		return response.toString();
+	}
+
+	/**
+	 * Connects to the RTSP server, and sends an OPTIONS request carrying an
+	 * Apple-Challenge and an ANNOUNCE request carrying an encrypted AES key,
+	 * as clients do when they start streaming
+	 */
+	private void handshake(final SocketAddress address, final String wrappedKey) throws IOException {
+		final Socket socket = new Socket();
+		try {
+			socket.setTcpNoDelay(true);
+			socket.connect(address);
+			final OutputStream out = socket.getOutputStream();
+			final InputStream in = new BufferedInputStream(socket.getInputStream());
+
+			out.write((
+				"OPTIONS * RTSP/1.0\r\n" +
+				"CSeq: 1\r\n" +
+				"Apple-Challenge: " + m_challenge + "\r\n" +
+				"\r\n"
+			).getBytes(Ascii));
+			final String options = readResponse(in);
+			Assert.assertTrue(options, options.startsWith("RTSP/1.0 200"));
+			Assert.assertTrue(options, options.contains("Apple-Response: "));
+
+			final byte[] sdp = (
+				"v=0\r\n" +
+				"o=iTunes 1 0 IN IP4 127.0.0.1\r\n" +
+				"s=iTunes\r\n" +
+				"c=IN IP4 127.0.0.1\r\n" +
+				"t=0 0\r\n" +
+				"m=audio 0 RTP/AVP 96\r\n" +
+				"a=rtpmap:96 AppleLossless\r\n" +
+				"a=fmtp:96 352 0 16 40 10 14 2 255 0 0 44100\r\n" +
+				"a=rsaaeskey:" + wrappedKey + "\r\n" +
+				"a=aesiv:" + m_aesIv + "\r\n"
+			).getBytes(Ascii);
+			out.write((
+				"ANNOUNCE rtsp://127.0.0.1/1 RTSP/1.0\r\n" +
+				"CSeq: 2\r\n" +
+				"Content-Type: application/sdp\r\n" +
+				"Content-Length: " + sdp.length + "\r\n" +
+				"\r\n"
+			).getBytes(Ascii));
+			out.write(sdp);
+			final String announce = readResponse(in);
+
+			/* Without an audio output device, ANNOUNCE fails once the key is
+			 * unwrapped and the audio output queue is created
+			 */
+			Assert.assertTrue(announce, announce.startsWith("RTSP/1.0 200") || announce.startsWith("RTSP/1.0 500"));
+		}
+		finally {
+			socket.close();
+		}
+	}
+
+	/**
+	 * Measures how many clients per second can connect to an RTSP server
+	 * and complete the OPTIONS and ANNOUNCE requests, with {@link #ClientCount}
+	 * clients connecting concurrently.
+	 *
+	 * @param factory pipeline factory of the RTSP server
+	 * @param rounds number of rounds to measure
+	 * @return connections per second in the best round
+	 */
+	private double measure(final RaopRtspPipelineFactory factory, final int rounds) throws Exception {
+		final ExecutorService executor = Executors.newCachedThreadPool();
+		final ServerBootstrap bootstrap = new ServerBootstrap(new NioServerSocketChannelFactory(executor, executor));
+		bootstrap.setPipelineFactory(factory);
+		bootstrap.setOption("child.tcpNoDelay", true);
+		final Channel server = bootstrap.bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+		final ExecutorService clients = Executors.newFixedThreadPool(ClientCount);
+		try {
+			final SocketAddress address = server.getLocalAddress();
+
+			double best = 0.0;
+			for(int n=0; n < rounds; ++n) {
+				/* Every round must unwrap its keys */
+				if (AirReceiver.AesKeyCache != null)
+					AirReceiver.AesKeyCache.clear();
+
+				final long startNanos = System.nanoTime();
+				final List<Future<?>> results = new ArrayList<Future<?>>();
+				for(int c=0; c < ClientCount; ++c) {
+					final int client = c;
+					results.add(clients.submit(new Callable<Void>() {
+						@Override
+						public Void call() throws Exception {
+							for(int i=client; i < ConnectionCount; i += ClientCount)
+								handshake(address, m_wrappedKeys[i]);
+							return null;
+						}
+					}));
+				}
+				for(final Future<?> result: results)
+					result.get();
+				final long endNanos = System.nanoTime();
+
+				best = Math.max(best, (double)ConnectionCount / (1e-9 * (double)(endNanos - startNanos)));
+			}
+
+			return best;
+		}
+		finally {
+			clients.shutdown();
+			server.close().awaitUninterruptibly();
+			bootstrap.releaseExternalResources();
+		}
+	}
+
+	@Test
+	public void testConnectionStormPerformance() throws Exception {
+		AirTunesCrytography.warmUp();
+
+		/* Every connection logs a few messages, and a stack trace if ANNOUNCE fails.
+		 * AirReceiver reads the logging configuration when it's initialized, so
+		 * that must happen first
+		 */
+		Class.forName(AirReceiver.class.getName());
+		final Logger logger = Logger.getLogger(AirReceiver.class.getPackage().getName());
+		final Level level = logger.getLevel();
+		logger.setLevel(Level.SEVERE);
+
+		final double before;
+		final double after;
+		try {
+			/* Warm up both before measuring either */
+			measure(new PerConnectionCipherPipelineFactory(), 1);
+			measure(new RaopRtspPipelineFactory(), 1);
+
+			before = measure(new PerConnectionCipherPipelineFactory(), 3);
+			after = measure(new RaopRtspPipelineFactory(), 3);
+		}
+		finally {
+			logger.setLevel(level);
+		}
+
+		System.out.println("OPTIONS and ANNOUNCE handshakes with per-connection ciphers: " + Math.round(before) + " connections per second");
+		System.out.println("OPTIONS and ANNOUNCE handshakes with thread ciphers: " + Math.round(after) + " connections per second");
+	}
+}
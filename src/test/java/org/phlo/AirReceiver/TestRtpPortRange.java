@@ -0,0 +1,148 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.phlo.AirReceiver;
+
+import java.net.*;
+import java.util.concurrent.Executors;
+
+import org.jboss.netty.bootstrap.ConnectionlessBootstrap;
+import org.jboss.netty.channel.*;
+import org.jboss.netty.channel.socket.nio.NioDatagramChannelFactory;
+import org.junit.*;
+
+public class TestRtpPortRange {
+	private static final int PortCount = 6;
+
+	private NioDatagramChannelFactory m_channelFactory;
+	private int m_firstPort;
+
+	/**
+	 * Finds {@link #PortCount} consecutive free UDP ports
+	 */
+	private static int findFreePorts() {
+		for(int first = 40000; first < 60000; first += PortCount) {
+			if (arePortsFree(first))
+				return first;
+		}
+		throw new IllegalStateException("No free port range found");
+	}
+
+	/**
+	 * Returns true if all ports of the test range starting at {@code first} can be bound
+	 */
+	private static boolean arePortsFree(final int first) {
+		for(int port = first; port < first + PortCount; ++port) {
+			try {
+				new DatagramSocket(port).close();
+			}
+			catch (final SocketException e) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Waits for the ports of the test range starting at {@code first} to become free.
+	 * Closed NIO channels release their sockets only once their selector wakes up
+	 */
+	private static boolean awaitPortsFree(final int first) throws InterruptedException {
+		for(int i=0; i < 100; ++i) {
+			if (arePortsFree(first))
+				return true;
+			Thread.sleep(10);
+		}
+		return false;
+	}
+
+	private ConnectionlessBootstrap createBootstrap() {
+		final ConnectionlessBootstrap bootstrap = new ConnectionlessBootstrap(m_channelFactory);
+		bootstrap.setPipelineFactory(new ChannelPipelineFactory() {
+			@Override
+			public ChannelPipeline getPipeline() throws Exception {
+				return Channels.pipeline();
+			}
+		});
+		return bootstrap;
+	}
+
+	@Before
+	public void setUp() {
+		m_channelFactory = new NioDatagramChannelFactory(Executors.newCachedThreadPool(), 1);
+		m_firstPort = findFreePorts();
+	}
+
+	@After
+	public void tearDown() {
+		m_channelFactory.releaseExternalResources();
+	}
+
+	@Test
+	public void testRangesSmallerThanOneSessionAreRejected() {
+		try {
+			new RtpPortRange(m_firstPort, m_firstPort + RtpPortRange.PortsPerSession - 2);
+			Assert.fail("Port range with fewer than " + RtpPortRange.PortsPerSession + " ports was accepted");
+		}
+		catch (final IllegalArgumentException e) {
+			/* Expected */
+		}
+		Assert.assertEquals(RtpPortRange.PortsPerSession, new RtpPortRange(m_firstPort, m_firstPort + RtpPortRange.PortsPerSession - 1).getCount());
+	}
+
+	@Test
+	public void testPortsAreUsedRoundRobin() throws Exception {
+		final RtpPortRange range = new RtpPortRange(m_firstPort, m_firstPort + PortCount - 1);
+		final ConnectionlessBootstrap bootstrap = createBootstrap();
+
+		/* Released ports are only re-used after all others were tried */
+		final Channel first = range.bind(bootstrap, null);
+		Assert.assertEquals(m_firstPort, ((InetSocketAddress)first.getLocalAddress()).getPort());
+		first.close().awaitUninterruptibly();
+
+		final Channel[] channels = new Channel[PortCount];
+		for(int i=0; i < PortCount; ++i) {
+			channels[i] = range.bind(bootstrap, null);
+			Assert.assertEquals(m_firstPort + (i + 1) % PortCount, ((InetSocketAddress)channels[i].getLocalAddress()).getPort());
+		}
+
+		/* All ports are in use */
+		try {
+			range.bind(bootstrap, null);
+			Assert.fail("Bound more channels than the range has ports");
+		}
+		catch (final ChannelException e) {
+			/* Expected */
+		}
+
+		for(final Channel channel: channels)
+			channel.close().awaitUninterruptibly();
+	}
+
+	@Test
+	public void testClosedPoolReleasesAllPorts() throws Exception {
+		/* Closing races against the refiller binding channels, so try a few times */
+		for(int n=0; n < 5; ++n) {
+			final RtpChannelPool pool = new RtpChannelPool(createBootstrap(), new RtpPortRange(m_firstPort, m_firstPort + PortCount - 1), PortCount);
+			Thread.sleep(n % 4);
+			pool.close();
+
+			Assert.assertTrue("Pool kept a port bound after it was closed", awaitPortsFree(m_firstPort));
+		}
+	}
+}
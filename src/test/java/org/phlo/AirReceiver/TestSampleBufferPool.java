@@ -0,0 +1,59 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.phlo.AirReceiver;
+
+import org.junit.*;
+
+public class TestSampleBufferPool {
+	@Test
+	public void testRecycledBuffersAreReused() {
+		final SampleBufferPool pool = new SampleBufferPool(1408, 2);
+
+		final byte[] first = pool.obtain(1408);
+		Assert.assertEquals(1408, first.length);
+		Assert.assertEquals(1, pool.getMissCount());
+
+		pool.recycle(first);
+		Assert.assertEquals(1, pool.getIdleCount());
+		Assert.assertSame(first, pool.obtain(1408));
+		Assert.assertEquals(1, pool.getHitCount());
+		Assert.assertEquals(0, pool.getIdleCount());
+	}
+
+	@Test
+	public void testOtherSizesBypassPool() {
+		final SampleBufferPool pool = new SampleBufferPool(1408, 2);
+
+		final byte[] small = pool.obtain(100);
+		Assert.assertEquals(100, small.length);
+		Assert.assertEquals(0, pool.getMissCount());
+
+		pool.recycle(small);
+		pool.recycle(null);
+		Assert.assertEquals(0, pool.getIdleCount());
+	}
+
+	@Test
+	public void testCapacityIsBounded() {
+		final SampleBufferPool pool = new SampleBufferPool(16, 2);
+		for(int i=0; i < 5; ++i)
+			pool.recycle(new byte[16]);
+		Assert.assertEquals(2, pool.getIdleCount());
+	}
+}